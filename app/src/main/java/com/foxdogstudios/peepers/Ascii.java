@@ -0,0 +1,63 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.UnsupportedEncodingException;
+
+final class Ascii {
+    private Ascii() {
+        super();
+    }
+
+    static byte[] toBytes(final String string) {
+        try {
+            return string.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Write the decimal digits of value into buffer at offset without
+     * allocating, returning the offset just after the last digit.
+     */
+    static int putDecimal(final long value, final byte[] buffer, final int offset) {
+        if (value == Long.MIN_VALUE) {
+            final byte[] digits = toBytes(Long.toString(value));
+            System.arraycopy(digits, 0, buffer, offset, digits.length);
+            return offset + digits.length;
+        }
+
+        int position = offset;
+        long remaining = value;
+        if (remaining < 0L) {
+            buffer[position++] = '-';
+            remaining = -remaining;
+        }
+
+        int numDigits = 1;
+        for (long bound = 10L; numDigits < 19 && remaining >= bound; bound *= 10L) {
+            numDigits++;
+        }
+
+        final int end = position + numDigits;
+        for (int index = end - 1; index >= position; index--) {
+            buffer[index] = (byte) ('0' + remaining % 10L);
+            remaining /= 10L;
+        }
+        return end;
+    }
+}
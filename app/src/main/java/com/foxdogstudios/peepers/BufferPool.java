@@ -0,0 +1,114 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reusable direct buffers, all the same size. A direct buffer lives
+ * outside the Java heap, so the garbage collector never scans or moves
+ * the frames in it, and a channel can write it to a socket or file
+ * without first copying it into a temporary direct buffer, as it does
+ * with a heap buffer.
+ *
+ * Released buffers are kept for the next acquire(). There are never
+ * more than maxBuffers, in use and idle together, so once that many have
+ * been allocated acquire() fails until one is released. A buffer taken
+ * from the idle ones counts as a hit; one that had to be allocated, or
+ * could not be, as a miss. May be used from any thread.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayDeque<ByteBuffer> idleBuffers = new ArrayDeque<ByteBuffer>();
+
+    // Guarded by this
+    private int numInUse = 0;
+    private long numHits = 0L;
+    private long numMisses = 0L;
+
+    BufferPool(final int bufferSize, final int maxBuffers) {
+        super();
+
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        if (maxBuffers <= 0) {
+            throw new IllegalArgumentException("maxBuffers must be positive");
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * A cleared buffer of getBufferSize() bytes, or null if maxBuffers
+     * are already in use. Its contents are whatever the previous user
+     * left in it.
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = idleBuffers.poll();
+        if (buffer == null) {
+            numMisses++;
+            if (numInUse >= maxBuffers) {
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            buffer.clear();
+            numHits++;
+        }
+        numInUse++;
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer from acquire(). Nothing may use it, or any view
+     * of it, afterwards.
+     */
+    synchronized void release(final ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            throw new IllegalArgumentException("buffer is not from this pool");
+        }
+        numInUse--;
+        idleBuffers.add(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    synchronized int getNumInUse() {
+        return numInUse;
+    }
+
+    synchronized int getNumIdle() {
+        return idleBuffers.size();
+    }
+
+    synchronized long getNumHits() {
+        return numHits;
+    }
+
+    synchronized long getNumMisses() {
+        return numMisses;
+    }
+}
@@ -15,9 +15,10 @@
 
 package com.foxdogstudios.peepers;
 
-import android.graphics.YuvImage;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.os.Message;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -25,40 +26,88 @@ import android.view.SurfaceHolder;
 import com.foxdogstudios.peepers.lib.Optional;
 import com.foxdogstudios.peepers.lib.Pair;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.List;
 
-class CameraStreamer implements MessageListener {
+class CameraStreamer implements MessageListener, EncoderPool.BufferRecycler,
+        MJpegHttpStreamer.SubscriberListener {
     private static final String TAG = CameraStreamer.class.getSimpleName();
 
     private static final int MSG_TRY_START_STREAMING = 0;
-    private static final int MSG_SEND_PREVIEW_FRAME = 1;
+    private static final int MSG_SUBSCRIBERS_CHANGED = 1;
 
     private static final long OPEN_CAMERA_POLL_INTERVAL_MS = 1000L;
 
-    private final MovingAverage averageSpf = new MovingAverage(50 /* numValues */);
+    // Sample every fourth pixel and compare blocks of 8 x 8 samples,
+    // i.e. 32 x 32 pixels
+    private static final int CHANGE_SAMPLE_STRIDE = 4;
+    private static final int CHANGE_BLOCK_SIZE = 8;
+    // How long nobody must have been watching before the preview slows
+    // down, so that a client polling for snapshots does not keep
+    // changing the camera's frame rate
+    private static final long IDLE_DELAY_MS = 5000L;
+    // Multicast RTP is kept to the local network
+    private static final int RTP_TIME_TO_LIVE = 1;
+
+    private final MovingAverage averageFrameIntervalMs = new MovingAverage(50 /* numValues */);
+    private final Metrics metrics = new Metrics();
 
     private final int cameraIndex;
     private final boolean useFlashLight;
     private final int port;
     private final int previewSizeIndex;
     private final int jpegQuality;
+    private final boolean useRateControl;
+    private final int targetBitrateKbps;
+    private final int targetFps;
+    private final boolean useJavaEncoder;
+    private final boolean useStripEncoder;
+    private final ChangeDetector changeDetector;
+    private final int[] outputWidths;
+    private final File recordingDirectory;
+    private final long recordingQuotaBytes;
+    private final int preEventSeconds;
+    private final File eventDirectory;
+    private final InetSocketAddress rtpDestination;
+    private final int rtpWidth;
+    private final FrameQueue.WaitStrategy frameWaitStrategy;
     private final SurfaceHolder previewDisplay;
 
     private boolean mRunning = false;
     private Camera mCamera = null;
-    private MemoryOutputStream jpegOutputStream = null;
-    private MJpegHttpStreamer mJpegHttpStreamer = null;
+    private StreamingPipeline pipeline = null;
+    private Thread frameThread = null;
+
+    // Filled on the messenger's thread, emptied on the frame thread
+    private FrameQueue frameQueue = null;
+
+    // Set on the messenger's thread before the frame thread starts, then
+    // only used on the frame thread
+    private Optional<Pair<Integer, Integer>> activeFpsRange = Optional.empty();
+    private Optional<Pair<Integer, Integer>> idleFpsRange = Optional.empty();
+    private boolean isIdle = false;
+    private long lastWatchedTimestamp = Long.MIN_VALUE;
+    // The latest frame captured while nobody was watching, sent to the
+    // first client to arrive so that it need not wait for the camera
+    private byte[] idleFrame = null;
+    private long idleFrameTimestamp = 0L;
 
     private long numFrames = 0L;
     private long lastTimestamp = Long.MIN_VALUE;
     private Messenger messenger;
 
+    // The camera was opened on the messenger's thread, so it calls back
+    // on that thread too, which makes it the frame queue's only producer.
     private final Camera.PreviewCallback previewCallback = new Camera.PreviewCallback() {
         @Override
         public void onPreviewFrame(final byte[] data, final Camera camera) {
-            final Long timestamp = SystemClock.elapsedRealtime();
-            messenger.sendMessage(MSG_SEND_PREVIEW_FRAME, new Object[]{data, camera, timestamp});
+            if (!frameQueue.offer(data, SystemClock.elapsedRealtime(), System.nanoTime())) {
+                // The frame thread is behind, give the buffer straight back
+                metrics.countFrameDropped();
+                camera.addCallbackBuffer(data);
+            }
         }
     };
 
@@ -69,6 +118,22 @@ class CameraStreamer implements MessageListener {
                    final int port,
                    final int previewSizeIndex,
                    final int jpegQuality,
+                   final boolean useRateControl,
+                   final int targetBitrateKbps,
+                   final int targetFps,
+                   final boolean useJavaEncoder,
+                   final boolean useStripEncoder,
+                   final boolean useChangeDetection,
+                   final int changeThreshold,
+                   final int keepAliveMs,
+                   final int[] outputWidths,
+                   final File recordingDirectory,
+                   final long recordingQuotaBytes,
+                   final int preEventSeconds,
+                   final File eventDirectory,
+                   final InetSocketAddress rtpDestination,
+                   final int rtpWidth,
+                   final FrameQueue.WaitStrategy frameWaitStrategy,
                    final SurfaceHolder previewDisplay) {
         super();
 
@@ -81,6 +146,23 @@ class CameraStreamer implements MessageListener {
         this.port = port;
         this.previewSizeIndex = previewSizeIndex;
         this.jpegQuality = jpegQuality;
+        this.useRateControl = useRateControl;
+        this.targetBitrateKbps = targetBitrateKbps;
+        this.targetFps = targetFps;
+        this.useJavaEncoder = useJavaEncoder;
+        this.useStripEncoder = useStripEncoder;
+        changeDetector = useChangeDetection
+                ? new ChangeDetector(CHANGE_SAMPLE_STRIDE, CHANGE_BLOCK_SIZE, changeThreshold,
+                        keepAliveMs)
+                : null;
+        this.outputWidths = outputWidths;
+        this.recordingDirectory = recordingDirectory;
+        this.recordingQuotaBytes = recordingQuotaBytes;
+        this.preEventSeconds = preEventSeconds;
+        this.eventDirectory = eventDirectory;
+        this.rtpDestination = rtpDestination;
+        this.rtpWidth = rtpWidth;
+        this.frameWaitStrategy = frameWaitStrategy;
         this.previewDisplay = previewDisplay;
     }
 
@@ -90,9 +172,13 @@ class CameraStreamer implements MessageListener {
             case MSG_TRY_START_STREAMING:
                 tryStartStreaming();
                 break;
-            case MSG_SEND_PREVIEW_FRAME:
-                final Object[] args = (Object[]) message.obj;
-                sendPreviewFrame((byte[]) args[0], (Camera) args[1], (Long) args[2]);
+            case MSG_SUBSCRIBERS_CHANGED:
+                // Passed on to the frame thread, which keeps the idle
+                // state, as an event without a frame. If the queue is
+                // full the frames in it will do instead.
+                if (frameQueue != null) {
+                    frameQueue.offer(null, 0L, 0L);
+                }
                 break;
             default:
                 throw new IllegalArgumentException("cannot handle message");
@@ -117,14 +203,18 @@ class CameraStreamer implements MessageListener {
      * be called on the main thread.
      */
     void stop() {
+        final StreamingPipeline stopped;
+        final Thread frames;
         synchronized (this) {
             if (!mRunning) {
                 throw new IllegalStateException("CameraStreamer is already stopped");
             }
 
             mRunning = false;
-            if (mJpegHttpStreamer != null) {
-                mJpegHttpStreamer.stop();
+            stopped = pipeline;
+            frames = frameThread;
+            if (pipeline != null) {
+                pipeline.stop();
             }
             if (mCamera != null) {
                 mCamera.release();
@@ -132,6 +222,40 @@ class CameraStreamer implements MessageListener {
             }
         }
         messenger.close();
+        if (frames != null) {
+            // Not while holding the lock, which it takes to recycle
+            // preview buffers
+            frames.interrupt();
+            try {
+                frames.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (stopped != null) {
+            releaseFrames(stopped);
+        }
+    }
+
+    @Override
+    public void onSubscribersChanged(final int numSubscribers) {
+        // Called on the streamer's thread, the camera is handled on ours
+        messenger.sendMessage(MSG_SUBSCRIBERS_CHANGED);
+    }
+
+    /**
+     * Wait for the encoders and the streamer to finish with the frames,
+     * then give the frames' buffers back to their pools for the next
+     * start. Not while holding the lock, which the encoders take to
+     * recycle preview buffers.
+     */
+    private static void releaseFrames(final StreamingPipeline pipeline) {
+        try {
+            pipeline.join();
+        } catch (InterruptedException e) {
+            // The buffers are left to the garbage collector
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void tryStartStreaming() {
@@ -168,42 +292,117 @@ class CameraStreamer implements MessageListener {
         cameraParams.setPreviewSize(previewSize.getA(), previewSize.getB());
 
         Optional<Pair<Integer, Integer>> fpsRange = findPreviewFpsRange(cameraParams);
+        activeFpsRange = fpsRange;
+        idleFpsRange = findIdleFpsRange(cameraParams);
         if (fpsRange.isPresent()) {
             cameraParams.setPreviewFpsRange(fpsRange.get().getA(), fpsRange.get().getB());
             camera.setParameters(cameraParams);
         }
 
         preview = new Preview(camera.getParameters());
-        camera.addCallbackBuffer(new byte[preview.getBufferSize()]);
+
+        final int numCores = Runtime.getRuntime().availableProcessors();
+        // JpegEncoder only understands NV21, the default preview format
+        final boolean javaEncoder = useJavaEncoder && preview.getFormat() == ImageFormat.NV21;
+        final boolean stripEncoder = javaEncoder && useStripEncoder && numCores > 1;
+        // Either one encoder per core, each with its own preview buffer,
+        // or one encoder that spreads each frame over every core
+        final int numEncoders = stripEncoder ? 1 : numCores;
+        final FrameEncoder[] encoders = new FrameEncoder[numEncoders];
+        if (stripEncoder) {
+            encoders[0] = new StripJpegEncoder(numCores);
+        } else {
+            for (int i = 0; i < numEncoders; i++) {
+                encoders[i] = javaEncoder
+                        ? new JpegEncoder()
+                        : new YuvImageEncoder(preview.getFormat());
+            }
+        }
+        final StreamingPipeline newPipeline = new StreamingPipeline(port, preview.getWidth(),
+                preview.getHeight(), preview.getBufferSize(), outputWidths, encoders,
+                jpegQuality, useRateControl ? targetBitrateKbps : 0, targetFps,
+                recordingDirectory, recordingQuotaBytes, preEventSeconds, eventDirectory,
+                rtpDestination, rtpWidth, RTP_TIME_TO_LIVE, metrics, this, this);
+        final int numPreviewBuffers = newPipeline.getNumBuffers();
+        for (int i = 0; i < numPreviewBuffers; i++) {
+            camera.addCallbackBuffer(new byte[preview.getBufferSize()]);
+        }
 
         camera.setParameters(cameraParams);
         camera.setPreviewCallbackWithBuffer(previewCallback);
+        try {
+            newPipeline.start();
+        } catch (IOException e) {
+            camera.release();
+            throw e;
+        }
 
-        // We assumed that the compressed image will be no bigger than
-        // the uncompressed image.
-        jpegOutputStream = new MemoryOutputStream(preview.getBufferSize());
-
-        final MJpegHttpStreamer streamer = new MJpegHttpStreamer(port, preview.getBufferSize());
-        streamer.start();
-
+        boolean isStarted = false;
+        IOException failure = null;
         synchronized (this) {
-            if (!mRunning) {
-                streamer.stop();
-                camera.release();
-                return;
+            if (mRunning) {
+                try {
+                    camera.setPreviewDisplay(previewDisplay);
+                } catch (IOException e) {
+                    failure = e;
+                }
             }
 
-            try {
-                camera.setPreviewDisplay(previewDisplay);
-            } catch (IOException e) {
-                streamer.stop();
+            if (mRunning && failure == null) {
+                pipeline = newPipeline;
+                // Room for every preview buffer and an event
+                frameQueue = new FrameQueue(numPreviewBuffers + 1, frameWaitStrategy);
+                frameThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        frameRun();
+                    }
+                }, TAG + "-frames");
+                frameThread.start();
+                camera.startPreview();
+                mCamera = camera;
+                isStarted = true;
+            } else {
+                newPipeline.stop();
                 camera.release();
-                throw e;
             }
+        }
+        if (!isStarted) {
+            releaseFrames(newPipeline);
+            if (failure != null) {
+                throw failure;
+            }
+            return;
+        }
+    }
 
-            mJpegHttpStreamer = streamer;
-            camera.startPreview();
-            mCamera = camera;
+    /**
+     * Handle the queued preview frames, and the events without a frame
+     * that say the subscribers have changed, until interrupted.
+     */
+    private void frameRun() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        // Nobody can be watching yet
+        setIdle(!pipeline.hasSubscribers());
+        try {
+            while (true) {
+                final FrameQueue.Slot slot = frameQueue.take();
+                final byte[] data = slot.getData();
+                final long timestamp = slot.getTimestamp();
+                final long callbackNanos = slot.getCallbackNanos();
+                frameQueue.free();
+
+                if (data != null) {
+                    metrics.getCallbackLatency().recordSince(callbackNanos);
+                    sendPreviewFrame(data, timestamp);
+                } else if (pipeline.hasSubscribers()) {
+                    // Going idle waits for IDLE_DELAY_MS of preview frames
+                    setIdle(false);
+                    sendIdleFrame();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop() was called
         }
     }
 
@@ -223,44 +422,150 @@ class CameraStreamer implements MessageListener {
         return Optional.empty();
     }
 
+    /**
+     * The supported preview frame rate range with the lowest maximum,
+     * used while nobody is watching.
+     */
+    private Optional<Pair<Integer, Integer>> findIdleFpsRange(Camera.Parameters cameraParams) {
+        final List<int[]> supportedPreviewFpsRanges = cameraParams.getSupportedPreviewFpsRange();
+        if (supportedPreviewFpsRanges == null || supportedPreviewFpsRanges.isEmpty()) {
+            return Optional.empty();
+        }
+        int[] slowest = supportedPreviewFpsRanges.get(0);
+        for (final int[] range : supportedPreviewFpsRanges) {
+            if (range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    < slowest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]) {
+                slowest = range;
+            }
+        }
+        return Optional.of(
+                new Pair<Integer, Integer>(slowest[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                        slowest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]));
+    }
+
+    /**
+     * Slow the preview down while nobody is watching and speed it back
+     * up when someone is.
+     */
+    private void setIdle(final boolean idle) {
+        if (idle != isIdle) {
+            isIdle = idle;
+            setPreviewFpsRange(idle ? idleFpsRange : activeFpsRange);
+        }
+    }
+
+    /**
+     * Encode the last frame captured while nobody was watching, so the
+     * first client gets a frame without waiting for the camera.
+     */
+    private void sendIdleFrame() {
+        if (idleFrame != null) {
+            final byte[] data = idleFrame;
+            idleFrame = null;
+            encodePreviewFrame(data, idleFrameTimestamp);
+        }
+    }
+
+    private void setPreviewFpsRange(final Optional<Pair<Integer, Integer>> range) {
+        if (!range.isPresent()) {
+            return;
+        }
+        synchronized (this) {
+            if (mCamera == null) {
+                return;
+            }
+            final Camera.Parameters cameraParams = mCamera.getParameters();
+            cameraParams.setPreviewFpsRange(range.get().getA(), range.get().getB());
+            try {
+                mCamera.setParameters(cameraParams);
+            } catch (RuntimeException e) {
+                // Some cameras refuse to change rate while previewing,
+                // they just keep running at the old one
+                Log.w(TAG, "Failed to change the preview frame rate", e);
+            }
+        }
+    }
+
     private Pair<Integer, Integer> findPreviewSize(Camera.Parameters cameraParams) {
         final List<Camera.Size> supportedPreviewSizes = cameraParams.getSupportedPreviewSizes();
         final Camera.Size selectedPreviewSize = supportedPreviewSizes.get(previewSizeIndex);
         return new Pair<Integer, Integer>(selectedPreviewSize.width, selectedPreviewSize.height);
     }
 
-    private void sendPreviewFrame(final byte[] data, final Camera camera, final long timestamp) {
-        // Calculate the timestamp
-        final long MILLI_PER_SECOND = 1000L;
-        final long timestampSeconds = timestamp / MILLI_PER_SECOND;
+    private void sendPreviewFrame(final byte[] data, final long timestamp) {
+        metrics.countFrameCaptured();
 
-        // Update and log the frame rate
+        // Update and log the frame rate. The timestamps are in
+        // milliseconds, so the intervals are too.
+        final double MILLI_PER_SECOND = 1000.0;
         final long LOGS_PER_FRAME = 10L;
         numFrames++;
         if (lastTimestamp != Long.MIN_VALUE) {
-            averageSpf.update(timestampSeconds - lastTimestamp);
+            averageFrameIntervalMs.update(timestamp - lastTimestamp);
             if (numFrames % LOGS_PER_FRAME == LOGS_PER_FRAME - 1) {
-                Log.d(TAG, "FPS: " + 1.0 / averageSpf.getAverage());
+                Log.d(TAG, "FPS: " + MILLI_PER_SECOND / averageFrameIntervalMs.getAverage());
+                if (changeDetector != null) {
+                    Log.d(TAG, "Static frames skipped: " + changeDetector.getNumSkippedFrames());
+                }
+                Log.d(TAG, "Frame cache: " + pipeline.getStreamer().getFrameCache());
+                for (final MJpegHttpStreamer.ClientStats stats
+                        : pipeline.getStreamer().getClientStats()) {
+                    Log.d(TAG, "Client " + stats);
+                }
             }
         }
 
-        lastTimestamp = timestampSeconds;
+        lastTimestamp = timestamp;
 
-        // Create JPEG
-        final YuvImage image = new YuvImage(data, preview.getFormat(),
-                preview.getWidth(), preview.getHeight(), null);
+        if (!pipeline.hasSubscribers()) {
+            // Nobody is watching. Keep this frame for the first client
+            // and give the camera back the one kept before it.
+            if (idleFrame != null) {
+                recycle(idleFrame);
+            }
+            idleFrame = data;
+            idleFrameTimestamp = timestamp;
+            if (!isIdle && timestamp - lastWatchedTimestamp >= IDLE_DELAY_MS) {
+                setIdle(true);
+            }
+            return;
+        }
+        lastWatchedTimestamp = timestamp;
+        if (idleFrame != null) {
+            // A client arrived but this frame is newer
+            recycle(idleFrame);
+            idleFrame = null;
+        }
 
-        image.compressToJpeg(preview.getRect(), jpegQuality, jpegOutputStream);
+        encodePreviewFrame(data, timestamp);
+    }
 
-        mJpegHttpStreamer.streamJpeg(jpegOutputStream.getBuffer(), jpegOutputStream.getLength(),
-                timestamp);
+    private void encodePreviewFrame(final byte[] data, final long timestamp) {
+        if (changeDetector != null && !changeDetector.hasChanged(data, preview.getWidth(),
+                preview.getHeight(), timestamp)) {
+            // Nothing worth sending, the clients keep the last frame
+            recycle(data);
+            return;
+        }
 
-        // Clean up
-        jpegOutputStream.seek(0);
-        // I believe that this is thread-safe because we're not
-        // calling methods in other threads. I might be wrong, the
-        // documentation is not clear.
-        camera.addCallbackBuffer(data);
+        if (pipeline.submit(data, timestamp)) {
+            if (changeDetector != null) {
+                changeDetector.accept();
+            }
+        } else {
+            // Every encoder is busy, drop the frame
+            recycle(data);
+        }
     }
-}
 
+    @Override
+    public void recycle(final byte[] data) {
+        // Called on the encoder threads. Camera methods are synchronised
+        // internally, but the camera may have been released by stop().
+        synchronized (this) {
+            if (mCamera != null) {
+                mCamera.addCallbackBuffer(data);
+            }
+        }
+    }
+}
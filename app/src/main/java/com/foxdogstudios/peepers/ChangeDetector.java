@@ -0,0 +1,174 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+/**
+ * Decides whether a preview frame differs enough from the last encoded
+ * frame to be worth encoding.
+ *
+ * Only the Y plane is looked at, and only every sampleStride-th pixel
+ * of every sampleStride-th row. The samples are grouped into square
+ * blocks and a frame has changed if the mean absolute difference of any
+ * block exceeds the threshold, so a small moving object is caught even
+ * though the frame as a whole has barely changed. The samples of the
+ * frame being tested are kept so that accept() can make it the new
+ * reference without touching the preview buffer again.
+ *
+ * Not thread safe.
+ */
+class ChangeDetector {
+    private final int sampleStride;
+    private final int blockSize;
+    private final int threshold;
+    private final long keepAliveMs;
+
+    private int width = -1;
+    private int height = -1;
+    private int numColumns = 0;
+    private int numRows = 0;
+    private byte[] reference = null;
+    private byte[] candidate = null;
+    private int[] blockSums = null;
+    private boolean hasReference = false;
+    private long referenceTimestamp = Long.MIN_VALUE;
+    private long candidateTimestamp = Long.MIN_VALUE;
+    private long numSkippedFrames = 0L;
+
+    /**
+     * @param sampleStride the distance in pixels between samples, both
+     *                     across and down
+     * @param blockSize the width and height of a block in samples
+     * @param threshold the mean absolute difference per sample above
+     *                  which a block has changed
+     * @param keepAliveMs how long an unchanged scene may go without a
+     *                    frame being encoded
+     */
+    ChangeDetector(final int sampleStride, final int blockSize, final int threshold,
+                   final long keepAliveMs) {
+        super();
+
+        if (sampleStride < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("sampleStride and blockSize must be positive");
+        }
+
+        this.sampleStride = sampleStride;
+        this.blockSize = blockSize;
+        this.threshold = threshold;
+        this.keepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Sample the frame and compare it with the reference. Call accept()
+     * if the frame is then encoded.
+     *
+     * @param timestamp the capture time in milliseconds
+     * @return true if the frame has changed or the keep-alive interval
+     * has passed
+     */
+    boolean hasChanged(final byte[] nv21, final int width, final int height,
+                       final long timestamp) {
+        if (width != this.width || height != this.height) {
+            resize(width, height);
+        }
+
+        candidateTimestamp = timestamp;
+        final boolean hasChanged = sampleAndCompare(nv21);
+        if (hasChanged || !hasReference || timestamp - referenceTimestamp >= keepAliveMs) {
+            return true;
+        }
+        numSkippedFrames++;
+        return false;
+    }
+
+    /**
+     * Make the frame last passed to hasChanged() the reference.
+     */
+    void accept() {
+        final byte[] reference = this.reference;
+        this.reference = candidate;
+        candidate = reference;
+        referenceTimestamp = candidateTimestamp;
+        hasReference = true;
+    }
+
+    long getNumSkippedFrames() {
+        return numSkippedFrames;
+    }
+
+    private void resize(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        numColumns = (width + sampleStride - 1) / sampleStride;
+        numRows = (height + sampleStride - 1) / sampleStride;
+        reference = new byte[numColumns * numRows];
+        candidate = new byte[numColumns * numRows];
+        blockSums = new int[(numColumns + blockSize - 1) / blockSize];
+        hasReference = false;
+    }
+
+    /**
+     * Copy the samples into candidate, summing their absolute
+     * differences from the reference block by block.
+     *
+     * @return true if any block has changed
+     */
+    private boolean sampleAndCompare(final byte[] nv21) {
+        final byte[] reference = this.reference;
+        final byte[] candidate = this.candidate;
+        final int[] blockSums = this.blockSums;
+        boolean hasChanged = false;
+
+        for (int firstRow = 0; firstRow < numRows; firstRow += blockSize) {
+            final int endRow = Math.min(numRows, firstRow + blockSize);
+            for (int block = 0; block < blockSums.length; block++) {
+                blockSums[block] = 0;
+            }
+
+            for (int row = firstRow; row < endRow; row++) {
+                final int pixelRowOffset = row * sampleStride * width;
+                final int sampleRowOffset = row * numColumns;
+                for (int block = 0, firstColumn = 0; firstColumn < numColumns;
+                     block++, firstColumn += blockSize) {
+                    final int endColumn = Math.min(numColumns, firstColumn + blockSize);
+                    int sum = 0;
+                    for (int column = firstColumn; column < endColumn; column++) {
+                        final byte sample = nv21[pixelRowOffset + column * sampleStride];
+                        candidate[sampleRowOffset + column] = sample;
+                        final int difference =
+                                (sample & 0xFF) - (reference[sampleRowOffset + column] & 0xFF);
+                        sum += difference < 0 ? -difference : difference;
+                    }
+                    blockSums[block] += sum;
+                }
+            }
+
+            // Every sample must be copied, so carry on once a block has
+            // changed but stop comparing
+            if (!hasChanged) {
+                final int blockRows = endRow - firstRow;
+                for (int block = 0; block < blockSums.length; block++) {
+                    final int blockColumns =
+                            Math.min(numColumns - block * blockSize, blockSize);
+                    if (blockSums[block] > threshold * blockRows * blockColumns) {
+                        hasChanged = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return hasChanged;
+    }
+}
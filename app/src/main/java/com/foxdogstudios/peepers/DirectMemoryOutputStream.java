@@ -0,0 +1,76 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A MemoryOutputStream that writes into a direct buffer, so what is
+ * written can go out to a channel without being copied. Like
+ * MemoryOutputStream it always keeps the last byte free.
+ *
+ * The stream owns the buffer's position and limit; readers should take
+ * a duplicate().
+ */
+class DirectMemoryOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+    private int length = 0;
+
+    DirectMemoryOutputStream(final ByteBuffer buffer) {
+        super();
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int count)
+            throws IOException {
+        checkSpace(count);
+        this.buffer.position(length);
+        this.buffer.put(buffer, offset, count);
+        length += count;
+    }
+
+    @Override
+    public void write(final byte[] buffer) throws IOException {
+        write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(final int oneByte) throws IOException {
+        checkSpace(1);
+        buffer.put(length++, (byte) oneByte);
+    }
+
+    private void checkSpace(final int length) throws IOException {
+        if (this.length + length >= buffer.capacity()) {
+            throw new IOException("insufficient space in buffer");
+        }
+    }
+
+    void seek(final int index) {
+        length = index;
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,394 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes preview frames on several threads at once and publishes them
+ * to the streamer in capture order. Each frame is encoded once for
+ * every stream that has subscribers. A frame is downscaled at most once
+ * per output size, however many qualities of that size are wanted.
+ *
+ * Each output size has its own quality controller, which sets the
+ * quality of that size's automatic-quality stream and is told only that
+ * stream's sizes, so that clients of the fixed qualities or of other
+ * sizes do not move it.
+ *
+ * Every submitted frame gets a sequence number. Finished frames wait
+ * in a reorder window until all earlier frames have been published.
+ * If the oldest unfinished frame is older than the deadline while a
+ * newer frame is ready, it is skipped so that one slow encode cannot
+ * hold back the stream; it is dropped when it finishes.
+ */
+class EncoderPool {
+    private static final String TAG = EncoderPool.class.getSimpleName();
+
+    /**
+     * Gives preview buffers back to the camera once they are encoded.
+     * Called from the encoder threads.
+     */
+    interface BufferRecycler {
+        void recycle(byte[] data);
+    }
+
+    private final FrameEncoder[] encoders;
+    private final MJpegHttpStreamer streamer;
+    private final FrameCache frameCache;
+    private final BufferRecycler recycler;
+    private final int width;
+    private final int height;
+    // One per output size, null for the full size
+    private final Nv21Scaler[] scalers;
+    // One per output size
+    private final QualityController[] qualityControllers;
+    private final Metrics metrics;
+    private final long deadlineNanos;
+
+    private final Job[] window;
+    private final BlockingQueue<Job> freeJobs;
+    private final BlockingQueue<Job> pendingJobs;
+    private final Thread[] workers;
+
+    // Guarded by window
+    private long nextSubmitSequence = 0L;
+    private long nextPublishSequence = 0L;
+
+    private volatile boolean isRunning = false;
+
+    /**
+     * @param encoders one encoder per worker thread
+     * @param numBuffers the number of preview buffers given to the
+     *                   camera, the most frames that can be queued or
+     *                   being encoded at once
+     * @param scalers one per output size of the streamer's frame cache,
+     *                null for the full size
+     * @param qualityControllers one per output size, each choosing the
+     *                           quality of its size's automatic-quality
+     *                           stream and told how big it came out
+     * @param metrics where the queue, encode and publish latencies and
+     *                dropped frames are recorded
+     */
+    EncoderPool(final FrameEncoder[] encoders, final int numBuffers,
+                final MJpegHttpStreamer streamer, final BufferRecycler recycler,
+                final int width, final int height, final Nv21Scaler[] scalers,
+                final QualityController[] qualityControllers, final Metrics metrics,
+                final long deadlineMs) {
+        super();
+
+        if (encoders.length == 0) {
+            throw new IllegalArgumentException("at least one encoder is required");
+        }
+        if (numBuffers < encoders.length) {
+            throw new IllegalArgumentException(
+                    "numBuffers must be at least the number of encoders");
+        }
+        if (qualityControllers.length != scalers.length) {
+            throw new IllegalArgumentException("one quality controller per size is required");
+        }
+
+        this.encoders = encoders;
+        this.streamer = streamer;
+        frameCache = streamer.getFrameCache();
+        this.recycler = recycler;
+        this.width = width;
+        this.height = height;
+        this.scalers = scalers;
+        this.qualityControllers = qualityControllers;
+        this.metrics = metrics;
+        deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+
+        // A buffer goes back to the camera as soon as it is encoded but
+        // its job may wait in the window behind a slower frame, so allow
+        // for every buffer being refilled while the window is full.
+        final int numJobs = 2 * numBuffers;
+        window = new Job[numJobs];
+        freeJobs = new ArrayBlockingQueue<Job>(numJobs);
+        pendingJobs = new ArrayBlockingQueue<Job>(numJobs);
+        for (int index = 0; index < numJobs; index++) {
+            freeJobs.add(new Job(frameCache.getNumStreams(), scalers.length));
+        }
+        workers = new Thread[encoders.length];
+    }
+
+    void start() {
+        if (isRunning) {
+            throw new IllegalStateException("EncoderPool is already running");
+        }
+
+        isRunning = true;
+        for (int index = 0; index < workers.length; index++) {
+            final FrameEncoder encoder = encoders[index];
+            workers[index] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerRun(encoder);
+                }
+            }, TAG + "-" + index);
+            workers[index].setDaemon(true);
+            workers[index].start();
+        }
+    }
+
+    void stop() {
+        if (!isRunning) {
+            throw new IllegalStateException("EncoderPool is already stopped");
+        }
+
+        isRunning = false;
+        for (final Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Wait for the workers to finish after stop(), after which none of
+     * them holds a frame.
+     */
+    void join() throws InterruptedException {
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Queue a preview frame for encoding. The buffer is handed to the
+     * recycler once it has been encoded.
+     *
+     * @return false if every job is busy, in which case the caller
+     * still owns the buffer
+     */
+    boolean submit(final byte[] data, final long timestamp) {
+        Job job = freeJobs.poll();
+        if (job == null) {
+            // Finished frames are stuck behind a slow one, skip it
+            synchronized (window) {
+                publishInOrder(true /* windowIsFull */);
+            }
+            job = freeJobs.poll();
+        }
+        if (job == null) {
+            countDroppedFrame();
+            return false;
+        }
+
+        job.data = data;
+        job.timestamp = timestamp;
+        for (int size = 0; size < qualityControllers.length; size++) {
+            job.qualities[size] = qualityControllers[size].getQuality();
+        }
+        job.submitNanos = System.nanoTime();
+        job.numFrames = 0;
+        job.isDone = false;
+        synchronized (window) {
+            job.sequence = nextSubmitSequence++;
+            window[(int) (job.sequence % window.length)] = job;
+        }
+        pendingJobs.add(job);
+        return true;
+    }
+
+    private void workerRun(final FrameEncoder encoder) {
+        // Scaled copies of the frame, one per output size
+        final byte[][] scaled = new byte[scalers.length][];
+        while (isRunning) {
+            final Job job;
+            try {
+                job = pendingJobs.take();
+            } catch (InterruptedException e) {
+                // stop() may have been called
+                return;
+            }
+            final long startNanos = System.nanoTime();
+            metrics.getQueueLatency().record(startNanos - job.submitNanos);
+
+            // Streams of the same size are next to each other
+            int scaledSize = -1;
+            for (int stream = 0; stream < job.frames.length; stream++) {
+                if (!frameCache.hasSubscribers(stream)) {
+                    continue;
+                }
+                job.numFrames++;
+                final int size = frameCache.getSizeIndex(stream);
+                if (size != scaledSize && scalers[size] != null) {
+                    if (scaled[size] == null) {
+                        scaled[size] = new byte[scalers[size].getBufferSize()];
+                    }
+                    scalers[size].scale(job.data, scaled[size]);
+                }
+                scaledSize = size;
+                job.frames[stream] = encode(encoder, job, stream, scaled[size]);
+            }
+            metrics.getEncodeLatency().recordSince(startNanos);
+
+            final byte[] data = job.data;
+            job.data = null;
+            recycler.recycle(data);
+            finish(job);
+        }
+    }
+
+    /**
+     * Encode the job's frame for one stream, straight into a claimed
+     * slot of the stream's ring.
+     *
+     * @param scaled the frame scaled to the stream's size, or null if
+     *               the stream is at the full size
+     * @return the encoded frame, or null if it could not be encoded or
+     * was too big for the slot
+     */
+    private FrameRing.Frame encode(final FrameEncoder encoder, final Job job, final int stream,
+                                   final byte[] scaled) {
+        final FrameRing.Frame frame = streamer.claimFrame(stream);
+        if (frame == null) {
+            return null;
+        }
+
+        final int size = frameCache.getSizeIndex(stream);
+        final int quality = frameCache.getQuality(stream) == FrameCache.AUTO_QUALITY
+                ? job.qualities[size]
+                : frameCache.getQuality(stream);
+        final Nv21Scaler scaler = scalers[size];
+        final boolean isEncoded;
+        if (scaler == null) {
+            isEncoded = encoder.encode(job.data, width, height, quality,
+                    frame.getOutputStream());
+        } else {
+            isEncoded = encoder.encode(scaled, scaler.getWidth(), scaler.getHeight(),
+                    quality, frame.getOutputStream());
+        }
+
+        if (!isEncoded) {
+            streamer.abandonFrame(stream, frame);
+            return null;
+        }
+        frameCache.countEncode();
+        return frame;
+    }
+
+    private void finish(final Job job) {
+        synchronized (window) {
+            job.isDone = true;
+            job.doneNanos = System.nanoTime();
+
+            if (job.sequence < nextPublishSequence) {
+                // Skipped while it was being encoded
+                dropAndFree(job);
+                return;
+            }
+
+            publishInOrder(false /* windowIsFull */);
+        }
+    }
+
+    /**
+     * Publish every finished frame at the head of the window, in
+     * sequence order. An unfinished head is skipped if a later frame is
+     * done and either the head has missed its deadline or the window is
+     * full. A skipped job is freed by whichever worker finishes it.
+     */
+    private void publishInOrder(final boolean windowIsFull) {
+        final long now = System.nanoTime();
+        while (nextPublishSequence < nextSubmitSequence) {
+            final Job head = window[(int) (nextPublishSequence % window.length)];
+            if (head.isDone) {
+                publish(head);
+                freeJobs.add(head);
+            } else if (!(windowIsFull || now - head.submitNanos > deadlineNanos)
+                    || !isLaterJobDone(head.sequence)) {
+                break;
+            }
+            nextPublishSequence++;
+        }
+    }
+
+    /**
+     * Publish every stream of the job's frame. A frame no client wanted
+     * is not counted as dropped.
+     */
+    private void publish(final Job job) {
+        int numPublished = 0;
+        for (int stream = 0; stream < job.frames.length; stream++) {
+            final FrameRing.Frame frame = job.frames[stream];
+            if (frame != null) {
+                if (frameCache.getQuality(stream) == FrameCache.AUTO_QUALITY) {
+                    qualityControllers[frameCache.getSizeIndex(stream)].onFramePublished(
+                            frame.getLength(), job.timestamp);
+                }
+                numPublished++;
+                streamer.publishFrame(stream, frame, job.timestamp);
+                job.frames[stream] = null;
+            }
+        }
+        if (numPublished > 0) {
+            metrics.countFramePublished();
+            metrics.getPublishLatency().recordSince(job.doneNanos);
+        } else if (job.numFrames > 0) {
+            countDroppedFrame();
+        }
+    }
+
+    private boolean isLaterJobDone(final long sequence) {
+        for (long later = sequence + 1L; later < nextSubmitSequence; later++) {
+            if (window[(int) (later % window.length)].isDone) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropAndFree(final Job job) {
+        for (int stream = 0; stream < job.frames.length; stream++) {
+            if (job.frames[stream] != null) {
+                streamer.abandonFrame(stream, job.frames[stream]);
+                job.frames[stream] = null;
+            }
+        }
+        countDroppedFrame();
+        freeJobs.add(job);
+    }
+
+    private void countDroppedFrame() {
+        metrics.countFrameDropped();
+        for (final QualityController qualityController : qualityControllers) {
+            qualityController.onFrameDropped();
+        }
+    }
+
+    private static final class Job {
+        private byte[] data = null;
+        private long timestamp = Long.MIN_VALUE;
+        // The automatic quality of each output size
+        private final int[] qualities;
+        private long submitNanos = 0L;
+        private long doneNanos = 0L;
+        private long sequence = 0L;
+        // The encoded frame for each stream, null if it was not wanted
+        // or could not be encoded
+        private final FrameRing.Frame[] frames;
+        // The number of streams the frame was wanted for
+        private int numFrames = 0;
+        private boolean isDone = false;
+
+        private Job(final int numStreams, final int numSizes) {
+            super();
+            frames = new FrameRing.Frame[numStreams];
+            qualities = new int[numSizes];
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The encoded versions of the latest captured frame, one per stream.
+ *
+ * A stream is an output size paired with a quality, either a fixed
+ * quality or whatever the quality controller chooses. Each stream is
+ * encoded at most once per captured frame however many clients want it,
+ * and only while at least one client is subscribed. Its ring is only
+ * allocated when the first client subscribes, from the buffer pool of
+ * its output size. Publishing the next frame of a stream evicts the
+ * previous one.
+ *
+ * A frame handed to a client counts as a hit if it had already been
+ * handed to another client, otherwise as a miss; together with the
+ * number of encodes this shows how much sharing saves.
+ */
+class FrameCache {
+    /**
+     * The quality of a stream that follows the quality controller.
+     */
+    static final int AUTO_QUALITY = -1;
+
+    private final int numFrames;
+    private final int[] widths;
+    private final BufferPool[] pools;
+    // Each pool once, however many output sizes share it
+    private final List<BufferPool> distinctPools = new ArrayList<BufferPool>();
+    // AUTO_QUALITY first, then the fixed qualities
+    private final int[] qualities;
+
+    private final AtomicReferenceArray<FrameRing> rings;
+    private final AtomicIntegerArray numSubscribers;
+    // Only used by the streamer's worker thread
+    private final long[] lastDeliveredSequences;
+
+    private final AtomicLong numHits = new AtomicLong(0L);
+    private final AtomicLong numMisses = new AtomicLong(0L);
+    private final AtomicLong numEncodes = new AtomicLong(0L);
+
+    /**
+     * @param numFrames the number of frames in each stream's ring
+     * @param widths the width of each output size, the default first
+     * @param pools the buffers of each output size, big enough for its
+     *              largest JPEG
+     * @param fixedQualities the qualities clients may ask for besides
+     *                       the automatic one
+     */
+    FrameCache(final int numFrames, final int[] widths, final BufferPool[] pools,
+               final int[] fixedQualities) {
+        super();
+
+        if (widths.length == 0 || widths.length != pools.length) {
+            throw new IllegalArgumentException("every output size needs a buffer pool");
+        }
+
+        this.numFrames = numFrames;
+        this.widths = widths.clone();
+        this.pools = pools.clone();
+        for (final BufferPool pool : pools) {
+            if (!distinctPools.contains(pool)) {
+                distinctPools.add(pool);
+            }
+        }
+        qualities = new int[fixedQualities.length + 1];
+        qualities[0] = AUTO_QUALITY;
+        System.arraycopy(fixedQualities, 0, qualities, 1, fixedQualities.length);
+
+        final int numStreams = widths.length * qualities.length;
+        rings = new AtomicReferenceArray<FrameRing>(numStreams);
+        numSubscribers = new AtomicIntegerArray(numStreams);
+        lastDeliveredSequences = new long[numStreams];
+    }
+
+    int getNumStreams() {
+        return numSubscribers.length();
+    }
+
+    int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * The index of the output size, in the order given to the
+     * constructor, that a stream is encoded at.
+     */
+    int getSizeIndex(final int stream) {
+        return stream / qualities.length;
+    }
+
+    /**
+     * The quality a stream is encoded at, or AUTO_QUALITY.
+     */
+    int getQuality(final int stream) {
+        return qualities[stream % qualities.length];
+    }
+
+    /**
+     * The stream closest to the width and quality asked for. A negative
+     * width means the default size, a negative quality the automatic
+     * quality.
+     */
+    int findStream(final long width, final long quality) {
+        int size = 0;
+        if (width >= 0L) {
+            for (int index = 1; index < widths.length; index++) {
+                if (Math.abs(widths[index] - width) < Math.abs(widths[size] - width)) {
+                    size = index;
+                }
+            }
+        }
+
+        int level = 0;
+        if (quality >= 0L && qualities.length > 1) {
+            level = 1;
+            for (int index = 2; index < qualities.length; index++) {
+                if (Math.abs(qualities[index] - quality) < Math.abs(qualities[level] - quality)) {
+                    level = index;
+                }
+            }
+        }
+        return size * qualities.length + level;
+    }
+
+    /**
+     * The stream's ring, or null if nobody has ever subscribed to it.
+     */
+    FrameRing getRing(final int stream) {
+        return rings.get(stream);
+    }
+
+    /**
+     * Count a client as wanting a stream, allocating its ring the first
+     * time. Only called by the streamer's worker thread, or before the
+     * streamer is started, e.g. to keep a stream encoded for a recorder.
+     */
+    FrameRing subscribe(final int stream) {
+        FrameRing ring = rings.get(stream);
+        if (ring == null) {
+            ring = new FrameRing(numFrames, pools[getSizeIndex(stream)]);
+            rings.set(stream, ring);
+        }
+        numSubscribers.incrementAndGet(stream);
+        return ring;
+    }
+
+    /**
+     * Count a client as no longer wanting a stream. Once nobody does,
+     * the ring's buffers that are not being read go back to the pool for
+     * the streams that are wanted.
+     */
+    void unsubscribe(final int stream) {
+        if (numSubscribers.decrementAndGet(stream) == 0) {
+            rings.get(stream).trimBuffers();
+        }
+    }
+
+    boolean hasSubscribers(final int stream) {
+        return numSubscribers.get(stream) > 0;
+    }
+
+    boolean hasSubscribers() {
+        for (int stream = 0; stream < numSubscribers.length(); stream++) {
+            if (numSubscribers.get(stream) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The number of subscriptions to every stream.
+     */
+    int getNumSubscribers() {
+        int numTotal = 0;
+        for (int stream = 0; stream < numSubscribers.length(); stream++) {
+            numTotal += numSubscribers.get(stream);
+        }
+        return numTotal;
+    }
+
+    /**
+     * Whether any stream of the given output size has subscribers.
+     */
+    boolean isSizeWanted(final int sizeIndex) {
+        final int first = sizeIndex * qualities.length;
+        for (int stream = first; stream < first + qualities.length; stream++) {
+            if (numSubscribers.get(stream) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void countEncode() {
+        numEncodes.incrementAndGet();
+    }
+
+    /**
+     * Count a frame being handed to a client. Only called by the
+     * streamer's worker thread.
+     */
+    void countDelivery(final int stream, final FrameRing.Frame frame) {
+        if (frame.getSequence() == lastDeliveredSequences[stream]) {
+            numHits.incrementAndGet();
+        } else {
+            lastDeliveredSequences[stream] = frame.getSequence();
+            numMisses.incrementAndGet();
+        }
+    }
+
+    long getNumHits() {
+        return numHits.get();
+    }
+
+    long getNumMisses() {
+        return numMisses.get();
+    }
+
+    long getNumEncodes() {
+        return numEncodes.get();
+    }
+
+    /**
+     * Give the buffers of every ring back to their pools, for the next
+     * cache to reuse. Only once the encoders and the streamer have
+     * stopped.
+     */
+    void releaseBuffers() {
+        for (int stream = 0; stream < rings.length(); stream++) {
+            final FrameRing ring = rings.getAndSet(stream, null);
+            if (ring != null) {
+                ring.releaseBuffers();
+            }
+        }
+    }
+
+    int getNumPooledBuffersInUse() {
+        int numInUse = 0;
+        for (final BufferPool pool : distinctPools) {
+            numInUse += pool.getNumInUse();
+        }
+        return numInUse;
+    }
+
+    int getMaxPooledBuffers() {
+        int maxBuffers = 0;
+        for (final BufferPool pool : distinctPools) {
+            maxBuffers += pool.getMaxBuffers();
+        }
+        return maxBuffers;
+    }
+
+    int getNumPooledBuffersIdle() {
+        int numIdle = 0;
+        for (final BufferPool pool : distinctPools) {
+            numIdle += pool.getNumIdle();
+        }
+        return numIdle;
+    }
+
+    long getNumPoolHits() {
+        long numHits = 0L;
+        for (final BufferPool pool : distinctPools) {
+            numHits += pool.getNumHits();
+        }
+        return numHits;
+    }
+
+    long getNumPoolMisses() {
+        long numMisses = 0L;
+        for (final BufferPool pool : distinctPools) {
+            numMisses += pool.getNumMisses();
+        }
+        return numMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + numHits.get() + " misses=" + numMisses.get()
+                + " encodes=" + numEncodes.get();
+    }
+}
@@ -0,0 +1,33 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.OutputStream;
+
+/**
+ * Compresses preview frames to JPEG. An encoder is only ever used by
+ * one thread at a time, so it may keep scratch state between frames.
+ */
+interface FrameEncoder {
+    /**
+     * Encode a width x height NV21 frame into out, which is usually the
+     * frame ring slot the JPEG is published from.
+     *
+     * @return false if the frame could not be encoded or did not fit in
+     * out, in which case part of it may have been written
+     */
+    boolean encode(byte[] nv21, int width, int height, int quality, OutputStream out);
+}
@@ -0,0 +1,206 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands preview frames from the thread the camera calls back on to the
+ * thread that handles them, without allocating or taking a lock. The
+ * queue is a fixed ring of reusable slots: the producer fills the slot
+ * at the tail and moves the tail on, the consumer reads the slot at the
+ * head and moves the head on once it is done with it.
+ *
+ * Only one thread may offer() and only one may take(). How the consumer
+ * waits for a frame is chosen up front, trading latency against CPU.
+ */
+class FrameQueue {
+    /**
+     * How take() waits for the producer.
+     */
+    enum WaitStrategy {
+        /**
+         * Park until the producer wakes the consumer. Costs nothing while
+         * waiting, but each frame pays for a wake-up.
+         */
+        BLOCK,
+        /**
+         * Park for a short time and look again, so the producer never
+         * has to wake the consumer.
+         */
+        SLEEP,
+        /**
+         * Spin, yielding the CPU between looks.
+         */
+        YIELD,
+        /**
+         * Spin without pause. The lowest latency, but it keeps a core
+         * busy the whole time, and on a single core it starves the
+         * producer.
+         */
+        SPIN
+    }
+
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    private final Slot[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    // The next slot to fill, only moved by the producer
+    private final AtomicLong tail = new AtomicLong(0L);
+    // The next slot to read, only moved by the consumer
+    private final AtomicLong head = new AtomicLong(0L);
+    // The producer's last look at head, so it need not read it every time
+    private long cachedHead = 0L;
+    // The consumer while it is parked waiting for a frame
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * @param capacity the most frames the queue holds, rounded up to a
+     *                 power of two
+     */
+    FrameQueue(final int capacity, final WaitStrategy waitStrategy) {
+        super();
+
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be from 1 to 2^30");
+        }
+
+        final int size = Integer.highestOneBit(capacity) == capacity
+                ? capacity
+                : Integer.highestOneBit(capacity) << 1;
+        slots = new Slot[size];
+        for (int index = 0; index < size; index++) {
+            slots[index] = new Slot();
+        }
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Queue a frame. Only called by the producer.
+     *
+     * @param data the frame, or null for an event without a frame
+     * @return false if the queue is full, in which case the caller still
+     * owns the data
+     */
+    boolean offer(final byte[] data, final long timestamp, final long callbackNanos) {
+        final long position = tail.get();
+        if (position - cachedHead == slots.length) {
+            cachedHead = head.get();
+            if (position - cachedHead == slots.length) {
+                return false;
+            }
+        }
+
+        final Slot slot = slots[(int) position & mask];
+        slot.data = data;
+        slot.timestamp = timestamp;
+        slot.callbackNanos = callbackNanos;
+        tail.set(position + 1L);
+
+        if (waitStrategy == WaitStrategy.BLOCK) {
+            // Read after moving the tail, so either the consumer sees the
+            // new tail before parking or the producer sees it waiting
+            final Thread consumer = waitingConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the oldest frame. The slot stays the consumer's until it
+     * calls free(), and must not be used after that. Only called by the
+     * consumer.
+     */
+    Slot take() throws InterruptedException {
+        final long position = head.get();
+        while (tail.get() == position) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            switch (waitStrategy) {
+                case BLOCK:
+                    waitingConsumer = Thread.currentThread();
+                    if (tail.get() == position) {
+                        LockSupport.park(this);
+                    }
+                    waitingConsumer = null;
+                    break;
+                case SLEEP:
+                    LockSupport.parkNanos(this, SLEEP_NANOS);
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    break;
+            }
+        }
+        return slots[(int) position & mask];
+    }
+
+    /**
+     * Give the slot from the last take() back to the producer.
+     */
+    void free() {
+        final long position = head.get();
+        if (position == tail.get()) {
+            throw new IllegalStateException("nothing has been taken");
+        }
+        slots[(int) position & mask].data = null;
+        head.set(position + 1L);
+    }
+
+    int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * A queued frame, reused once the consumer frees it.
+     */
+    static final class Slot {
+        private byte[] data = null;
+        private long timestamp = 0L;
+        private long callbackNanos = 0L;
+
+        private Slot() {
+            super();
+        }
+
+        /**
+         * The frame, or null for an event without one.
+         */
+        byte[] getData() {
+            return data;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * When the producer got the frame, a System.nanoTime() reading.
+         */
+        long getCallbackNanos() {
+            return callbackNanos;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of reusable JPEG slots. The encoder claims a free
+ * slot, writes straight into it and publishes it as the latest frame.
+ * Readers pin the latest frame while they send it, which stops the
+ * encoder from reusing that slot until every reader has released it.
+ * The slots are direct buffers from a BufferPool, so readers can write
+ * them to a channel without a copy. A slot takes its buffer the first
+ * time it is claimed and keeps it until trimBuffers() or
+ * releaseBuffers(); while the pool is at its cap, empty slots cannot be
+ * claimed.
+ *
+ * claim() and acquireLatest() may be called from any thread, publish()
+ * must only be called by one thread at a time.
+ */
+class FrameRing {
+    private static final int NO_FRAME = -1;
+
+    private final BufferPool pool;
+    private final Frame[] frames;
+    private final AtomicInteger latestIndex = new AtomicInteger(NO_FRAME);
+    private final AtomicLong numDroppedFrames = new AtomicLong(0L);
+    private volatile long latestSequence = 0L;
+    // Only a hint of where to start looking for a free slot
+    private volatile int nextClaimIndex = 0;
+
+    FrameRing(final int numFrames, final BufferPool pool) {
+        super();
+
+        if (numFrames < 2) {
+            throw new IllegalArgumentException("numFrames must be at least 2");
+        }
+
+        this.pool = pool;
+        frames = new Frame[numFrames];
+        for (int index = 0; index < numFrames; index++) {
+            frames[index] = new Frame(index);
+        }
+    }
+
+    /**
+     * Claim a slot for writing. Returns null, and counts a dropped
+     * frame, if every slot other than the latest is pinned by a reader
+     * or has no buffer and the pool has none to give.
+     */
+    Frame claim() {
+        final int start = nextClaimIndex;
+        boolean isPoolFull = false;
+        for (int i = 0; i < frames.length; i++) {
+            final Frame frame = frames[(start + i) % frames.length];
+            if (!frame.refCount.compareAndSet(0, Frame.CLAIMED)) {
+                continue;
+            }
+            // publish() sets the latest index before it frees the slot,
+            // so this check cannot miss the frame becoming the latest.
+            if (frame.index == latestIndex.get()) {
+                frame.refCount.set(0);
+                continue;
+            }
+            if (frame.stream == null) {
+                final ByteBuffer buffer = isPoolFull ? null : pool.acquire();
+                if (buffer == null) {
+                    isPoolFull = true;
+                    frame.refCount.set(0);
+                    continue;
+                }
+                frame.setBuffer(buffer);
+            }
+            nextClaimIndex = (frame.index + 1) % frames.length;
+            frame.stream.seek(0);
+            return frame;
+        }
+        numDroppedFrames.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Make a claimed frame the latest frame. The slot of the previous
+     * latest frame becomes free as soon as its readers release it.
+     */
+    void publish(final Frame frame, final long timestamp) {
+        if (frame.refCount.get() != Frame.CLAIMED) {
+            throw new IllegalStateException("frame has not been claimed");
+        }
+
+        frame.timestamp = timestamp;
+        frame.sequence = latestSequence + 1L;
+        latestSequence = frame.sequence;
+        latestIndex.set(frame.index);
+        frame.refCount.set(0);
+    }
+
+    /**
+     * Return a claimed frame without publishing it, e.g. because the
+     * encoder failed.
+     */
+    void abandon(final Frame frame) {
+        if (!frame.refCount.compareAndSet(Frame.CLAIMED, 0)) {
+            throw new IllegalStateException("frame has not been claimed");
+        }
+    }
+
+    /**
+     * Pin and return the latest frame, or null if nothing has been
+     * published yet. The caller must release() the frame.
+     */
+    Frame acquireLatest() {
+        while (true) {
+            final int index = latestIndex.get();
+            if (index == NO_FRAME) {
+                return null;
+            }
+            final Frame frame = frames[index];
+            if (!frame.tryRetain()) {
+                // The slot is still being published, or it was reclaimed
+                // after being superseded; try again with the latest index.
+                continue;
+            }
+            // Between reading the index and pinning the slot, the slot
+            // may have been superseded, claimed, partly written and
+            // abandoned, which frees it again. Pinned, it cannot be
+            // claimed, so if it is still the latest its contents are
+            // those of the last publish().
+            if (latestIndex.get() == index) {
+                return frame;
+            }
+            frame.release();
+        }
+    }
+
+    long getLatestSequence() {
+        return latestSequence;
+    }
+
+    int getNumFrames() {
+        return frames.length;
+    }
+
+    long getNumDroppedFrames() {
+        return numDroppedFrames.get();
+    }
+
+    /**
+     * Give the buffer of every slot that is neither claimed nor being
+     * read back to the pool, the latest frame's included. May be called
+     * from any thread while the ring is in use.
+     */
+    void trimBuffers() {
+        for (final Frame frame : frames) {
+            if (!frame.refCount.compareAndSet(0, Frame.CLAIMED)) {
+                continue;
+            }
+            if (frame.stream != null) {
+                // Before the slot is freed, as publish() does, so that
+                // acquireLatest() cannot pin it once it is empty
+                latestIndex.compareAndSet(frame.index, NO_FRAME);
+                pool.release(frame.stream.getBuffer());
+                frame.stream = null;
+                frame.contents = null;
+            }
+            frame.refCount.set(0);
+        }
+    }
+
+    /**
+     * Give every slot's buffer back to the pool. Only once nothing will
+     * claim, read or publish a frame of the ring again.
+     */
+    void releaseBuffers() {
+        for (final Frame frame : frames) {
+            if (frame.stream != null) {
+                pool.release(frame.stream.getBuffer());
+                frame.stream = null;
+                frame.contents = null;
+            }
+        }
+    }
+
+    static final class Frame {
+        private static final int CLAIMED = -1;
+
+        private final int index;
+        // Null until the slot is first claimed. Set while claimed, so
+        // refCount orders it before any reader.
+        private DirectMemoryOutputStream stream = null;
+        // Only used by the publishing thread
+        private ByteBuffer contents = null;
+        // CLAIMED while being written, otherwise the number of readers
+        private final AtomicInteger refCount = new AtomicInteger(0);
+        private long sequence = 0L;
+        private long timestamp = Long.MIN_VALUE;
+
+        private Frame(final int index) {
+            super();
+            this.index = index;
+        }
+
+        private void setBuffer(final ByteBuffer buffer) {
+            stream = new DirectMemoryOutputStream(buffer);
+            contents = buffer.duplicate();
+        }
+
+        private boolean tryRetain() {
+            while (true) {
+                final int count = refCount.get();
+                if (count == CLAIMED) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Take an extra reference to a frame that is already pinned.
+         */
+        void retain() {
+            if (!tryRetain()) {
+                throw new IllegalStateException("frame is not pinned");
+            }
+        }
+
+        void release() {
+            if (refCount.decrementAndGet() < 0) {
+                throw new IllegalStateException("frame released too many times");
+            }
+        }
+
+        /**
+         * The stream the encoder writes into while the frame is claimed.
+         */
+        DirectMemoryOutputStream getOutputStream() {
+            return stream;
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        /**
+         * The slot's whole buffer. Take a duplicate() to read it.
+         */
+        ByteBuffer getBuffer() {
+            return stream.getBuffer();
+        }
+
+        /**
+         * A view of the frame from its first byte to its last, for the
+         * thread publishing it.
+         */
+        ByteBuffer getContents() {
+            contents.clear();
+            contents.limit(stream.getLength());
+            return contents;
+        }
+
+        int getLength() {
+            return stream.getLength();
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds response heads into a fixed byte array so that responding to
+ * a request does not allocate.
+ */
+class HeaderBuilder {
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    private int length = 0;
+
+    HeaderBuilder(final int capacity) {
+        super();
+        bytes = new byte[capacity];
+        buffer = ByteBuffer.wrap(bytes);
+    }
+
+    HeaderBuilder clear() {
+        length = 0;
+        return this;
+    }
+
+    HeaderBuilder append(final byte[] ascii) {
+        System.arraycopy(ascii, 0, bytes, length, ascii.length);
+        length += ascii.length;
+        return this;
+    }
+
+    HeaderBuilder append(final long decimal) {
+        length = Ascii.putDecimal(decimal, bytes, length);
+        return this;
+    }
+
+    /**
+     * Return the built bytes, ready to be written. The buffer is reused
+     * by the next build.
+     */
+    ByteBuffer toByteBuffer() {
+        buffer.limit(length);
+        buffer.position(0);
+        return buffer;
+    }
+}
@@ -0,0 +1,616 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The state of one client connection to MJpegHttpStreamer. Only the
+ * streamer's worker thread may call into a connection, except for
+ * getStats().
+ */
+class HttpConnection {
+    static final int END_OF_STREAM = -1;
+    static final int NO_STREAM = -1;
+
+    private static final int STATE_READING_REQUEST = 0;
+    private static final int STATE_WAITING_FOR_FRAME = 1;
+    private static final int STATE_RESPONDING = 2;
+    private static final int STATE_STREAMING = 3;
+    private static final int STATE_PLAYING_BACK = 4;
+    private static final int STATE_WEBSOCKET = 5;
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int RESPONSE_HEADER_SIZE = 512;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Metrics metrics;
+    private final String address;
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final HeaderBuilder responseHeader = new HeaderBuilder(RESPONSE_HEADER_SIZE);
+    private final PartHeader partHeader = new PartHeader();
+    private final ByteBuffer boundary;
+    // One view per ring slot, created on first use, so that sending
+    // a frame does not allocate a new ByteBuffer. The rings all have the
+    // same number of slots. The views share the slots' direct buffers,
+    // so the JPEG goes to the socket without a copy.
+    private final ByteBuffer[] frameViews;
+    // The slot buffer each view is of
+    private final ByteBuffer[] frameViewSources;
+    // Header, JPEG and trailer, sent with one gathering write
+    private final ByteBuffer[] pending = new ByteBuffer[] {EMPTY, EMPTY, EMPTY};
+    private int state = STATE_READING_REQUEST;
+    private boolean keepAlive = false;
+    private long lastActivityNanos = System.nanoTime();
+    // The stream (size and quality) the client is streaming or waiting for
+    private volatile int subscribedStream = NO_STREAM;
+    // When the client subscribed, while it waits for its first frame
+    private long subscribedNanos = 0L;
+    private boolean isAwaitingFirstFrame = false;
+    // The frame being sent, pinned until it has been written
+    private FrameRing.Frame sending = null;
+    private long sendingStartNanos = 0L;
+    // The newest frame offered while another was being sent
+    private FrameRing.Frame mailbox = null;
+    // The frames being played back, the current one is sent once it is
+    // due
+    private PlaybackSource playback = null;
+    private boolean hasPlaybackFrame = false;
+    private boolean isSendingPlaybackFrame = false;
+    private long playbackStartNanos = 0L;
+    private long playbackStartTimestamp = 0L;
+    private double playbackSpeed = 1.0;
+    // WebSocket streaming: the frames sent but not yet acknowledged, at
+    // most ackWindow of them
+    private WebSocketParser webSocketParser = null;
+    private ByteBuffer messageHeader = null;
+    private ByteBuffer controlFrame = null;
+    private boolean hasControlFrame = false;
+    private boolean isClosing = false;
+    private int ackWindow = 0;
+    private int numUnacknowledged = 0;
+    private long lastAckNanos = 0L;
+
+    // Written by the worker thread only
+    private volatile long numFramesSent = 0L;
+    private volatile long numDroppedFrames = 0L;
+    private volatile long numBytesSent = 0L;
+    private volatile long lastSequence = 0L;
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+
+    HttpConnection(final SocketChannel channel, final SelectionKey key,
+                   final byte[] boundaryLines, final int numFrames, final Metrics metrics) {
+        super();
+        this.channel = channel;
+        this.key = key;
+        this.metrics = metrics;
+        address = String.valueOf(channel.socket().getRemoteSocketAddress());
+        boundary = ByteBuffer.wrap(boundaryLines);
+        frameViews = new ByteBuffer[numFrames];
+        frameViewSources = new ByteBuffer[numFrames];
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    HttpRequestParser getRequest() {
+        return parser;
+    }
+
+    /**
+     * Read whatever the client has sent and carry on parsing the
+     * request head.
+     *
+     * @return a HttpRequestParser result, or END_OF_STREAM if the
+     * client has closed the connection
+     */
+    int readRequest() throws IOException {
+        final int numBytesRead = channel.read(readBuffer);
+        if (numBytesRead < 0) {
+            return END_OF_STREAM;
+        }
+        if (numBytesRead > 0) {
+            lastActivityNanos = System.nanoTime();
+        }
+        return parseBufferedRequest();
+    }
+
+    /**
+     * Carry on parsing with the bytes that have already been read, e.g.
+     * a request pipelined behind the one just answered.
+     */
+    int parseBufferedRequest() {
+        readBuffer.flip();
+        final int result = parser.parse(readBuffer);
+        readBuffer.compact();
+        return result;
+    }
+
+    int getSubscribedStream() {
+        return subscribedStream;
+    }
+
+    void setSubscribedStream(final int stream) {
+        if (subscribedStream == NO_STREAM && stream != NO_STREAM) {
+            subscribedNanos = System.nanoTime();
+            isAwaitingFirstFrame = true;
+        }
+        subscribedStream = stream;
+    }
+
+    boolean isReadingRequest() {
+        return state == STATE_READING_REQUEST;
+    }
+
+    boolean isWaitingForFrame() {
+        return state == STATE_WAITING_FOR_FRAME;
+    }
+
+    /**
+     * Hold the response until the next frame is published.
+     */
+    void waitForFrame() {
+        state = STATE_WAITING_FOR_FRAME;
+        key.interestOps(0);
+    }
+
+    /**
+     * Start a response of the given head and, if frame is not null, the
+     * frame's JPEG as the body. The connection pins the frame until it
+     * has been written. The response head is built with
+     * getResponseHeader(). Call write() to send it.
+     */
+    void respond(final ByteBuffer head, final FrameRing.Frame frame,
+                 final boolean keepAlive) {
+        state = STATE_RESPONDING;
+        this.keepAlive = keepAlive;
+        pending[0] = head;
+        if (frame != null) {
+            frame.retain();
+            sending = frame;
+            sendingStartNanos = System.nanoTime();
+            pending[1] = viewOf(frame);
+        } else {
+            pending[1] = EMPTY;
+        }
+        pending[2] = EMPTY;
+    }
+
+    /**
+     * Start a response of the given head and body. The body must not be
+     * changed until the response has been written. Call write() to send
+     * it.
+     */
+    void respond(final ByteBuffer head, final ByteBuffer body, final boolean keepAlive) {
+        state = STATE_RESPONDING;
+        this.keepAlive = keepAlive;
+        pending[0] = head;
+        pending[1] = body;
+        pending[2] = EMPTY;
+    }
+
+    /**
+     * Send the multipart response head, after which every offered frame
+     * is sent as a part. Call write() to send it.
+     */
+    void startStreaming(final byte[] head) {
+        state = STATE_STREAMING;
+        pending[0] = ByteBuffer.wrap(head);
+        pending[1] = EMPTY;
+        pending[2] = EMPTY;
+    }
+
+    /**
+     * Send the WebSocket handshake response, after which every offered
+     * frame is sent as a binary message. Each message the client sends
+     * acknowledges one frame; once ackWindow frames are unacknowledged,
+     * only the newest frame offered is kept until an acknowledgement
+     * arrives. Call write() to send it.
+     */
+    void startWebSocket(final ByteBuffer head, final int ackWindow) {
+        state = STATE_WEBSOCKET;
+        keepAlive = false;
+        pending[0] = head;
+        pending[1] = EMPTY;
+        pending[2] = EMPTY;
+        webSocketParser = new WebSocketParser();
+        messageHeader = ByteBuffer.allocate(WebSocket.MAX_HEADER_SIZE);
+        controlFrame = ByteBuffer.allocate(2 + WebSocket.MAX_CONTROL_PAYLOAD);
+        this.ackWindow = ackWindow;
+        numUnacknowledged = 0;
+        lastAckNanos = System.nanoTime();
+    }
+
+    boolean isWebSocket() {
+        return state == STATE_WEBSOCKET;
+    }
+
+    /**
+     * Read what a WebSocket client has sent, counting its
+     * acknowledgements and answering pings and a close, then carry on
+     * writing.
+     *
+     * @return true once the connection should be closed: the client
+     * has gone, broken the protocol or been answered its close
+     */
+    boolean readWebSocket() throws IOException {
+        final int numBytesRead = channel.read(readBuffer);
+        if (numBytesRead < 0) {
+            return true;
+        }
+        if (numBytesRead > 0) {
+            lastActivityNanos = System.nanoTime();
+        }
+
+        readBuffer.flip();
+        try {
+            while (true) {
+                final int result = webSocketParser.parse(readBuffer);
+                if (result == WebSocketParser.INCOMPLETE) {
+                    break;
+                } else if (result == WebSocketParser.MESSAGE) {
+                    // Ignore acknowledgements of frames never sent
+                    if (numUnacknowledged > 0) {
+                        numUnacknowledged--;
+                    }
+                    lastAckNanos = System.nanoTime();
+                } else if (result == WebSocketParser.PING) {
+                    queueControlFrame(WebSocket.OPCODE_PING, WebSocket.OPCODE_PONG);
+                } else if (result == WebSocketParser.CLOSE) {
+                    queueControlFrame(WebSocket.OPCODE_CLOSE, WebSocket.OPCODE_CLOSE);
+                    isClosing = true;
+                    break;
+                } else {
+                    return true;
+                }
+            }
+        } finally {
+            readBuffer.compact();
+        }
+        return write();
+    }
+
+    /**
+     * Answer a ping or close with the same payload, once the message
+     * being sent has finished. A later ping replaces an unanswered one.
+     */
+    private void queueControlFrame(final int received, final int opcode) {
+        if (isClosing) {
+            return;
+        }
+        // Only the status code of a close is echoed
+        final int length = received == WebSocket.OPCODE_CLOSE
+                ? Math.min(2, webSocketParser.getControlLength())
+                : webSocketParser.getControlLength();
+        controlFrame.clear();
+        WebSocket.putHeader(controlFrame, opcode, length);
+        controlFrame.put(webSocketParser.getControlPayload(), 0, length);
+        controlFrame.flip();
+        hasControlFrame = true;
+    }
+
+    /**
+     * Send the multipart response head, after which the source's frames
+     * are sent as parts, paced by the times they were captured. The
+     * connection closes the source when it is closed. Call write()
+     * to send it and again whenever getPlaybackDueNanos() has passed.
+     *
+     * @param playback at the first frame to send
+     * @param speed how many times faster than real time to play back
+     */
+    void startPlayback(final byte[] head, final PlaybackSource playback,
+                       final double speed) {
+        state = STATE_PLAYING_BACK;
+        keepAlive = false;
+        pending[0] = ByteBuffer.wrap(head);
+        pending[1] = EMPTY;
+        pending[2] = EMPTY;
+        this.playback = playback;
+        hasPlaybackFrame = true;
+        isSendingPlaybackFrame = false;
+        playbackStartNanos = System.nanoTime();
+        playbackStartTimestamp = playback.getTimestamp();
+        playbackSpeed = speed;
+    }
+
+    /**
+     * When the next frame of the playback should be sent, in
+     * System.nanoTime(), or Long.MAX_VALUE if the connection is not
+     * waiting to send one.
+     */
+    long getPlaybackDueNanos() {
+        if (state != STATE_PLAYING_BACK || !hasPlaybackFrame || isSendingPlaybackFrame
+                || hasRemaining()) {
+            return Long.MAX_VALUE;
+        }
+        return playbackStartNanos + (long) ((playback.getTimestamp() - playbackStartTimestamp)
+                * 1000000.0 / playbackSpeed);
+    }
+
+    /**
+     * Called once a response has been written. Returns false if the
+     * connection should be closed, otherwise gets ready for the next
+     * request.
+     */
+    boolean finishResponse() {
+        if (!keepAlive) {
+            return false;
+        }
+        state = STATE_READING_REQUEST;
+        parser.reset();
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    /**
+     * Whether the connection has been waiting for a request for longer
+     * than the timeout, or is a WebSocket whose client has not
+     * acknowledged a frame it was sent for that long. Other responses in
+     * progress never time out.
+     */
+    boolean isIdle(final long nowNanos, final long timeoutNanos) {
+        if (state == STATE_WEBSOCKET) {
+            return numUnacknowledged > 0 && nowNanos - lastAckNanos > timeoutNanos;
+        }
+        return state == STATE_READING_REQUEST && nowNanos - lastActivityNanos > timeoutNanos;
+    }
+
+    HeaderBuilder getResponseHeader() {
+        return responseHeader.clear();
+    }
+
+    /**
+     * Put a frame in the mailbox, replacing any frame that has not been
+     * started yet. Ignored unless the connection is streaming, as
+     * multipart or over a WebSocket.
+     */
+    void offer(final FrameRing.Frame frame) throws IOException {
+        if (state != STATE_STREAMING && state != STATE_WEBSOCKET) {
+            return;
+        }
+        frame.retain();
+        if (mailbox != null) {
+            mailbox.release();
+            numDroppedFrames++;
+            metrics.countFrameSkippedByClient();
+        }
+        mailbox = frame;
+        write();
+    }
+
+    /**
+     * Write as much as the socket will take without blocking. When
+     * streaming, moves on to the frame in the mailbox once the current
+     * one has been sent.
+     *
+     * @return true if a single response has been completely written, or
+     * a WebSocket has sent its closing frame
+     */
+    boolean write() throws IOException {
+        if (state == STATE_PLAYING_BACK) {
+            return writePlayback();
+        }
+
+        while (true) {
+            if (hasRemaining() && !writePending()) {
+                return false;
+            }
+
+            if (sending != null) {
+                numFramesSent++;
+                metrics.countFrameSent();
+                metrics.getWriteLatency().recordSince(sendingStartNanos);
+                if (isAwaitingFirstFrame) {
+                    isAwaitingFirstFrame = false;
+                    metrics.getFirstFrameLatency().recordSince(subscribedNanos);
+                }
+                lastSequence = sending.getSequence();
+                lastTimestamp = sending.getTimestamp();
+                sending.release();
+                sending = null;
+            }
+
+            if (state == STATE_RESPONDING) {
+                key.interestOps(0);
+                return true;
+            }
+
+            if (state == STATE_WEBSOCKET) {
+                if (hasControlFrame) {
+                    hasControlFrame = false;
+                    pending[0] = controlFrame;
+                    pending[1] = EMPTY;
+                    pending[2] = EMPTY;
+                    continue;
+                }
+                if (isClosing) {
+                    key.interestOps(0);
+                    return true;
+                }
+                if (mailbox == null || numUnacknowledged >= ackWindow) {
+                    // Keep reading for acknowledgements
+                    key.interestOps(SelectionKey.OP_READ);
+                    return false;
+                }
+                numUnacknowledged++;
+                startMessage(mailbox);
+                mailbox = null;
+                continue;
+            }
+
+            if (state != STATE_STREAMING || mailbox == null) {
+                key.interestOps(0);
+                return false;
+            }
+
+            startPart(mailbox);
+            mailbox = null;
+        }
+    }
+
+    /**
+     * Like write() but for a playback: sends each part's header and then
+     * has the source send its JPEG.
+     *
+     * @return true once the last frame has been sent
+     */
+    private boolean writePlayback() throws IOException {
+        while (true) {
+            if (hasRemaining() && !writePending()) {
+                return false;
+            }
+
+            if (isSendingPlaybackFrame) {
+                if (playback.hasBytesLeft()) {
+                    final long numBytes = playback.transferTo(channel);
+                    countBytesSent(numBytes);
+                    if (playback.hasBytesLeft()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                }
+                isSendingPlaybackFrame = false;
+                numFramesSent++;
+                metrics.countFrameSent();
+                metrics.getWriteLatency().recordSince(sendingStartNanos);
+                lastTimestamp = playback.getTimestamp();
+                boundary.rewind();
+                pending[0] = EMPTY;
+                pending[1] = EMPTY;
+                pending[2] = boundary;
+                hasPlaybackFrame = playback.next();
+                continue;
+            }
+
+            if (!hasPlaybackFrame) {
+                // The end of the playback
+                key.interestOps(0);
+                return true;
+            }
+            if (getPlaybackDueNanos() - System.nanoTime() > 0L) {
+                // The streamer calls write() again once it is due
+                key.interestOps(0);
+                return false;
+            }
+
+            isSendingPlaybackFrame = true;
+            sendingStartNanos = System.nanoTime();
+            pending[0] = partHeader.update(playback.getLength(), playback.getTimestamp());
+        }
+    }
+
+    /**
+     * Write as much of the pending buffers as the socket will take.
+     *
+     * @return false if some are left, in which case the connection
+     * waits to be writable
+     */
+    private boolean writePending() throws IOException {
+        countBytesSent(channel.write(pending));
+        if (hasRemaining()) {
+            key.interestOps(state == STATE_WEBSOCKET
+                    ? SelectionKey.OP_WRITE | SelectionKey.OP_READ
+                    : SelectionKey.OP_WRITE);
+            return false;
+        }
+        return true;
+    }
+
+    private void countBytesSent(final long numBytes) {
+        numBytesSent += numBytes;
+        metrics.countBytesSent(numBytes);
+        lastActivityNanos = System.nanoTime();
+    }
+
+    private void startPart(final FrameRing.Frame frame) {
+        sending = frame;
+        sendingStartNanos = System.nanoTime();
+        boundary.rewind();
+        pending[0] = partHeader.update(frame.getLength(), frame.getTimestamp());
+        pending[1] = viewOf(frame);
+        pending[2] = boundary;
+    }
+
+    private void startMessage(final FrameRing.Frame frame) {
+        sending = frame;
+        sendingStartNanos = System.nanoTime();
+        messageHeader.clear();
+        WebSocket.putHeader(messageHeader, WebSocket.OPCODE_BINARY, frame.getLength());
+        messageHeader.flip();
+        pending[0] = messageHeader;
+        pending[1] = viewOf(frame);
+        pending[2] = EMPTY;
+    }
+
+    private ByteBuffer viewOf(final FrameRing.Frame frame) {
+        ByteBuffer view = frameViews[frame.getIndex()];
+        // Slots of different sizes share an index, so the view may be of
+        // another ring's slot if the client has changed size
+        if (view == null || frameViewSources[frame.getIndex()] != frame.getBuffer()) {
+            view = frame.getBuffer().duplicate();
+            frameViews[frame.getIndex()] = view;
+            frameViewSources[frame.getIndex()] = frame.getBuffer();
+        }
+        view.clear();
+        view.limit(frame.getLength());
+        return view;
+    }
+
+    private boolean hasRemaining() {
+        return pending[0].hasRemaining() || pending[1].hasRemaining()
+                || pending[2].hasRemaining();
+    }
+
+    MJpegHttpStreamer.ClientStats getStats(final long latestSequence) {
+        final long lastSequence = this.lastSequence;
+        return new MJpegHttpStreamer.ClientStats(address, numFramesSent, numDroppedFrames,
+                numBytesSent, Math.max(0L, latestSequence - lastSequence), lastTimestamp);
+    }
+
+    void close() {
+        if (sending != null) {
+            sending.release();
+            sending = null;
+        }
+        if (mailbox != null) {
+            mailbox.release();
+            mailbox = null;
+        }
+        if (playback != null) {
+            try {
+                playback.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            playback = null;
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
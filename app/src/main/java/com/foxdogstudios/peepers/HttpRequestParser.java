@@ -0,0 +1,449 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental parser for HTTP/1.x request heads. It copies the
+ * request target and the few header values the streamer cares about
+ * into fixed buffers, so parsing a request does not allocate. Request
+ * bodies are not supported.
+ */
+class HttpRequestParser {
+    static final int INCOMPLETE = 0;
+    static final int COMPLETE = 1;
+    static final int BAD_REQUEST = 2;
+
+    static final int METHOD_OTHER = 0;
+    static final int METHOD_GET = 1;
+    static final int METHOD_HEAD = 2;
+
+    private static final int MAX_LINE_LENGTH = 2048;
+    private static final int MAX_VALUE_LENGTH = 256;
+
+    private static final byte[] GET = Ascii.toBytes("GET");
+    private static final byte[] HEAD = Ascii.toBytes("HEAD");
+    private static final byte[] HTTP_1_ = Ascii.toBytes("HTTP/1.");
+    private static final byte[] IF_NONE_MATCH = Ascii.toBytes("if-none-match");
+    private static final byte[] CONNECTION = Ascii.toBytes("connection");
+    private static final byte[] CLOSE = Ascii.toBytes("close");
+    private static final byte[] KEEP_ALIVE = Ascii.toBytes("keep-alive");
+    private static final byte[] UPGRADE = Ascii.toBytes("upgrade");
+    private static final byte[] WEBSOCKET = Ascii.toBytes("websocket");
+    private static final byte[] SEC_WEBSOCKET_KEY = Ascii.toBytes("sec-websocket-key");
+    private static final byte[] SEC_WEBSOCKET_VERSION = Ascii.toBytes("sec-websocket-version");
+    private static final long WEBSOCKET_VERSION = 13L;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength = 0;
+    private boolean isFirstLine = true;
+
+    private final byte[] target = new byte[MAX_LINE_LENGTH];
+    private int targetLength = 0;
+    private int pathLength = 0;
+    private int method = METHOD_OTHER;
+    private int minorVersion = 0;
+
+    private final byte[] ifNoneMatch = new byte[MAX_VALUE_LENGTH];
+    private int ifNoneMatchLength = -1;
+    private boolean hasConnectionClose = false;
+    private boolean hasConnectionKeepAlive = false;
+    private boolean hasConnectionUpgrade = false;
+    private boolean hasUpgradeWebSocket = false;
+    private final byte[] webSocketKey = new byte[MAX_VALUE_LENGTH];
+    private int webSocketKeyLength = -1;
+    private long webSocketVersion = -1L;
+
+    HttpRequestParser() {
+        super();
+    }
+
+    /**
+     * Forget the previous request so that the next one can be parsed.
+     */
+    void reset() {
+        lineLength = 0;
+        isFirstLine = true;
+        targetLength = 0;
+        pathLength = 0;
+        method = METHOD_OTHER;
+        minorVersion = 0;
+        ifNoneMatchLength = -1;
+        hasConnectionClose = false;
+        hasConnectionKeepAlive = false;
+        hasConnectionUpgrade = false;
+        hasUpgradeWebSocket = false;
+        webSocketKeyLength = -1;
+        webSocketVersion = -1L;
+    }
+
+    /**
+     * Consume bytes from the buffer until the end of the request head.
+     * Bytes after the head are left in the buffer.
+     *
+     * @return INCOMPLETE, COMPLETE or BAD_REQUEST
+     */
+    int parse(final ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            final byte b = buffer.get();
+            if (b == '\n') {
+                // Tolerate bare LF line endings
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                final int result = parseLine();
+                lineLength = 0;
+                if (result != INCOMPLETE) {
+                    return result;
+                }
+            } else if (lineLength == line.length) {
+                return BAD_REQUEST;
+            } else {
+                line[lineLength++] = b;
+            }
+        }
+        return INCOMPLETE;
+    }
+
+    private int parseLine() {
+        if (isFirstLine) {
+            if (lineLength == 0) {
+                // Ignore empty lines before the request line (RFC 7230 3.5)
+                return INCOMPLETE;
+            }
+            isFirstLine = false;
+            return parseRequestLine() ? INCOMPLETE : BAD_REQUEST;
+        }
+
+        if (lineLength == 0) {
+            return COMPLETE;
+        }
+
+        parseHeaderLine();
+        return INCOMPLETE;
+    }
+
+    private boolean parseRequestLine() {
+        final int methodEnd = indexOf(line, 0, lineLength, (byte) ' ');
+        if (methodEnd < 0) {
+            return false;
+        }
+        final int targetEnd = indexOf(line, methodEnd + 1, lineLength, (byte) ' ');
+        if (targetEnd < 0 || targetEnd == methodEnd + 1) {
+            return false;
+        }
+
+        if (regionEquals(line, 0, methodEnd, GET)) {
+            method = METHOD_GET;
+        } else if (regionEquals(line, 0, methodEnd, HEAD)) {
+            method = METHOD_HEAD;
+        } else {
+            method = METHOD_OTHER;
+        }
+
+        targetLength = targetEnd - methodEnd - 1;
+        System.arraycopy(line, methodEnd + 1, target, 0, targetLength);
+        final int queryStart = indexOf(target, 0, targetLength, (byte) '?');
+        pathLength = queryStart < 0 ? targetLength : queryStart;
+
+        final int versionStart = targetEnd + 1;
+        if (lineLength - versionStart != HTTP_1_.length + 1
+                || !regionEquals(line, versionStart, versionStart + HTTP_1_.length, HTTP_1_)) {
+            return false;
+        }
+        final byte minor = line[lineLength - 1];
+        if (minor < '0' || minor > '9') {
+            return false;
+        }
+        minorVersion = minor - '0';
+        return true;
+    }
+
+    private void parseHeaderLine() {
+        final int colon = indexOf(line, 0, lineLength, (byte) ':');
+        if (colon < 0) {
+            // Not a header, ignore it
+            return;
+        }
+
+        int valueStart = colon + 1;
+        while (valueStart < lineLength && (line[valueStart] == ' ' || line[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = lineLength;
+        while (valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        if (regionEqualsIgnoreCase(line, 0, colon, IF_NONE_MATCH)) {
+            ifNoneMatchLength = Math.min(valueEnd - valueStart, ifNoneMatch.length);
+            System.arraycopy(line, valueStart, ifNoneMatch, 0, ifNoneMatchLength);
+        } else if (regionEqualsIgnoreCase(line, 0, colon, CONNECTION)) {
+            parseConnectionTokens(valueStart, valueEnd);
+        } else if (regionEqualsIgnoreCase(line, 0, colon, UPGRADE)) {
+            hasUpgradeWebSocket = regionEqualsIgnoreCase(line, valueStart, valueEnd, WEBSOCKET);
+        } else if (regionEqualsIgnoreCase(line, 0, colon, SEC_WEBSOCKET_KEY)) {
+            webSocketKeyLength = Math.min(valueEnd - valueStart, webSocketKey.length);
+            System.arraycopy(line, valueStart, webSocketKey, 0, webSocketKeyLength);
+        } else if (regionEqualsIgnoreCase(line, 0, colon, SEC_WEBSOCKET_VERSION)) {
+            webSocketVersion = parseLong(line, valueStart, valueEnd, -1L);
+        }
+    }
+
+    private void parseConnectionTokens(final int start, final int end) {
+        int tokenStart = start;
+        while (tokenStart < end) {
+            int tokenEnd = indexOf(line, tokenStart, end, (byte) ',');
+            if (tokenEnd < 0) {
+                tokenEnd = end;
+            }
+            int trimmedStart = tokenStart;
+            while (trimmedStart < tokenEnd && line[trimmedStart] == ' ') {
+                trimmedStart++;
+            }
+            int trimmedEnd = tokenEnd;
+            while (trimmedEnd > trimmedStart && line[trimmedEnd - 1] == ' ') {
+                trimmedEnd--;
+            }
+            if (regionEqualsIgnoreCase(line, trimmedStart, trimmedEnd, CLOSE)) {
+                hasConnectionClose = true;
+            } else if (regionEqualsIgnoreCase(line, trimmedStart, trimmedEnd, KEEP_ALIVE)) {
+                hasConnectionKeepAlive = true;
+            } else if (regionEqualsIgnoreCase(line, trimmedStart, trimmedEnd, UPGRADE)) {
+                hasConnectionUpgrade = true;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+    }
+
+    int getMethod() {
+        return method;
+    }
+
+    int getMinorVersion() {
+        return minorVersion;
+    }
+
+    /**
+     * Whether the client wants to reuse the connection: HTTP/1.1
+     * persists unless asked to close, HTTP/1.0 only when asked to keep
+     * the connection alive.
+     */
+    boolean isKeepAlive() {
+        if (hasConnectionClose) {
+            return false;
+        }
+        return minorVersion >= 1 || hasConnectionKeepAlive;
+    }
+
+    /**
+     * Whether the request asks to switch to a WebSocket of the version
+     * the streamer speaks (RFC 6455 4.2.1).
+     */
+    boolean isWebSocketUpgrade() {
+        return method == METHOD_GET && minorVersion >= 1 && hasConnectionUpgrade
+                && hasUpgradeWebSocket && webSocketKeyLength > 0
+                && webSocketVersion == WEBSOCKET_VERSION;
+    }
+
+    /**
+     * The Sec-WebSocket-Key header, or null if there was none. Unlike
+     * the other getters this allocates, it is only needed once per
+     * WebSocket.
+     */
+    String getWebSocketKey() {
+        if (webSocketKeyLength < 0) {
+            return null;
+        }
+        final char[] chars = new char[webSocketKeyLength];
+        for (int index = 0; index < webSocketKeyLength; index++) {
+            chars[index] = (char) webSocketKey[index];
+        }
+        return new String(chars);
+    }
+
+    boolean isPath(final String path) {
+        return regionEquals(target, 0, pathLength, path);
+    }
+
+    /**
+     * Return the value of a decimal query parameter, or defaultValue if
+     * it is missing or not a number.
+     */
+    long getQueryLong(final String name, final long defaultValue) {
+        final int start = findQueryValue(name);
+        if (start < 0) {
+            return defaultValue;
+        }
+        return parseLong(target, start, endOfQueryValue(start), defaultValue);
+    }
+
+    /**
+     * Return the value of a query parameter that may have a fraction,
+     * e.g. 0.5, or defaultValue if it is missing or not a number. Unlike
+     * getQueryLong() this allocates.
+     */
+    double getQueryDouble(final String name, final double defaultValue) {
+        final int start = findQueryValue(name);
+        if (start < 0) {
+            return defaultValue;
+        }
+        final int end = endOfQueryValue(start);
+        final char[] chars = new char[end - start];
+        for (int index = start; index < end; index++) {
+            final byte b = target[index];
+            // Only plain decimals, not the exponents, hex or words that
+            // parseDouble() also accepts
+            if ((b < '0' || b > '9') && b != '.') {
+                return defaultValue;
+            }
+            chars[index - start] = (char) b;
+        }
+        try {
+            return Double.parseDouble(new String(chars));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * The index of the named query parameter's value, or -1 if there is
+     * no such parameter.
+     */
+    private int findQueryValue(final String name) {
+        int start = pathLength + 1;
+        while (start < targetLength) {
+            int end = indexOf(target, start, targetLength, (byte) '&');
+            if (end < 0) {
+                end = targetLength;
+            }
+            final int equals = indexOf(target, start, end, (byte) '=');
+            if (equals >= 0 && regionEquals(target, start, equals, name)) {
+                return equals + 1;
+            }
+            start = end + 1;
+        }
+        return -1;
+    }
+
+    private int endOfQueryValue(final int start) {
+        final int end = indexOf(target, start, targetLength, (byte) '&');
+        return end < 0 ? targetLength : end;
+    }
+
+    /**
+     * Whether the If-None-Match header lists the entity tag produced by
+     * formatting the given value as a quoted decimal, or is "*".
+     */
+    boolean ifNoneMatches(final long value) {
+        if (ifNoneMatchLength < 0) {
+            return false;
+        }
+        int index = 0;
+        while (index < ifNoneMatchLength) {
+            final byte b = ifNoneMatch[index];
+            if (b == '*') {
+                return true;
+            }
+            if (b == '"') {
+                final int end = indexOf(ifNoneMatch, index + 1, ifNoneMatchLength, (byte) '"');
+                if (end < 0) {
+                    return false;
+                }
+                if (parseLong(ifNoneMatch, index + 1, end, Long.MIN_VALUE) == value) {
+                    return true;
+                }
+                index = end + 1;
+            } else {
+                index++;
+            }
+        }
+        return false;
+    }
+
+    private static long parseLong(final byte[] bytes, final int start, final int end,
+                                  final long defaultValue) {
+        if (start >= end || end - start > 18) {
+            return defaultValue;
+        }
+        long value = 0L;
+        for (int index = start; index < end; index++) {
+            final byte b = bytes[index];
+            if (b < '0' || b > '9') {
+                return defaultValue;
+            }
+            value = value * 10L + (b - '0');
+        }
+        return value;
+    }
+
+    private static int indexOf(final byte[] bytes, final int start, final int end,
+                               final byte value) {
+        for (int index = start; index < end; index++) {
+            if (bytes[index] == value) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(final byte[] bytes, final int start, final int end,
+                                        final byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int index = 0; index < expected.length; index++) {
+            if (bytes[start + index] != expected[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(final byte[] bytes, final int start, final int end,
+                                        final String expected) {
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int index = 0; index < expected.length(); index++) {
+            if (bytes[start + index] != expected.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare ignoring case, expected must be lower case.
+     */
+    private static boolean regionEqualsIgnoreCase(final byte[] bytes, final int start,
+                                                  final int end, final byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int index = 0; index < expected.length; index++) {
+            byte b = bytes[start + index];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != expected[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
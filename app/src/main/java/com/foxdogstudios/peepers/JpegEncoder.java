@@ -0,0 +1,741 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A baseline JPEG encoder for NV21 frames written in plain Java, so
+ * that it can be profiled and tested off the device.
+ *
+ * Frames are encoded as YCbCr 4:2:0, which is how NV21 stores them, so
+ * no colour conversion or subsampling is needed. It uses the integer
+ * DCT from the IJG's jfdctint.c, the example tables from Annex K of the
+ * JPEG standard scaled by quality the same way libjpeg does, and
+ * Huffman codes that are built once. Encoding fills a small chunk
+ * that is written to the output stream whenever it fills up, so the
+ * JPEG goes straight into the frame's slot, and does not allocate.
+ */
+class JpegEncoder implements FrameEncoder {
+    // Worst case for one MCU of six blocks: 64 coefficients of at most
+    // 16 + 11 bits each, doubled for 0xFF byte stuffing.
+    static final int MAX_MCU_BYTES = 6 * 2 * (64 * 27 / 8 + 1);
+    static final int MAX_HEADER_BYTES = 1024;
+    // Holds the header or several MCUs between writes to the stream
+    private static final int CHUNK_BYTES = 8 * 1024;
+
+    private static final int LUMA = 0;
+    private static final int CHROMA = 1;
+
+    /** The natural-order index of each zig-zag position. */
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63,
+    };
+
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99,
+    };
+
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+    };
+
+    private static final int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] AC_LUMA_BITS =
+            {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa,
+    };
+
+    private static final int[] AC_CHROMA_BITS =
+            {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa,
+    };
+
+    // Huffman codes and their lengths, indexed by symbol
+    private static final int[][] DC_CODES = new int[2][];
+    private static final int[][] DC_SIZES = new int[2][];
+    private static final int[][] AC_CODES = new int[2][];
+    private static final int[][] AC_SIZES = new int[2][];
+
+    static {
+        buildHuffmanCodes(DC_LUMA_BITS, DC_VALUES, DC_CODES, DC_SIZES, LUMA);
+        buildHuffmanCodes(DC_CHROMA_BITS, DC_VALUES, DC_CODES, DC_SIZES, CHROMA);
+        buildHuffmanCodes(AC_LUMA_BITS, AC_LUMA_VALUES, AC_CODES, AC_SIZES, LUMA);
+        buildHuffmanCodes(AC_CHROMA_BITS, AC_CHROMA_VALUES, AC_CODES, AC_SIZES, CHROMA);
+    }
+
+    // Quantization tables for every quality, built on first use
+    private static final QuantizationTables[] TABLES = new QuantizationTables[101];
+
+    private static final byte[] JFIF_APP0 = {
+            (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0,
+            1, 1, 0, 0, 1, 0, 1, 0, 0,
+    };
+
+    // DCT constants from jfdctint.c, scaled by 2^13
+    private static final int CONST_BITS = 13;
+    private static final int PASS1_BITS = 2;
+    private static final int FIX_0_298631336 = 2446;
+    private static final int FIX_0_390180644 = 3196;
+    private static final int FIX_0_541196100 = 4433;
+    private static final int FIX_0_765366865 = 6270;
+    private static final int FIX_0_899976223 = 7373;
+    private static final int FIX_1_175875602 = 9633;
+    private static final int FIX_1_501321110 = 12299;
+    private static final int FIX_1_847759065 = 15137;
+    private static final int FIX_1_961570560 = 16069;
+    private static final int FIX_2_053119869 = 16819;
+    private static final int FIX_2_562915447 = 20995;
+    private static final int FIX_3_072711026 = 25172;
+
+    private final int[] block = new int[64];
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private final BitWriter writer = new BitWriter();
+
+    JpegEncoder() {
+        super();
+    }
+
+    @Override
+    public boolean encode(final byte[] nv21, final int width, final int height,
+                          final int quality, final OutputStream out) {
+        if (width <= 0 || height <= 0 || nv21.length < width * height * 3 / 2) {
+            return false;
+        }
+
+        final QuantizationTables tables = getTables(quality);
+        final int position = writeHeader(chunk, 0, width, height, tables,
+                0 /* restartInterval */);
+
+        writer.start(chunk, position, chunk.length, out);
+        final int mcuRows = (height + 15) / 16;
+        if (!encodeMcuRows(nv21, width, height, tables, 0, mcuRows, writer)) {
+            return false;
+        }
+        // The padded last byte, perhaps stuffed, and EOI
+        if (!writer.hasSpace(4)) {
+            return false;
+        }
+        writer.finish();
+        writer.writeMarker(0xD9);
+        return writer.flush();
+    }
+
+    /**
+     * Entropy-code MCU rows [firstRow, endRow) into the writer, starting
+     * with zero DC predictions.
+     *
+     * @return false if the writer ran out of space
+     */
+    boolean encodeMcuRows(final byte[] nv21, final int width, final int height,
+                          final QuantizationTables tables, final int firstRow,
+                          final int endRow, final BitWriter writer) {
+        final int mcuColumns = (width + 15) / 16;
+        final int chromaWidth = width / 2;
+        final int chromaHeight = height / 2;
+        final int chromaOffset = width * height;
+        int previousY = 0;
+        int previousCb = 0;
+        int previousCr = 0;
+
+        for (int mcuRow = firstRow; mcuRow < endRow; mcuRow++) {
+            for (int mcuColumn = 0; mcuColumn < mcuColumns; mcuColumn++) {
+                if (!writer.hasSpace(MAX_MCU_BYTES)) {
+                    return false;
+                }
+
+                final int x = mcuColumn * 16;
+                final int y = mcuRow * 16;
+
+                loadLumaBlock(nv21, width, height, x, y);
+                previousY = encodeBlock(tables.luma, tables.lumaReciprocals, LUMA,
+                        previousY, writer);
+                loadLumaBlock(nv21, width, height, x + 8, y);
+                previousY = encodeBlock(tables.luma, tables.lumaReciprocals, LUMA,
+                        previousY, writer);
+                loadLumaBlock(nv21, width, height, x, y + 8);
+                previousY = encodeBlock(tables.luma, tables.lumaReciprocals, LUMA,
+                        previousY, writer);
+                loadLumaBlock(nv21, width, height, x + 8, y + 8);
+                previousY = encodeBlock(tables.luma, tables.lumaReciprocals, LUMA,
+                        previousY, writer);
+
+                // NV21 chroma is interleaved V then U
+                loadChromaBlock(nv21, chromaOffset + 1, width, chromaWidth, chromaHeight,
+                        x / 2, y / 2);
+                previousCb = encodeBlock(tables.chroma, tables.chromaReciprocals, CHROMA,
+                        previousCb, writer);
+                loadChromaBlock(nv21, chromaOffset, width, chromaWidth, chromaHeight,
+                        x / 2, y / 2);
+                previousCr = encodeBlock(tables.chroma, tables.chromaReciprocals, CHROMA,
+                        previousCr, writer);
+            }
+        }
+        return true;
+    }
+
+    private void loadLumaBlock(final byte[] nv21, final int width, final int height,
+                               final int x, final int y) {
+        final int[] block = this.block;
+        if (x + 8 <= width && y + 8 <= height) {
+            for (int row = 0; row < 8; row++) {
+                final int offset = (y + row) * width + x;
+                final int index = row * 8;
+                for (int column = 0; column < 8; column++) {
+                    block[index + column] = (nv21[offset + column] & 0xFF) - 128;
+                }
+            }
+            return;
+        }
+
+        // Repeat the last row and column into the padding
+        for (int row = 0; row < 8; row++) {
+            final int offset = Math.min(y + row, height - 1) * width;
+            for (int column = 0; column < 8; column++) {
+                block[row * 8 + column] =
+                        (nv21[offset + Math.min(x + column, width - 1)] & 0xFF) - 128;
+            }
+        }
+    }
+
+    private void loadChromaBlock(final byte[] nv21, final int planeOffset, final int rowStride,
+                                 final int chromaWidth, final int chromaHeight,
+                                 final int x, final int y) {
+        final int[] block = this.block;
+        for (int row = 0; row < 8; row++) {
+            final int offset = planeOffset + Math.min(y + row, chromaHeight - 1) * rowStride;
+            for (int column = 0; column < 8; column++) {
+                block[row * 8 + column] =
+                        (nv21[offset + 2 * Math.min(x + column, chromaWidth - 1)] & 0xFF) - 128;
+            }
+        }
+    }
+
+    /**
+     * Transform, quantize and entropy-code the loaded block.
+     *
+     * @return the block's quantized DC coefficient
+     */
+    private int encodeBlock(final int[] quantization, final long[] reciprocals,
+                            final int component, final int previousDc,
+                            final BitWriter writer) {
+        final int[] block = this.block;
+        forwardDct(block);
+
+        final int dc = quantize(block[0], quantization[0], reciprocals[0]);
+        final int diff = dc - previousDc;
+        final int dcCategory = category(diff);
+        writer.writeBits(DC_CODES[component][dcCategory], DC_SIZES[component][dcCategory]);
+        if (dcCategory != 0) {
+            writer.writeBits(diff < 0 ? diff - 1 : diff, dcCategory);
+        }
+
+        final int[] acCodes = AC_CODES[component];
+        final int[] acSizes = AC_SIZES[component];
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            final int index = ZIGZAG[k];
+            final int value = quantize(block[index], quantization[index], reciprocals[index]);
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                // ZRL, sixteen zeros
+                writer.writeBits(acCodes[0xF0], acSizes[0xF0]);
+                run -= 16;
+            }
+            final int acCategory = category(value);
+            final int symbol = (run << 4) | acCategory;
+            writer.writeBits(acCodes[symbol], acSizes[symbol]);
+            writer.writeBits(value < 0 ? value - 1 : value, acCategory);
+            run = 0;
+        }
+        if (run > 0) {
+            // EOB
+            writer.writeBits(acCodes[0x00], acSizes[0x00]);
+        }
+        return dc;
+    }
+
+    /**
+     * Divide a DCT output, which is scaled up by 8, by its quantizer
+     * and round to nearest. Multiplying by the reciprocal is exact for
+     * the range of values the DCT produces.
+     */
+    private static int quantize(final int coefficient, final int quantizer,
+                                final long reciprocal) {
+        if (coefficient < 0) {
+            return -(int) (((-coefficient + (quantizer << 2)) * reciprocal) >>> 32);
+        }
+        return (int) (((coefficient + (quantizer << 2)) * reciprocal) >>> 32);
+    }
+
+    private static int category(final int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    /**
+     * The slow-but-accurate integer forward DCT from the IJG's
+     * jfdctint.c. The output is scaled up by a factor of 8.
+     */
+    private static void forwardDct(final int[] data) {
+        // Pass 1: process rows, scaling the results up by 2^PASS1_BITS
+        for (int offset = 0; offset < 64; offset += 8) {
+            final int tmp0 = data[offset] + data[offset + 7];
+            final int tmp7 = data[offset] - data[offset + 7];
+            final int tmp1 = data[offset + 1] + data[offset + 6];
+            final int tmp6 = data[offset + 1] - data[offset + 6];
+            final int tmp2 = data[offset + 2] + data[offset + 5];
+            final int tmp5 = data[offset + 2] - data[offset + 5];
+            final int tmp3 = data[offset + 3] + data[offset + 4];
+            final int tmp4 = data[offset + 3] - data[offset + 4];
+
+            final int tmp10 = tmp0 + tmp3;
+            final int tmp13 = tmp0 - tmp3;
+            final int tmp11 = tmp1 + tmp2;
+            final int tmp12 = tmp1 - tmp2;
+
+            data[offset] = (tmp10 + tmp11) << PASS1_BITS;
+            data[offset + 4] = (tmp10 - tmp11) << PASS1_BITS;
+
+            final int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[offset + 2] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS - PASS1_BITS);
+            data[offset + 6] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS - PASS1_BITS);
+
+            oddPart(data, offset, 1, tmp4, tmp5, tmp6, tmp7, CONST_BITS - PASS1_BITS);
+        }
+
+        // Pass 2: process columns, removing the PASS1_BITS scaling
+        for (int column = 0; column < 8; column++) {
+            final int tmp0 = data[column] + data[column + 56];
+            final int tmp7 = data[column] - data[column + 56];
+            final int tmp1 = data[column + 8] + data[column + 48];
+            final int tmp6 = data[column + 8] - data[column + 48];
+            final int tmp2 = data[column + 16] + data[column + 40];
+            final int tmp5 = data[column + 16] - data[column + 40];
+            final int tmp3 = data[column + 24] + data[column + 32];
+            final int tmp4 = data[column + 24] - data[column + 32];
+
+            final int tmp10 = tmp0 + tmp3;
+            final int tmp13 = tmp0 - tmp3;
+            final int tmp11 = tmp1 + tmp2;
+            final int tmp12 = tmp1 - tmp2;
+
+            data[column] = descale(tmp10 + tmp11, PASS1_BITS);
+            data[column + 32] = descale(tmp10 - tmp11, PASS1_BITS);
+
+            final int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[column + 16] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS + PASS1_BITS);
+            data[column + 48] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS + PASS1_BITS);
+
+            oddPart(data, column, 8, tmp4, tmp5, tmp6, tmp7, CONST_BITS + PASS1_BITS);
+        }
+    }
+
+    private static void oddPart(final int[] data, final int offset, final int stride,
+                                final int tmp4, final int tmp5, final int tmp6, final int tmp7,
+                                final int shift) {
+        final int z5 = (tmp4 + tmp6 + tmp5 + tmp7) * FIX_1_175875602;
+        final int z1 = -(tmp4 + tmp7) * FIX_0_899976223;
+        final int z2 = -(tmp5 + tmp6) * FIX_2_562915447;
+        final int z3 = -(tmp4 + tmp6) * FIX_1_961570560 + z5;
+        final int z4 = -(tmp5 + tmp7) * FIX_0_390180644 + z5;
+
+        data[offset + 7 * stride] = descale(tmp4 * FIX_0_298631336 + z1 + z3, shift);
+        data[offset + 5 * stride] = descale(tmp5 * FIX_2_053119869 + z2 + z4, shift);
+        data[offset + 3 * stride] = descale(tmp6 * FIX_3_072711026 + z2 + z3, shift);
+        data[offset + stride] = descale(tmp7 * FIX_1_501321110 + z1 + z4, shift);
+    }
+
+    private static int descale(final int value, final int shift) {
+        return (value + (1 << (shift - 1))) >> shift;
+    }
+
+    /**
+     * Write everything from SOI up to and including SOS. A DRI segment
+     * is written if restartInterval, in MCUs, is not zero.
+     */
+    static int writeHeader(final byte[] buffer, final int offset, final int width,
+                           final int height, final QuantizationTables tables,
+                           final int restartInterval) {
+        int position = putStart(buffer, offset);
+        buffer[position++] = 0;
+        for (int k = 0; k < 64; k++) {
+            buffer[position++] = (byte) tables.luma[ZIGZAG[k]];
+        }
+        buffer[position++] = 1;
+        for (int k = 0; k < 64; k++) {
+            buffer[position++] = (byte) tables.chroma[ZIGZAG[k]];
+        }
+        return putFrameAndScan(buffer, position, width, height, restartInterval);
+    }
+
+    /**
+     * Write a header as writeHeader() does, with the luma then chroma
+     * quantization tables given as 64 bytes each in zigzag order, the
+     * order a DQT segment holds them in.
+     */
+    static int writeHeader(final byte[] buffer, final int offset, final int width,
+                           final int height, final byte[] zigzagTables, final int offsetInTables,
+                           final int restartInterval) {
+        int position = putStart(buffer, offset);
+        buffer[position++] = 0;
+        System.arraycopy(zigzagTables, offsetInTables, buffer, position, 64);
+        position += 64;
+        buffer[position++] = 1;
+        System.arraycopy(zigzagTables, offsetInTables + 64, buffer, position, 64);
+        position += 64;
+        return putFrameAndScan(buffer, position, width, height, restartInterval);
+    }
+
+    /**
+     * SOI, APP0 and the start of a DQT segment for both tables.
+     */
+    private static int putStart(final byte[] buffer, final int offset) {
+        int position = offset;
+        buffer[position++] = (byte) 0xFF;
+        buffer[position++] = (byte) 0xD8;
+
+        System.arraycopy(JFIF_APP0, 0, buffer, position, JFIF_APP0.length);
+        position += JFIF_APP0.length;
+
+        return putMarker(buffer, position, 0xDB, 2 + 2 * 65);
+    }
+
+    private static int putFrameAndScan(final byte[] buffer, final int offset, final int width,
+                                       final int height, final int restartInterval) {
+        int position = offset;
+        // SOF0, Y at 2x2 and Cb, Cr at 1x1
+        position = putMarker(buffer, position, 0xC0, 8 + 3 * 3);
+        buffer[position++] = 8;
+        buffer[position++] = (byte) (height >> 8);
+        buffer[position++] = (byte) height;
+        buffer[position++] = (byte) (width >> 8);
+        buffer[position++] = (byte) width;
+        buffer[position++] = 3;
+        position = putComponent(buffer, position, 1, 0x22, 0);
+        position = putComponent(buffer, position, 2, 0x11, 1);
+        position = putComponent(buffer, position, 3, 0x11, 1);
+
+        position = putHuffmanTable(buffer, position, 0x00, DC_LUMA_BITS, DC_VALUES);
+        position = putHuffmanTable(buffer, position, 0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+        position = putHuffmanTable(buffer, position, 0x01, DC_CHROMA_BITS, DC_VALUES);
+        position = putHuffmanTable(buffer, position, 0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+        if (restartInterval != 0) {
+            position = putMarker(buffer, position, 0xDD, 4);
+            buffer[position++] = (byte) (restartInterval >> 8);
+            buffer[position++] = (byte) restartInterval;
+        }
+
+        // SOS, baseline: one scan over all coefficients
+        position = putMarker(buffer, position, 0xDA, 6 + 2 * 3);
+        buffer[position++] = 3;
+        position = putComponent(buffer, position, 1, 0x00, -1);
+        position = putComponent(buffer, position, 2, 0x11, -1);
+        position = putComponent(buffer, position, 3, 0x11, -1);
+        buffer[position++] = 0;
+        buffer[position++] = 63;
+        buffer[position++] = 0;
+        return position;
+    }
+
+    private static int putMarker(final byte[] buffer, final int offset, final int marker,
+                                 final int length) {
+        buffer[offset] = (byte) 0xFF;
+        buffer[offset + 1] = (byte) marker;
+        buffer[offset + 2] = (byte) (length >> 8);
+        buffer[offset + 3] = (byte) length;
+        return offset + 4;
+    }
+
+    /**
+     * Write a component specification. SOF entries have a table
+     * selector, SOS entries pass -1 and only have the two table nibbles.
+     */
+    private static int putComponent(final byte[] buffer, final int offset, final int id,
+                                    final int nibbles, final int tableSelector) {
+        int position = offset;
+        buffer[position++] = (byte) id;
+        buffer[position++] = (byte) nibbles;
+        if (tableSelector >= 0) {
+            buffer[position++] = (byte) tableSelector;
+        }
+        return position;
+    }
+
+    private static int putHuffmanTable(final byte[] buffer, final int offset, final int classAndId,
+                                       final int[] bits, final int[] values) {
+        int position = putMarker(buffer, offset, 0xC4, 2 + 1 + 16 + values.length);
+        buffer[position++] = (byte) classAndId;
+        for (int i = 0; i < 16; i++) {
+            buffer[position++] = (byte) bits[i];
+        }
+        for (final int value : values) {
+            buffer[position++] = (byte) value;
+        }
+        return position;
+    }
+
+    /**
+     * Generate canonical Huffman codes from a BITS/HUFFVAL specification
+     * (Annex C of the JPEG standard).
+     */
+    private static void buildHuffmanCodes(final int[] bits, final int[] values,
+                                          final int[][] codes, final int[][] sizes,
+                                          final int component) {
+        codes[component] = new int[256];
+        sizes[component] = new int[256];
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[component][values[k]] = code;
+                sizes[component][values[k]] = length;
+                code++;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    static QuantizationTables getTables(final int quality) {
+        final int clamped = Math.max(1, Math.min(100, quality));
+        synchronized (TABLES) {
+            QuantizationTables tables = TABLES[clamped];
+            if (tables == null) {
+                tables = new QuantizationTables(clamped);
+                TABLES[clamped] = tables;
+            }
+            return tables;
+        }
+    }
+
+    /**
+     * The quantization tables for one quality, in natural order, with
+     * the reciprocals used to quantize the scaled DCT output.
+     */
+    static final class QuantizationTables {
+        final int quality;
+        final int[] luma;
+        final int[] chroma;
+        private final long[] lumaReciprocals;
+        private final long[] chromaReciprocals;
+
+        private QuantizationTables(final int quality) {
+            super();
+            this.quality = quality;
+            // The IJG's mapping from quality to a percentage scale
+            final int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+            luma = scaleTable(LUMA_QUANTIZATION, scale);
+            chroma = scaleTable(CHROMA_QUANTIZATION, scale);
+            lumaReciprocals = reciprocals(luma);
+            chromaReciprocals = reciprocals(chroma);
+        }
+
+        private static int[] scaleTable(final int[] base, final int scale) {
+            final int[] table = new int[64];
+            for (int i = 0; i < 64; i++) {
+                // Clamp to 255 so that the tables stay baseline
+                table[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+            }
+            return table;
+        }
+
+        private static long[] reciprocals(final int[] table) {
+            final long[] reciprocals = new long[64];
+            for (int i = 0; i < 64; i++) {
+                // The DCT output is scaled up by 8
+                final long divisor = table[i] * 8L;
+                reciprocals[i] = ((1L << 32) + divisor - 1L) / divisor;
+            }
+            return reciprocals;
+        }
+    }
+
+    /**
+     * Packs Huffman codes into bytes, stuffing a zero after every 0xFF.
+     * Given a stream, the buffer is a chunk that is written to it and
+     * reused whenever it runs short of space.
+     */
+    static final class BitWriter {
+        private byte[] buffer = null;
+        private int position = 0;
+        private int limit = 0;
+        private OutputStream out = null;
+        private long bits = 0L;
+        private int numBits = 0;
+
+        BitWriter() {
+            super();
+        }
+
+        /**
+         * Start writing into buffer from position up to limit, and only
+         * there.
+         */
+        void start(final byte[] buffer, final int position, final int limit) {
+            start(buffer, position, limit, null);
+        }
+
+        /**
+         * Start writing into buffer from position up to limit, then into
+         * out each time the buffer runs short, or only into buffer if out
+         * is null.
+         */
+        void start(final byte[] buffer, final int position, final int limit,
+                   final OutputStream out) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+            this.out = out;
+            bits = 0L;
+            numBits = 0;
+        }
+
+        /**
+         * Make room for numBytes, flushing to the stream if need be.
+         *
+         * @return false if there is no room, or the stream is full
+         */
+        boolean hasSpace(final int numBytes) {
+            if (limit - position >= numBytes) {
+                return true;
+            }
+            return out != null && flush() && limit - position >= numBytes;
+        }
+
+        /**
+         * Write what the buffer holds to the stream and start it again
+         * from the beginning.
+         *
+         * @return false if the stream is full
+         */
+        boolean flush() {
+            try {
+                out.write(buffer, 0, position);
+            } catch (IOException e) {
+                return false;
+            }
+            position = 0;
+            return true;
+        }
+
+        /**
+         * Write a marker, which is not stuffed, after finish().
+         */
+        void writeMarker(final int marker) {
+            buffer[position++] = (byte) 0xFF;
+            buffer[position++] = (byte) marker;
+        }
+
+        void writeBits(final int value, final int size) {
+            bits = (bits << size) | (value & ((1 << size) - 1));
+            numBits += size;
+            while (numBits >= 8) {
+                numBits -= 8;
+                final byte b = (byte) (bits >> numBits);
+                buffer[position++] = b;
+                if (b == (byte) 0xFF) {
+                    buffer[position++] = 0;
+                }
+            }
+        }
+
+        /**
+         * Pad the last byte with one bits and return the position after
+         * it.
+         */
+        int finish() {
+            if (numBits > 0) {
+                writeBits(0x7F, 8 - numBits);
+            }
+            return position;
+        }
+
+        int getPosition() {
+            return position;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds. Each power of two is split
+ * into eight buckets, so a value is known to within about 12%, and
+ * anything over a minute lands in the last bucket.
+ *
+ * record() is lock-free and allocates nothing, so any thread may call
+ * it on every frame. Readers see the counts as they are while others
+ * are still recording, so quantiles may be a sample or two out.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int NUM_SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^36 ns is a little over a minute
+    private static final int MAX_EXPONENT = 36;
+    private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * NUM_SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong sum = new AtomicLong(0L);
+    private final AtomicLong max = new AtomicLong(0L);
+
+    LatencyHistogram() {
+        super();
+    }
+
+    void record(final long nanos) {
+        final long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        sum.addAndGet(value);
+        long oldMax = max.get();
+        while (value > oldMax && !max.compareAndSet(oldMax, value)) {
+            oldMax = max.get();
+        }
+    }
+
+    /**
+     * Record the time since startNanos, a System.nanoTime() reading.
+     */
+    void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long getCount() {
+        long count = 0L;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            count += buckets.get(bucket);
+        }
+        return count;
+    }
+
+    long getSum() {
+        return sum.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The value below which the given fraction of the recorded values
+     * fall, give or take a bucket, or 0 if nothing has been recorded.
+     */
+    long getQuantile(final double quantile) {
+        final long count = getCount();
+        if (count == 0L) {
+            return 0L;
+        }
+
+        final long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+        long numSeen = 0L;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            numSeen += buckets.get(bucket);
+            if (numSeen >= rank) {
+                final long lower = lowerBoundOf(bucket);
+                final long upper = bucket + 1 < NUM_BUCKETS ? lowerBoundOf(bucket + 1) : lower;
+                // The middle of the bucket, but never past the largest
+                // value actually seen
+                return Math.min(getMax(), lower + (upper - lower) / 2L);
+            }
+        }
+        return getMax();
+    }
+
+    private static int bucketOf(final long value) {
+        if (value < NUM_SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        // The bits just below the leading one pick the sub-bucket
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+                & (NUM_SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * NUM_SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBoundOf(final int bucket) {
+        if (bucket < NUM_SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / NUM_SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = bucket % NUM_SUB_BUCKETS;
+        return (NUM_SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
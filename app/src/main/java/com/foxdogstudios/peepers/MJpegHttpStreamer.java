@@ -15,15 +15,42 @@
 
 package com.foxdogstudios.peepers;
 
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 class MJpegHttpStreamer {
     private static final String TAG = MJpegHttpStreamer.class.getSimpleName();
 
+    /**
+     * Told when the number of clients streaming or waiting for a
+     * snapshot changes. Called on the streamer's worker thread.
+     */
+    interface SubscriberListener {
+        void onSubscribersChanged(int numSubscribers);
+    }
+
+    /**
+     * Told of every frame as it is published, before any client is sent
+     * it. Called on an encoder thread while later frames wait to be
+     * published, so it must return quickly and must not keep the JPEG
+     * buffer, which the encoders reuse. The JPEG runs from the buffer's
+     * position to its limit; the listener may move the position.
+     */
+    interface FrameListener {
+        void onFramePublished(int stream, ByteBuffer jpeg, long timestamp);
+    }
+
     private static final String BOUNDARY = "--gc0p4Jq0M2Yt08jU534c0p--";
     private static final String BOUNDARY_LINES = "\r\n" + BOUNDARY + "\r\n";
 
@@ -41,26 +68,107 @@ class MJpegHttpStreamer {
                     + "boundary=" + BOUNDARY + "\r\n"
                     + BOUNDARY_LINES;
 
+    private static final byte[] HTTP_HEADER_BYTES = Ascii.toBytes(HTTP_HEADER);
+    private static final byte[] BOUNDARY_LINES_BYTES = Ascii.toBytes(BOUNDARY_LINES);
+
+    private static final long IDLE_TIMEOUT_S = 15L;
+
+    private static final byte[] HTTP_1_1 = Ascii.toBytes("HTTP/1.1 ");
+    private static final byte[] SWITCHING_PROTOCOLS =
+            Ascii.toBytes("101 Switching Protocols\r\n");
+    private static final byte[] OK = Ascii.toBytes("200 OK\r\n");
+    private static final byte[] ACCEPTED = Ascii.toBytes("202 Accepted\r\n");
+    private static final byte[] NOT_MODIFIED = Ascii.toBytes("304 Not Modified\r\n");
+    private static final byte[] BAD_REQUEST = Ascii.toBytes("400 Bad Request\r\n");
+    private static final byte[] NOT_FOUND = Ascii.toBytes("404 Not Found\r\n");
+    private static final byte[] METHOD_NOT_ALLOWED = Ascii.toBytes("405 Method Not Allowed\r\n");
+    private static final byte[] SERVICE_UNAVAILABLE =
+            Ascii.toBytes("503 Service Unavailable\r\n");
+    private static final byte[] COMMON_HEADERS = Ascii.toBytes(
+            "Server: Peepers\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Access-Control-Allow-Origin:*\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = Ascii.toBytes(
+            "Connection: keep-alive\r\n"
+                    + "Keep-Alive: timeout=" + IDLE_TIMEOUT_S + "\r\n");
+    private static final byte[] CONNECTION_CLOSE = Ascii.toBytes("Connection: close\r\n");
+    private static final byte[] CONTENT_TYPE_JPEG = Ascii.toBytes("Content-Type: image/jpeg\r\n");
+    private static final byte[] CONTENT_TYPE_TEXT =
+            Ascii.toBytes("Content-Type: text/plain\r\n");
+    private static final byte[] CONTENT_TYPE_METRICS =
+            Ascii.toBytes("Content-Type: text/plain; version=0.0.4\r\n");
+    private static final byte[] CONTENT_LENGTH = Ascii.toBytes("Content-Length: ");
+    private static final byte[] ETAG = Ascii.toBytes("\r\nETag: \"");
+    private static final byte[] TIMESTAMP = Ascii.toBytes("\"\r\nX-Timestamp:");
+    private static final byte[] END_OF_ETAG = Ascii.toBytes("\"\r\n\r\n");
+    private static final byte[] END_OF_HEADER = Ascii.toBytes("\r\n\r\n");
+    private static final byte[] NO_CONTENT = Ascii.toBytes("Content-Length: 0\r\n\r\n");
+    private static final byte[] UPGRADE_WEBSOCKET = Ascii.toBytes(
+            "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: ");
+
+    private static final String PATH_ROOT = "/";
+    private static final String PATH_STREAM = "/stream.mjpeg";
+    private static final String PATH_SNAPSHOT = "/snapshot.jpg";
+    private static final String PATH_METRICS = "/metrics";
+    private static final String PATH_PLAYBACK = "/playback.mjpeg";
+    private static final String PATH_EVENT = "/event.mjpeg";
+    private static final String PATH_SAVE_EVENT = "/event/save";
+    private static final String PATH_WEBSOCKET = "/stream.ws";
+    private static final String QUERY_WIDTH = "w";
+    private static final String QUERY_QUALITY = "q";
+    private static final String QUERY_FROM = "from";
+    private static final String QUERY_TO = "to";
+    private static final String QUERY_SPEED = "speed";
+    private static final String QUERY_WINDOW = "window";
+
+    // How many frames a WebSocket client may have unacknowledged, by
+    // default and at most
+    private static final long DEFAULT_ACK_WINDOW = 2L;
+    private static final long MAX_ACK_WINDOW = 16L;
+
+    private static final long SELECT_TIMEOUT_MS = 1000L;
+    private static final long IDLE_TIMEOUT_NANOS = IDLE_TIMEOUT_S * 1000000000L;
+
     private final int port;
+    // The rings of every stream and who wants them
+    private final FrameCache frameCache;
+    private final Metrics metrics;
+    private final SubscriberListener subscriberListener;
+    // Replaced, never modified, so publishFrame() need not lock
+    private volatile FrameListener[] frameListeners = new FrameListener[0];
+    private volatile SegmentIndex recording = null;
+    private volatile PreEventBuffer preEventBuffer = null;
+    private volatile File eventDirectory = null;
 
-    private boolean newJpeg = false;
-    private boolean streamingBufferA = true;
-    private final byte[] bufferA;
-    private final byte[] bufferB;
-    private int lengthA = Integer.MIN_VALUE;
-    private int lengthB = Integer.MIN_VALUE;
-    private long timestampA = Long.MIN_VALUE;
-    private long timestampB = Long.MIN_VALUE;
-    private final Object bufferLock = new Object();
+    // Only modified by the worker thread, read by getClientStats()
+    private final List<HttpConnection> connections =
+            new CopyOnWriteArrayList<HttpConnection>();
+    private final long[] lastDispatchedSequences;
+    private long lastIdleCheckNanos = System.nanoTime();
+    private int lastNumSubscribers = 0;
 
     private Thread worker = null;
+    private volatile Selector selector = null;
     private volatile boolean isRunning = false;
 
-    MJpegHttpStreamer(final int port, final int bufferSize) {
+    /**
+     * @param frameCache the streams clients pick from with the w and q
+     *                   query parameters
+     * @param metrics recorded as frames are sent and served at /metrics
+     * @param subscriberListener told when clients come and go, so that
+     *                           frames need only be captured and encoded
+     *                           while someone is watching
+     */
+    MJpegHttpStreamer(final int port, final FrameCache frameCache, final Metrics metrics,
+                      final SubscriberListener subscriberListener) {
         super();
         this.port = port;
-        bufferA = new byte[bufferSize];
-        bufferB = new byte[bufferSize];
+        this.frameCache = frameCache;
+        this.metrics = metrics;
+        this.subscriberListener = subscriberListener;
+        lastDispatchedSequences = new long[frameCache.getNumStreams()];
     }
 
     void start() {
@@ -74,7 +182,7 @@ class MJpegHttpStreamer {
             public void run() {
                 workerRun();
             }
-        });
+        }, TAG);
         worker.start();
     }
 
@@ -84,24 +192,115 @@ class MJpegHttpStreamer {
         }
 
         isRunning = false;
+        wakeUpWorker();
         worker.interrupt();
     }
 
-    void streamJpeg(final byte[] jpeg, final int length, final long timestamp) {
-        synchronized (bufferLock) {
-            final byte[] buffer;
-            if (streamingBufferA) {
-                buffer = bufferB;
-                lengthB = length;
-                timestampB = timestamp;
-            } else {
-                buffer = bufferA;
-                lengthA = length;
-                timestampA = timestamp;
-            }
-            System.arraycopy(jpeg, 0, buffer, 0, length);
-            newJpeg = true;
-            bufferLock.notify();
+    /**
+     * Wait for the worker to finish after stop(), after which it no
+     * longer holds any frame.
+     */
+    void join() throws InterruptedException {
+        worker.join();
+    }
+
+    FrameCache getFrameCache() {
+        return frameCache;
+    }
+
+    /**
+     * Tell the listener about every frame published from now on.
+     */
+    synchronized void addFrameListener(final FrameListener listener) {
+        final FrameListener[] listeners = Arrays.copyOf(frameListeners,
+                frameListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        frameListeners = listeners;
+    }
+
+    synchronized void removeFrameListener(final FrameListener listener) {
+        final List<FrameListener> listeners =
+                new ArrayList<FrameListener>(Arrays.asList(frameListeners));
+        listeners.remove(listener);
+        frameListeners = listeners.toArray(new FrameListener[listeners.size()]);
+    }
+
+    /**
+     * Serve the recording a SegmentRecorder keeps the index of at
+     * /playback.mjpeg, or nothing if it is null.
+     */
+    void setRecording(final SegmentIndex segments) {
+        recording = segments;
+    }
+
+    /**
+     * Let clients freeze the buffer and stream it at /event.mjpeg, or
+     * save it to the directory at /event/save.
+     */
+    void setPreEventBuffer(final PreEventBuffer buffer, final File directory) {
+        preEventBuffer = buffer;
+        eventDirectory = directory;
+    }
+
+    /**
+     * Whether any client wants frames of the given stream. Streams
+     * nobody wants need not be encoded.
+     */
+    boolean hasSubscribers(final int stream) {
+        return frameCache.hasSubscribers(stream);
+    }
+
+    boolean hasSubscribers() {
+        return frameCache.hasSubscribers();
+    }
+
+    int getNumSubscribers() {
+        return frameCache.getNumSubscribers();
+    }
+
+    /**
+     * Claim a frame of the given stream for the encoder to write a JPEG
+     * into, or null if every frame is still being sent and this one has
+     * to be dropped. The stream must have subscribers. The frame must be
+     * passed to either publishFrame() or abandonFrame() with the same
+     * stream.
+     */
+    FrameRing.Frame claimFrame(final int stream) {
+        return frameCache.getRing(stream).claim();
+    }
+
+    void publishFrame(final int stream, final FrameRing.Frame frame, final long timestamp) {
+        // Still claimed, so the encoders cannot reuse it yet
+        for (final FrameListener listener : frameListeners) {
+            listener.onFramePublished(stream, frame.getContents(), timestamp);
+        }
+        frameCache.getRing(stream).publish(frame, timestamp);
+        wakeUpWorker();
+    }
+
+    void abandonFrame(final int stream, final FrameRing.Frame frame) {
+        frameCache.getRing(stream).abandon(frame);
+    }
+
+    /**
+     * Take a snapshot of how well each connected client is keeping up.
+     * Safe to call from any thread.
+     */
+    List<ClientStats> getClientStats() {
+        final List<ClientStats> stats = new ArrayList<ClientStats>(connections.size());
+        for (final HttpConnection connection : connections) {
+            final int stream = connection.getSubscribedStream();
+            final long latestSequence = stream == HttpConnection.NO_STREAM
+                    ? 0L : frameCache.getRing(stream).getLatestSequence();
+            stats.add(connection.getStats(latestSequence));
+        }
+        return stats;
+    }
+
+    private void wakeUpWorker() {
+        final Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
         }
     }
 
@@ -116,93 +315,629 @@ class MJpegHttpStreamer {
     }
 
     private void acceptAndStream() throws IOException {
-        ServerSocket serverSocket = null;
-        Socket socket = null;
-        DataOutputStream stream = null;
+        ServerSocketChannel serverChannel = null;
 
         try {
-            serverSocket = new ServerSocket(port);
-            serverSocket.setSoTimeout(1000 /* milliseconds */);
-
-            do {
-                try {
-                    socket = serverSocket.accept();
-                } catch (SocketTimeoutException e) {
-                    if (!isRunning) {
-                        return;
-                    }
-                }
-            } while (socket == null);
-
-            serverSocket.close();
-            serverSocket = null;
-            stream = new DataOutputStream(socket.getOutputStream());
-            stream.writeBytes(HTTP_HEADER);
-            stream.flush();
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            final SelectionKey serverKey = serverChannel.register(selector,
+                    SelectionKey.OP_ACCEPT);
 
             while (isRunning) {
-                final byte[] buffer;
-                final int length;
-                final long timestamp;
+                // Only ask for the selected keys when there are some, a
+                // wake-up for a new frame then costs nothing. The keys
+                // are looked up connection by connection, as iterating
+                // over them would allocate on every wake-up to write.
+                if (selector.select(getSelectTimeoutMs()) > 0) {
+                    final Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                    if (selectedKeys.remove(serverKey)) {
+                        accept(serverChannel);
+                    }
+                    for (int index = connections.size() - 1; index >= 0; index--) {
+                        final HttpConnection connection = connections.get(index);
+                        final SelectionKey key = connection.getKey();
+                        if (!selectedKeys.remove(key) || !key.isValid()) {
+                            continue;
+                        }
 
-                synchronized (bufferLock) {
-                    while (!newJpeg) {
                         try {
-                            bufferLock.wait();
-                        } catch (InterruptedException e) {
-                            // stop() may have been called
-                            return;
+                            if (key.isReadable() && connection.isWebSocket()) {
+                                if (connection.readWebSocket()) {
+                                    removeConnection(connection);
+                                }
+                            } else if (key.isReadable()) {
+                                serveRequests(connection, connection.readRequest());
+                            } else if (key.isWritable() && connection.write()) {
+                                finishResponse(connection);
+                                serveBufferedRequests(connection);
+                            }
+                        } catch (IOException e) {
+                            // The client has most likely gone away
+                            removeConnection(connection);
                         }
                     }
-
-                    streamingBufferA = !streamingBufferA;
-
-                    if (streamingBufferA) {
-                        buffer = bufferA;
-                        length = lengthA;
-                        timestamp = timestampA;
-                    } else {
-                        buffer = bufferB;
-                        length = lengthB;
-                        timestamp = timestampB;
-                    }
-
-                    newJpeg = false;
+                    // Keys of connections removed above
+                    selectedKeys.clear();
                 }
 
-                stream.writeBytes(
-                        "Content-type: image/jpeg\r\n"
-                                + "Content-Length: " + length + "\r\n"
-                                + "X-Timestamp:" + timestamp + "\r\n"
-                                + "\r\n"
-                );
-                stream.write(buffer, 0 /* offset */, length);
-                stream.writeBytes(BOUNDARY_LINES);
-                stream.flush();
+                dispatchLatestFrames();
+                sendDuePlaybackFrames();
+                closeIdleConnections();
             }
         } finally {
-            if (stream != null) {
+            for (final HttpConnection connection : connections) {
+                unsubscribe(connection);
+                connection.close();
+                metrics.countClientDisconnected();
+            }
+            connections.clear();
+            if (serverChannel != null) {
                 try {
-                    stream.close();
+                    serverChannel.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-            if (socket != null) {
+            if (selector != null) {
                 try {
-                    socket.close();
+                    selector.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-            if (serverSocket != null) {
-                try {
-                    serverSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        }
+    }
+
+    private void accept(final ServerSocketChannel serverChannel) throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final SelectionKey key = channel.register(selector, 0);
+            final HttpConnection connection = new HttpConnection(channel, key,
+                    BOUNDARY_LINES_BYTES, frameCache.getNumFrames(), metrics);
+            connections.add(connection);
+            metrics.countClientConnected();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void removeConnection(final HttpConnection connection) {
+        if (connections.remove(connection)) {
+            metrics.countClientDisconnected();
+        }
+        unsubscribe(connection);
+        connection.close();
+    }
+
+    private void subscribe(final HttpConnection connection, final int stream) {
+        final int oldStream = connection.getSubscribedStream();
+        // Create the ring before getClientStats() can look for it, and
+        // subscribe before unsubscribing so the count never dips to zero
+        frameCache.subscribe(stream);
+        connection.setSubscribedStream(stream);
+        if (oldStream != HttpConnection.NO_STREAM) {
+            frameCache.unsubscribe(oldStream);
+        }
+        notifySubscriberListener();
+    }
+
+    private void unsubscribe(final HttpConnection connection) {
+        final int stream = connection.getSubscribedStream();
+        if (stream != HttpConnection.NO_STREAM) {
+            connection.setSubscribedStream(HttpConnection.NO_STREAM);
+            frameCache.unsubscribe(stream);
+            notifySubscriberListener();
+        }
+    }
+
+    private void notifySubscriberListener() {
+        final int numSubscribers = frameCache.getNumSubscribers();
+        if (numSubscribers != lastNumSubscribers) {
+            lastNumSubscribers = numSubscribers;
+            subscriberListener.onSubscribersChanged(numSubscribers);
+        }
+    }
+
+    /**
+     * The stream whose width and quality are closest to the ones asked
+     * for, the first size and automatic quality by default.
+     */
+    private int selectStream(final HttpRequestParser request) {
+        return frameCache.findStream(request.getQueryLong(QUERY_WIDTH, -1L),
+                request.getQueryLong(QUERY_QUALITY, -1L));
+    }
+
+    /**
+     * Answer requests until one needs more bytes, or its response can't
+     * be sent straight away. Requests pipelined behind a response that
+     * is still being written are parsed once it has finished.
+     */
+    private void serveRequests(final HttpConnection connection, final int parseResult)
+            throws IOException {
+        int result = parseResult;
+        while (true) {
+            if (result == HttpConnection.END_OF_STREAM) {
+                removeConnection(connection);
+                return;
+            } else if (result == HttpRequestParser.BAD_REQUEST) {
+                respond(connection, BAD_REQUEST, false /* keepAlive */);
+                return;
+            } else if (result == HttpRequestParser.INCOMPLETE) {
+                return;
+            }
+
+            route(connection);
+            if (!connection.isReadingRequest()) {
+                return;
+            }
+            result = connection.parseBufferedRequest();
+        }
+    }
+
+    private void route(final HttpConnection connection) throws IOException {
+        final HttpRequestParser request = connection.getRequest();
+        final int method = request.getMethod();
+        final boolean keepAlive = request.isKeepAlive();
+
+        if (request.isPath(PATH_SNAPSHOT)) {
+            if (method != HttpRequestParser.METHOD_GET
+                    && method != HttpRequestParser.METHOD_HEAD) {
+                respond(connection, METHOD_NOT_ALLOWED, keepAlive);
+                return;
+            }
+            final int stream = selectStream(request);
+            if (!hasSubscribers(stream)) {
+                // Nobody has wanted this stream, so its latest frame may
+                // be stale or missing. Answer with the next one instead.
+                subscribe(connection, stream);
+                connection.waitForFrame();
+                return;
+            }
+            final FrameRing frameRing = frameCache.getRing(stream);
+            final long latestSequence = frameRing.getLatestSequence();
+            if (latestSequence != 0L && request.ifNoneMatches(latestSequence)) {
+                respond(connection, startResponseHeader(connection, NOT_MODIFIED, keepAlive)
+                        .append(CONTENT_LENGTH).append(0L)
+                        .append(ETAG).append(latestSequence).append(END_OF_ETAG)
+                        .toByteBuffer(), null, keepAlive);
+                return;
+            }
+            final FrameRing.Frame frame = frameRing.acquireLatest();
+            if (frame == null) {
+                // Nothing has been published yet, answer with the first
+                // frame that is.
+                subscribe(connection, stream);
+                connection.waitForFrame();
+                return;
+            }
+            frameCache.countDelivery(stream, frame);
+            sendSnapshot(connection, frame);
+            frame.release();
+        } else if (request.isPath(PATH_STREAM) || request.isPath(PATH_ROOT)) {
+            if (method != HttpRequestParser.METHOD_GET) {
+                respond(connection, METHOD_NOT_ALLOWED, keepAlive);
+                return;
+            }
+            // The multipart stream only ends when the connection closes
+            subscribe(connection, selectStream(request));
+            connection.startStreaming(HTTP_HEADER_BYTES);
+            connection.write();
+        } else if (request.isPath(PATH_WEBSOCKET)) {
+            if (method != HttpRequestParser.METHOD_GET) {
+                respond(connection, METHOD_NOT_ALLOWED, keepAlive);
+                return;
+            }
+            startWebSocket(connection);
+        } else if (request.isPath(PATH_PLAYBACK)) {
+            if (method != HttpRequestParser.METHOD_GET) {
+                respond(connection, METHOD_NOT_ALLOWED, keepAlive);
+                return;
+            }
+            startPlayback(connection);
+        } else if (request.isPath(PATH_EVENT) || request.isPath(PATH_SAVE_EVENT)) {
+            if (method != HttpRequestParser.METHOD_GET) {
+                respond(connection, METHOD_NOT_ALLOWED, keepAlive);
+                return;
+            }
+            sendEvent(connection, request.isPath(PATH_SAVE_EVENT));
+        } else if (request.isPath(PATH_METRICS)) {
+            if (method != HttpRequestParser.METHOD_GET
+                    && method != HttpRequestParser.METHOD_HEAD) {
+                respond(connection, METHOD_NOT_ALLOWED, keepAlive);
+                return;
+            }
+            sendMetrics(connection);
+        } else {
+            respond(connection, NOT_FOUND, keepAlive);
+        }
+    }
+
+    /**
+     * Switch to a WebSocket and stream the chosen stream over it, one
+     * binary message per JPEG, with at most window frames in flight
+     * until the client acknowledges them.
+     */
+    private void startWebSocket(final HttpConnection connection) throws IOException {
+        final HttpRequestParser request = connection.getRequest();
+        final boolean keepAlive = request.isKeepAlive();
+        final long window = request.getQueryLong(QUERY_WINDOW, DEFAULT_ACK_WINDOW);
+        if (!request.isWebSocketUpgrade() || window < 1L || window > MAX_ACK_WINDOW) {
+            respond(connection, BAD_REQUEST, keepAlive);
+            return;
+        }
+
+        final ByteBuffer head = connection.getResponseHeader()
+                .append(HTTP_1_1).append(SWITCHING_PROTOCOLS)
+                .append(UPGRADE_WEBSOCKET)
+                .append(Ascii.toBytes(WebSocket.acceptKey(request.getWebSocketKey())))
+                .append(END_OF_HEADER)
+                .toByteBuffer();
+        subscribe(connection, selectStream(request));
+        connection.startWebSocket(head, (int) window);
+        if (connection.write()) {
+            removeConnection(connection);
+        }
+    }
+
+    /**
+     * Play back the recording from the from time to the to time, both in
+     * milliseconds since the epoch, at speed times real time. The frames
+     * come from the recording's files, never from the encoders.
+     */
+    private void startPlayback(final HttpConnection connection) throws IOException {
+        final HttpRequestParser request = connection.getRequest();
+        final boolean keepAlive = request.isKeepAlive();
+        final SegmentIndex segments = recording;
+        if (segments == null) {
+            respond(connection, NOT_FOUND, keepAlive);
+            return;
+        }
+        final long from = request.getQueryLong(QUERY_FROM, 0L);
+        final long to = request.getQueryLong(QUERY_TO, Long.MAX_VALUE);
+        final double speed = request.getQueryDouble(QUERY_SPEED, 1.0);
+        if (to < from || !(speed > 0.0) || Double.isInfinite(speed)) {
+            respond(connection, BAD_REQUEST, keepAlive);
+            return;
+        }
+
+        final RecordingPlayback playback = new RecordingPlayback(segments, to);
+        try {
+            if (!playback.seek(from)) {
+                playback.close();
+                respond(connection, NOT_FOUND, keepAlive);
+                return;
+            }
+        } catch (IOException e) {
+            playback.close();
+            throw e;
+        }
+        // Like a live stream, playback ends when the connection closes
+        connection.startPlayback(HTTP_HEADER_BYTES, playback, speed);
+        if (connection.write()) {
+            finishResponse(connection);
+        }
+    }
+
+    /**
+     * Freeze the pre-event buffer and either stream it, paced like a
+     * playback, or save it to a file on another thread. Live streaming
+     * carries on into the buffer's other window meanwhile.
+     */
+    private void sendEvent(final HttpConnection connection, final boolean save)
+            throws IOException {
+        final HttpRequestParser request = connection.getRequest();
+        final boolean keepAlive = request.isKeepAlive();
+        final PreEventBuffer buffer = preEventBuffer;
+        if (buffer == null) {
+            respond(connection, NOT_FOUND, keepAlive);
+            return;
+        }
+        final double speed = request.getQueryDouble(QUERY_SPEED, 1.0);
+        if (!(speed > 0.0) || Double.isInfinite(speed)) {
+            respond(connection, BAD_REQUEST, keepAlive);
+            return;
+        }
+
+        final PreEventBuffer.Playback playback = buffer.freeze();
+        if (playback == null) {
+            // The other window is still being streamed or saved
+            respond(connection, SERVICE_UNAVAILABLE, keepAlive);
+            return;
+        }
+        if (playback.isEmpty()) {
+            playback.close();
+            respond(connection, NOT_FOUND, keepAlive);
+            return;
+        }
+
+        if (!save) {
+            connection.startPlayback(HTTP_HEADER_BYTES, playback, speed);
+            if (connection.write()) {
+                finishResponse(connection);
+            }
+            return;
+        }
+
+        final byte[] body = Ascii.toBytes(
+                PreEventBuffer.save(playback, eventDirectory).getName() + "\n");
+        final ByteBuffer head = startResponseHeader(connection, ACCEPTED, keepAlive)
+                .append(CONTENT_TYPE_TEXT)
+                .append(CONTENT_LENGTH).append(body.length)
+                .append(END_OF_HEADER)
+                .toByteBuffer();
+        connection.respond(head, ByteBuffer.wrap(body), keepAlive);
+        if (connection.write()) {
+            finishResponse(connection);
+        }
+    }
+
+    /**
+     * Send the next frame to every playback client it is due for.
+     */
+    private void sendDuePlaybackFrames() {
+        final long now = System.nanoTime();
+        for (int index = connections.size() - 1; index >= 0; index--) {
+            final HttpConnection connection = connections.get(index);
+            final long dueNanos = connection.getPlaybackDueNanos();
+            if (dueNanos == Long.MAX_VALUE || dueNanos - now > 0L) {
+                continue;
+            }
+            try {
+                if (connection.write()) {
+                    finishResponse(connection);
                 }
+            } catch (IOException e) {
+                removeConnection(connection);
             }
         }
     }
-}
 
+    /**
+     * How long the selector may wait, which is until the next playback
+     * frame is due if that is sooner than the usual timeout.
+     */
+    private long getSelectTimeoutMs() {
+        long dueNanos = Long.MAX_VALUE;
+        for (int index = connections.size() - 1; index >= 0; index--) {
+            dueNanos = Math.min(dueNanos, connections.get(index).getPlaybackDueNanos());
+        }
+        if (dueNanos == Long.MAX_VALUE) {
+            return SELECT_TIMEOUT_MS;
+        }
+        // select(0) would wait forever, so wait at least a millisecond
+        final long waitNanos = dueNanos - System.nanoTime();
+        return Math.max(1L, Math.min(SELECT_TIMEOUT_MS, (waitNanos + 999999L) / 1000000L));
+    }
+
+    /**
+     * Send the metrics and the frame cache's counters as text. Unlike
+     * the frame paths this allocates, it is only asked for now and then.
+     */
+    private void sendMetrics(final HttpConnection connection) throws IOException {
+        final StringBuilder text = new StringBuilder();
+        metrics.writeTo(text);
+        Metrics.writeGauge(text, "subscribers", frameCache.getNumSubscribers());
+        Metrics.writeCounter(text, "frame_cache_hits_total", frameCache.getNumHits());
+        Metrics.writeCounter(text, "frame_cache_misses_total", frameCache.getNumMisses());
+        Metrics.writeCounter(text, "frame_cache_encodes_total", frameCache.getNumEncodes());
+        Metrics.writeGauge(text, "frame_pool_buffers_in_use",
+                frameCache.getNumPooledBuffersInUse());
+        Metrics.writeGauge(text, "frame_pool_buffers_idle", frameCache.getNumPooledBuffersIdle());
+        Metrics.writeGauge(text, "frame_pool_buffers_max", frameCache.getMaxPooledBuffers());
+        Metrics.writeCounter(text, "frame_pool_hits_total", frameCache.getNumPoolHits());
+        Metrics.writeCounter(text, "frame_pool_misses_total", frameCache.getNumPoolMisses());
+        final PreEventBuffer buffer = preEventBuffer;
+        if (buffer != null) {
+            Metrics.writeGauge(text, "pre_event_span_ms", buffer.getSpanMs());
+            Metrics.writeCounter(text, "pre_event_frames_evicted_total",
+                    buffer.getNumFramesEvicted());
+        }
+        final byte[] body = Ascii.toBytes(text.toString());
+
+        final HttpRequestParser request = connection.getRequest();
+        final boolean keepAlive = request.isKeepAlive();
+        final ByteBuffer head = startResponseHeader(connection, OK, keepAlive)
+                .append(CONTENT_TYPE_METRICS)
+                .append(CONTENT_LENGTH).append(body.length)
+                .append(END_OF_HEADER)
+                .toByteBuffer();
+        final boolean isHead = request.getMethod() == HttpRequestParser.METHOD_HEAD;
+        connection.respond(head, ByteBuffer.wrap(body, 0, isHead ? 0 : body.length),
+                keepAlive);
+        if (connection.write()) {
+            finishResponse(connection);
+        }
+    }
+
+    private void sendSnapshot(final HttpConnection connection, final FrameRing.Frame frame)
+            throws IOException {
+        final HttpRequestParser request = connection.getRequest();
+        final boolean keepAlive = request.isKeepAlive();
+        final ByteBuffer head = startResponseHeader(connection, OK, keepAlive)
+                .append(CONTENT_TYPE_JPEG)
+                .append(CONTENT_LENGTH).append(frame.getLength())
+                .append(ETAG).append(frame.getSequence())
+                .append(TIMESTAMP).append(frame.getTimestamp())
+                .append(END_OF_HEADER)
+                .toByteBuffer();
+        final boolean isHead = request.getMethod() == HttpRequestParser.METHOD_HEAD;
+        respond(connection, head, isHead ? null : frame, keepAlive);
+    }
+
+    private static HeaderBuilder startResponseHeader(final HttpConnection connection,
+                                                     final byte[] status,
+                                                     final boolean keepAlive) {
+        return connection.getResponseHeader()
+                .append(HTTP_1_1).append(status)
+                .append(COMMON_HEADERS)
+                .append(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    private void respond(final HttpConnection connection, final byte[] status,
+                         final boolean keepAlive) throws IOException {
+        respond(connection, startResponseHeader(connection, status, keepAlive)
+                .append(NO_CONTENT)
+                .toByteBuffer(), null, keepAlive);
+    }
+
+    private void respond(final HttpConnection connection, final ByteBuffer head,
+                         final FrameRing.Frame frame, final boolean keepAlive)
+            throws IOException {
+        connection.respond(head, frame, keepAlive);
+        if (connection.write()) {
+            finishResponse(connection);
+        }
+    }
+
+    private void finishResponse(final HttpConnection connection) {
+        if (!connection.finishResponse()) {
+            removeConnection(connection);
+        }
+    }
+
+    /**
+     * Serve requests pipelined behind a response that has just been
+     * finished outside of serveRequests().
+     */
+    private void serveBufferedRequests(final HttpConnection connection) throws IOException {
+        if (connection.isReadingRequest()) {
+            serveRequests(connection, connection.parseBufferedRequest());
+        }
+    }
+
+    private void closeIdleConnections() {
+        final long now = System.nanoTime();
+        if (now - lastIdleCheckNanos < SELECT_TIMEOUT_MS * 1000000L) {
+            return;
+        }
+        lastIdleCheckNanos = now;
+
+        for (int index = connections.size() - 1; index >= 0; index--) {
+            final HttpConnection connection = connections.get(index);
+            if (connection.isIdle(now, IDLE_TIMEOUT_NANOS)) {
+                removeConnection(connection);
+            }
+        }
+    }
+
+    private void dispatchLatestFrames() {
+        for (int stream = 0; stream < lastDispatchedSequences.length; stream++) {
+            dispatchLatestFrame(stream);
+        }
+    }
+
+    /**
+     * Offer a newly published frame to every client of its stream. A
+     * client that is still writing an older frame keeps the new one in
+     * its mailbox, replacing (and counting as dropped) any frame already
+     * waiting there, so a slow client never holds up the encoder or the
+     * other clients.
+     */
+    private void dispatchLatestFrame(final int stream) {
+        final FrameRing frameRing = frameCache.getRing(stream);
+        if (frameRing == null
+                || frameRing.getLatestSequence() == lastDispatchedSequences[stream]) {
+            return;
+        }
+
+        final FrameRing.Frame frame = frameRing.acquireLatest();
+        if (frame == null) {
+            return;
+        }
+        lastDispatchedSequences[stream] = frame.getSequence();
+
+        // Index backwards so that removing a client is safe and no
+        // iterator is allocated per frame.
+        for (int index = connections.size() - 1; index >= 0; index--) {
+            final HttpConnection connection = connections.get(index);
+            if (connection.getSubscribedStream() != stream) {
+                continue;
+            }
+            frameCache.countDelivery(stream, frame);
+            try {
+                if (connection.isWaitingForFrame()) {
+                    unsubscribe(connection);
+                    sendSnapshot(connection, frame);
+                    serveBufferedRequests(connection);
+                } else {
+                    connection.offer(frame);
+                }
+            } catch (IOException e) {
+                removeConnection(connection);
+            }
+        }
+
+        frame.release();
+    }
+
+    /**
+     * A snapshot of one client's progress. The lag is the number of
+     * frames published after the last frame the client was sent; a
+     * client whose lag keeps growing is stalled on the network, while
+     * an encoder stall shows up as no new frames for every client.
+     */
+    static final class ClientStats {
+        private final String address;
+        private final long numFramesSent;
+        private final long numDroppedFrames;
+        private final long numBytesSent;
+        private final long lagFrames;
+        private final long lastTimestamp;
+
+        ClientStats(final String address, final long numFramesSent,
+                    final long numDroppedFrames, final long numBytesSent,
+                    final long lagFrames, final long lastTimestamp) {
+            super();
+            this.address = address;
+            this.numFramesSent = numFramesSent;
+            this.numDroppedFrames = numDroppedFrames;
+            this.numBytesSent = numBytesSent;
+            this.lagFrames = lagFrames;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        String getAddress() {
+            return address;
+        }
+
+        long getNumFramesSent() {
+            return numFramesSent;
+        }
+
+        long getNumDroppedFrames() {
+            return numDroppedFrames;
+        }
+
+        long getNumBytesSent() {
+            return numBytesSent;
+        }
+
+        long getLagFrames() {
+            return lagFrames;
+        }
+
+        /**
+         * The timestamp of the last frame sent in full, in the clock
+         * passed to publishFrame().
+         */
+        long getLastTimestamp() {
+            return lastTimestamp;
+        }
+
+        @Override
+        public String toString() {
+            return address + " sent=" + numFramesSent + " dropped=" + numDroppedFrames
+                    + " lag=" + lagFrames + " bytes=" + numBytesSent;
+        }
+    }
+}
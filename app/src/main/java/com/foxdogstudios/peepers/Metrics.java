@@ -0,0 +1,224 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of each stage of the pipeline and counts of what went
+ * through it, shared by the camera, the encoder pool and the streamer.
+ * Recording is lock-free and allocates nothing, so it can be done on
+ * every frame; only writeTo() allocates.
+ *
+ * The stages are, in order:
+ * <ul>
+ *   <li>callback: the preview callback to the frame thread picking the
+ *   frame up</li>
+ *   <li>queue: the frame being submitted to an encoder picking it up</li>
+ *   <li>encode: scaling and encoding every stream of the frame</li>
+ *   <li>publish: waiting in the reorder window behind earlier frames</li>
+ *   <li>write: a client being sent one frame</li>
+ * </ul>
+ * and, across them, first frame: a client subscribing to a stream to
+ * its first frame having been written, which includes waking the
+ * camera or source if nobody was watching.
+ */
+class Metrics {
+    private static final String PREFIX = "peepers_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final LatencyHistogram callbackLatency = new LatencyHistogram();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram firstFrameLatency = new LatencyHistogram();
+
+    private final AtomicLong numFramesCaptured = new AtomicLong(0L);
+    private final AtomicLong numFramesPublished = new AtomicLong(0L);
+    private final AtomicLong numFramesDropped = new AtomicLong(0L);
+    private final AtomicLong numFramesSent = new AtomicLong(0L);
+    private final AtomicLong numFramesSkippedByClients = new AtomicLong(0L);
+    private final AtomicLong numBytesSent = new AtomicLong(0L);
+    private final AtomicLong numFramesRecorded = new AtomicLong(0L);
+    private final AtomicLong numFramesNotRecorded = new AtomicLong(0L);
+    private final AtomicLong numRtpFramesSent = new AtomicLong(0L);
+    private final AtomicLong numRtpFramesNotSent = new AtomicLong(0L);
+    private final AtomicLong numRtpPacketsSent = new AtomicLong(0L);
+    private final AtomicInteger numClients = new AtomicInteger(0);
+
+    Metrics() {
+        super();
+    }
+
+    LatencyHistogram getCallbackLatency() {
+        return callbackLatency;
+    }
+
+    LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    LatencyHistogram getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    LatencyHistogram getPublishLatency() {
+        return publishLatency;
+    }
+
+    LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    LatencyHistogram getFirstFrameLatency() {
+        return firstFrameLatency;
+    }
+
+    void countFrameCaptured() {
+        numFramesCaptured.incrementAndGet();
+    }
+
+    void countFramePublished() {
+        numFramesPublished.incrementAndGet();
+    }
+
+    /**
+     * A frame the encoders could not take or finished too late.
+     */
+    void countFrameDropped() {
+        numFramesDropped.incrementAndGet();
+    }
+
+    void countFrameSent() {
+        numFramesSent.incrementAndGet();
+    }
+
+    /**
+     * A frame a slow client never started because a newer one replaced
+     * it.
+     */
+    void countFrameSkippedByClient() {
+        numFramesSkippedByClients.incrementAndGet();
+    }
+
+    void countBytesSent(final long numBytes) {
+        numBytesSent.addAndGet(numBytes);
+    }
+
+    void countFrameRecorded() {
+        numFramesRecorded.incrementAndGet();
+    }
+
+    /**
+     * A frame the recorder dropped because the disk was not keeping up.
+     */
+    void countFrameNotRecorded() {
+        numFramesNotRecorded.incrementAndGet();
+    }
+
+    void countRtpFrameSent() {
+        numRtpFramesSent.incrementAndGet();
+    }
+
+    /**
+     * A frame the RTP sender dropped because the network was not keeping
+     * up, or could not send as RTP/JPEG.
+     */
+    void countRtpFrameNotSent() {
+        numRtpFramesNotSent.incrementAndGet();
+    }
+
+    void countRtpPacketSent() {
+        numRtpPacketsSent.incrementAndGet();
+    }
+
+    void countClientConnected() {
+        numClients.incrementAndGet();
+    }
+
+    void countClientDisconnected() {
+        numClients.decrementAndGet();
+    }
+
+    long getNumFramesCaptured() {
+        return numFramesCaptured.get();
+    }
+
+    long getNumFramesDropped() {
+        return numFramesDropped.get();
+    }
+
+    long getNumFramesSent() {
+        return numFramesSent.get();
+    }
+
+    /**
+     * Write every metric in the Prometheus text format.
+     */
+    void writeTo(final StringBuilder out) {
+        writeCounter(out, "frames_captured_total", numFramesCaptured.get());
+        writeCounter(out, "frames_published_total", numFramesPublished.get());
+        writeCounter(out, "frames_dropped_total", numFramesDropped.get());
+        writeCounter(out, "frames_sent_total", numFramesSent.get());
+        writeCounter(out, "frames_skipped_by_clients_total", numFramesSkippedByClients.get());
+        writeCounter(out, "bytes_sent_total", numBytesSent.get());
+        writeCounter(out, "frames_recorded_total", numFramesRecorded.get());
+        writeCounter(out, "frames_not_recorded_total", numFramesNotRecorded.get());
+        writeCounter(out, "rtp_frames_sent_total", numRtpFramesSent.get());
+        writeCounter(out, "rtp_frames_not_sent_total", numRtpFramesNotSent.get());
+        writeCounter(out, "rtp_packets_sent_total", numRtpPacketsSent.get());
+        writeGauge(out, "clients", numClients.get());
+
+        writeSummary(out, "callback_seconds", callbackLatency);
+        writeSummary(out, "queue_seconds", queueLatency);
+        writeSummary(out, "encode_seconds", encodeLatency);
+        writeSummary(out, "publish_seconds", publishLatency);
+        writeSummary(out, "write_seconds", writeLatency);
+        writeSummary(out, "first_frame_seconds", firstFrameLatency);
+    }
+
+    static void writeCounter(final StringBuilder out, final String name, final long value) {
+        out.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    static void writeGauge(final StringBuilder out, final String name, final long value) {
+        out.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeSummary(final StringBuilder out, final String name,
+                                     final LatencyHistogram histogram) {
+        out.append("# TYPE ").append(PREFIX).append(name).append(" summary\n");
+        for (final double quantile : QUANTILES) {
+            out.append(PREFIX).append(name).append("{quantile=\"").append(quantile)
+                    .append("\"} ").append(toSeconds(histogram.getQuantile(quantile)))
+                    .append('\n');
+        }
+        out.append(PREFIX).append(name).append("_max ")
+                .append(toSeconds(histogram.getMax())).append('\n');
+        out.append(PREFIX).append(name).append("_sum ")
+                .append(toSeconds(histogram.getSum())).append('\n');
+        out.append(PREFIX).append(name).append("_count ")
+                .append(histogram.getCount()).append('\n');
+    }
+
+    private static double toSeconds(final long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -38,6 +38,10 @@ class MovingAverage {
         sum += value;
     }
 
+    int getLength() {
+        return length;
+    }
+
     double getAverage() {
         return sum / (double) length;
     }
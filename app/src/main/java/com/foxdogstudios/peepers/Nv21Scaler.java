@@ -0,0 +1,161 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downscales NV21 frames with a box filter: each output pixel is the
+ * mean of the input pixels it covers. The Y plane and the interleaved
+ * VU plane are scaled separately, so the output is NV21 too.
+ *
+ * The sample ranges are worked out once, so a scaler can be shared by
+ * any number of threads.
+ */
+class Nv21Scaler {
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+
+    // The first and one-past-last input column or row of each output
+    // column or row
+    private final int[] lumaColumns;
+    private final int[] lumaRows;
+    private final int[] chromaColumns;
+    private final int[] chromaRows;
+
+    /**
+     * @param dstWidth must be even and no wider than srcWidth
+     * @param dstHeight must be even and no taller than srcHeight
+     */
+    Nv21Scaler(final int srcWidth, final int srcHeight, final int dstWidth,
+               final int dstHeight) {
+        super();
+
+        if (dstWidth <= 0 || dstHeight <= 0 || dstWidth % 2 != 0 || dstHeight % 2 != 0) {
+            throw new IllegalArgumentException("output size must be positive and even");
+        }
+        if (dstWidth > srcWidth || dstHeight > srcHeight) {
+            throw new IllegalArgumentException("Nv21Scaler only scales down");
+        }
+
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        lumaColumns = spans(srcWidth, dstWidth);
+        lumaRows = spans(srcHeight, dstHeight);
+        chromaColumns = spans(srcWidth / 2, dstWidth / 2);
+        chromaRows = spans(srcHeight / 2, dstHeight / 2);
+    }
+
+    /**
+     * One scaler per output width, keeping the source's aspect ratio,
+     * with null first for the full size. Widths that are not smaller
+     * than the source are ignored.
+     */
+    static Nv21Scaler[] forWidths(final int srcWidth, final int srcHeight,
+                                  final int[] outputWidths) {
+        final List<Nv21Scaler> scalers = new ArrayList<Nv21Scaler>();
+        scalers.add(null);
+        for (final int outputWidth : outputWidths) {
+            // NV21 needs even dimensions
+            final int width = outputWidth & ~1;
+            final int height = (int) ((long) width * srcHeight / srcWidth) & ~1;
+            if (width >= srcWidth || width <= 0 || height <= 0) {
+                continue;
+            }
+            scalers.add(new Nv21Scaler(srcWidth, srcHeight, width, height));
+        }
+        return scalers.toArray(new Nv21Scaler[scalers.size()]);
+    }
+
+    /**
+     * Split srcLength samples into dstLength runs that are as even as
+     * possible. Run i is [spans[i], spans[i + 1]).
+     */
+    private static int[] spans(final int srcLength, final int dstLength) {
+        final int[] spans = new int[dstLength + 1];
+        for (int i = 0; i <= dstLength; i++) {
+            spans[i] = (int) ((long) i * srcLength / dstLength);
+        }
+        return spans;
+    }
+
+    int getWidth() {
+        return dstWidth;
+    }
+
+    int getHeight() {
+        return dstHeight;
+    }
+
+    /**
+     * The size of an output frame in bytes.
+     */
+    int getBufferSize() {
+        return dstWidth * dstHeight * 3 / 2;
+    }
+
+    /**
+     * Scale src into dst, which must hold at least getBufferSize()
+     * bytes.
+     */
+    void scale(final byte[] src, final byte[] dst) {
+        // Y
+        scalePlane(src, 0, srcWidth, dst, 0, dstWidth, lumaColumns, lumaRows, 1, 0);
+        // V and U, interleaved
+        final int srcChroma = srcWidth * srcHeight;
+        final int dstChroma = dstWidth * dstHeight;
+        scalePlane(src, srcChroma, srcWidth, dst, dstChroma, dstWidth,
+                chromaColumns, chromaRows, 2, 0);
+        scalePlane(src, srcChroma, srcWidth, dst, dstChroma, dstWidth,
+                chromaColumns, chromaRows, 2, 1);
+    }
+
+    /**
+     * Box filter one plane, or one channel of an interleaved plane.
+     *
+     * @param pixelStride the distance between samples of the channel
+     * @param channel the offset of the channel's first sample
+     */
+    private static void scalePlane(final byte[] src, final int srcOffset, final int srcStride,
+                                   final byte[] dst, final int dstOffset, final int dstStride,
+                                   final int[] columns, final int[] rows,
+                                   final int pixelStride, final int channel) {
+        final int dstColumns = columns.length - 1;
+        for (int y = 0; y < rows.length - 1; y++) {
+            final int firstRow = rows[y];
+            final int endRow = rows[y + 1];
+            final int dstRowOffset = dstOffset + y * dstStride + channel;
+            for (int x = 0; x < dstColumns; x++) {
+                final int firstColumn = columns[x];
+                final int endColumn = columns[x + 1];
+                int sum = 0;
+                for (int row = firstRow; row < endRow; row++) {
+                    final int rowOffset = srcOffset + row * srcStride + channel;
+                    for (int column = firstColumn; column < endColumn; column++) {
+                        sum += src[rowOffset + column * pixelStride] & 0xFF;
+                    }
+                }
+                final int count = (endRow - firstRow) * (endColumn - firstColumn);
+                dst[dstRowOffset + x * pixelStride] = (byte) ((sum + count / 2) / count);
+            }
+        }
+    }
+}
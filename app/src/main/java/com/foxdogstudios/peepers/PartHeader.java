@@ -0,0 +1,55 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable multipart part header. The constant text is laid down
+ * once and only the Content-Length and X-Timestamp digits are
+ * rewritten for each frame, so update() does not allocate.
+ */
+class PartHeader {
+    private static final byte[] CONTENT_LENGTH =
+            Ascii.toBytes("Content-type: image/jpeg\r\nContent-Length: ");
+    private static final byte[] TIMESTAMP = Ascii.toBytes("\r\nX-Timestamp:");
+    private static final byte[] END = Ascii.toBytes("\r\n\r\n");
+
+    // Enough digits for any long, including the sign
+    private static final int MAX_DIGITS = 20;
+
+    private final byte[] bytes = new byte[CONTENT_LENGTH.length + MAX_DIGITS
+            + TIMESTAMP.length + MAX_DIGITS + END.length];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    PartHeader() {
+        super();
+        System.arraycopy(CONTENT_LENGTH, 0, bytes, 0, CONTENT_LENGTH.length);
+    }
+
+    /**
+     * Rewrite the header for a frame and return it ready to be written.
+     */
+    ByteBuffer update(final int length, final long timestamp) {
+        int position = Ascii.putDecimal(length, bytes, CONTENT_LENGTH.length);
+        System.arraycopy(TIMESTAMP, 0, bytes, position, TIMESTAMP.length);
+        position = Ascii.putDecimal(timestamp, bytes, position + TIMESTAMP.length);
+        System.arraycopy(END, 0, bytes, position, END.length);
+        buffer.limit(position + END.length);
+        buffer.position(0);
+        return buffer;
+    }
+}
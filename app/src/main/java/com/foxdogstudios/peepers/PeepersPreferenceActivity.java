@@ -19,12 +19,20 @@ import android.hardware.Camera;
 import android.os.Bundle;
 import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 
 import java.util.List;
 
 public class PeepersPreferenceActivity extends PreferenceActivity {
+    static final String QUALITY_MODE_FIXED = "fixed";
+    static final String QUALITY_MODE_TARGET = "target";
+    static final String FRAME_WAIT_BLOCK = "block";
+    static final String FRAME_WAIT_SLEEP = "sleep";
+    static final String FRAME_WAIT_YIELD = "yield";
+    static final String FRAME_WAIT_SPIN = "spin";
+
     public PeepersPreferenceActivity() {
         super();
     }
@@ -59,6 +67,41 @@ public class PeepersPreferenceActivity extends PreferenceActivity {
                 return false;
             }
         });
+
+        // JPEG quality mode preference
+        final ListPreference qualityModePreference =
+                (ListPreference) findPreference("quality_mode");
+        qualityModePreference.setEntries(new CharSequence[]{"Fixed quality",
+                "Target bitrate and frame rate"});
+        qualityModePreference.setEntryValues(new CharSequence[]{QUALITY_MODE_FIXED,
+                QUALITY_MODE_TARGET});
+
+        enableQualityPreferences(qualityModePreference.getValue());
+
+        qualityModePreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                enableQualityPreferences((String) newValue);
+                return true;
+            }
+        });
+
+        // Frame hand-off preference
+        final ListPreference frameWaitPreference = (ListPreference) findPreference("frame_wait");
+        frameWaitPreference.setEntries(new CharSequence[]{"Block (saves battery)",
+                "Sleep and poll", "Spin and yield", "Spin (lowest latency, keeps a core busy)"});
+        frameWaitPreference.setEntryValues(new CharSequence[]{FRAME_WAIT_BLOCK,
+                FRAME_WAIT_SLEEP, FRAME_WAIT_YIELD, FRAME_WAIT_SPIN});
+    }
+
+    /**
+     * In target mode the JPEG quality preference is only the starting
+     * quality, so it stays enabled.
+     */
+    private void enableQualityPreferences(final String qualityMode) {
+        final boolean isTarget = QUALITY_MODE_TARGET.equals(qualityMode);
+        findPreference("target_bitrate").setEnabled(isTarget);
+        findPreference("target_fps").setEnabled(isTarget);
     }
 
     private void setCameraPreferences(final ListPreference cameraPreference) {
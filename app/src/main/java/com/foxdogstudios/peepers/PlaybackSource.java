@@ -0,0 +1,51 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Frames played back to a client one after another, each with the time
+ * it was captured. A source starts at its first frame and is only used
+ * by the streamer's worker thread.
+ */
+interface PlaybackSource extends Closeable {
+    /**
+     * When the current frame was captured, in milliseconds.
+     */
+    long getTimestamp();
+
+    int getLength();
+
+    boolean hasBytesLeft();
+
+    /**
+     * Send as much of the current frame as the channel takes without
+     * blocking.
+     *
+     * @return the number of bytes sent
+     */
+    long transferTo(WritableByteChannel target) throws IOException;
+
+    /**
+     * Move to the next frame.
+     *
+     * @return false if there are no more frames
+     */
+    boolean next() throws IOException;
+}
@@ -0,0 +1,361 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Keeps the last few seconds of one stream in memory so that when
+ * something happens the frames from before it can be kept too, without
+ * recording to disk all the time.
+ *
+ * Frames are copied into a preallocated window: one direct buffer
+ * holding the JPEGs back to back, wrapping round at the end, so that
+ * they go out to a client or file without another copy, and arrays of each
+ * frame's time, offset and length. The oldest frames are evicted once
+ * they are older than the window's duration, or sooner to make room, in
+ * which case they are counted and the window holds less than the
+ * duration. Nothing is allocated per frame.
+ *
+ * There are two windows. freeze() swaps them, so the frozen window can
+ * be streamed or saved for as long as that takes while new frames carry
+ * on into the other one. Only one window can be frozen at a time.
+ */
+class PreEventBuffer implements MJpegHttpStreamer.FrameListener {
+    private static final String TAG = PreEventBuffer.class.getSimpleName();
+
+    private static final String EVENT_PREFIX = "event-";
+
+    private final int stream;
+    private final long durationMs;
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private Window live;
+    // null while a window is frozen
+    private Window spare;
+    private long numFramesEvicted = 0L;
+
+    /**
+     * @param stream the frame cache stream to keep, which must be kept
+     *               subscribed
+     * @param capacityBytes the size of each window, of which there are
+     *                      two
+     * @param maxFrames the most frames a window holds
+     * @param durationMs how far back frames are kept
+     */
+    PreEventBuffer(final int stream, final int capacityBytes, final int maxFrames,
+                   final long durationMs) {
+        super();
+        this.stream = stream;
+        this.durationMs = durationMs;
+        live = new Window(capacityBytes, maxFrames);
+        spare = new Window(capacityBytes, maxFrames);
+    }
+
+    @Override
+    public void onFramePublished(final int stream, final ByteBuffer jpeg, final long timestamp) {
+        if (stream != this.stream) {
+            return;
+        }
+        // Stamped like the recorder so that both play back alike
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            numFramesEvicted += live.add(jpeg, now, now - durationMs);
+        }
+    }
+
+    /**
+     * How far back the live window reaches, from its oldest frame to its
+     * newest, in milliseconds.
+     */
+    long getSpanMs() {
+        synchronized (lock) {
+            return live.getSpanMs();
+        }
+    }
+
+    /**
+     * The frames evicted before they were as old as the duration, to
+     * make room for new ones.
+     */
+    long getNumFramesEvicted() {
+        synchronized (lock) {
+            return numFramesEvicted;
+        }
+    }
+
+    /**
+     * Take the frames kept so far, leaving the buffer empty. The caller
+     * must close() the returned playback, which frees the window.
+     *
+     * @return null if a window is already frozen
+     */
+    Playback freeze() {
+        final Window frozen;
+        synchronized (lock) {
+            if (spare == null) {
+                return null;
+            }
+            frozen = live;
+            live = spare;
+            live.clear();
+            spare = null;
+        }
+        // Frames older than the duration may not have been evicted yet
+        frozen.evictBefore(System.currentTimeMillis() - durationMs);
+        return new Playback(frozen);
+    }
+
+    private void unfreeze(final Window window) {
+        synchronized (lock) {
+            spare = window;
+        }
+    }
+
+    /**
+     * Write the frozen frames to a new file in the directory on a
+     * thread of its own, in the recorder's format: a data file of the
+     * JPEGs back to back and an index file. The playback is closed once
+     * they have been written.
+     *
+     * @return the data file
+     */
+    static File save(final Playback playback, final File directory) {
+        final String name = EVENT_PREFIX + playback.window.getFirstTimestamp();
+        final File dataFile = new File(directory, name + SegmentRecorder.DATA_SUFFIX);
+        final File indexFile = new File(directory, name + SegmentRecorder.INDEX_SUFFIX);
+        final Thread saver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        throw new IOException("cannot create " + directory);
+                    }
+                    playback.window.writeTo(dataFile, indexFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    playback.close();
+                }
+            }
+        }, TAG + "-save");
+        saver.start();
+        return dataFile;
+    }
+
+    /**
+     * The frames of a frozen window, oldest first.
+     */
+    final class Playback implements PlaybackSource {
+        private final Window window;
+        private final ByteBuffer view;
+        private int frame = 0;
+        private boolean isClosed = false;
+
+        private Playback(final Window window) {
+            super();
+            this.window = window;
+            view = window.bytes.duplicate();
+            setView();
+        }
+
+        boolean isEmpty() {
+            return window.numFrames == 0;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return window.timestamps[window.slot(frame)];
+        }
+
+        @Override
+        public int getLength() {
+            return window.lengths[window.slot(frame)];
+        }
+
+        @Override
+        public boolean hasBytesLeft() {
+            return view.hasRemaining();
+        }
+
+        @Override
+        public long transferTo(final WritableByteChannel target) throws IOException {
+            return target.write(view);
+        }
+
+        @Override
+        public boolean next() {
+            if (frame + 1 >= window.numFrames) {
+                return false;
+            }
+            frame++;
+            setView();
+            return true;
+        }
+
+        /**
+         * Free the window. Safe to call more than once.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+            }
+            unfreeze(window);
+        }
+
+        private void setView() {
+            if (window.numFrames == 0) {
+                view.limit(0);
+                return;
+            }
+            final int slot = window.slot(frame);
+            view.limit(window.offsets[slot] + window.lengths[slot]);
+            view.position(window.offsets[slot]);
+        }
+    }
+
+    private static final class Window {
+        private final ByteBuffer bytes;
+        // A ring of frames, the oldest at firstSlot
+        private final long[] timestamps;
+        private final int[] offsets;
+        private final int[] lengths;
+        private int firstSlot = 0;
+        private int numFrames = 0;
+        // Where the next frame's bytes go
+        private int position = 0;
+
+        private Window(final int capacityBytes, final int maxFrames) {
+            super();
+            bytes = ByteBuffer.allocateDirect(capacityBytes);
+            timestamps = new long[maxFrames];
+            offsets = new int[maxFrames];
+            lengths = new int[maxFrames];
+        }
+
+        private int slot(final int frame) {
+            return (firstSlot + frame) % timestamps.length;
+        }
+
+        private void clear() {
+            firstSlot = 0;
+            numFrames = 0;
+            position = 0;
+        }
+
+        private long getFirstTimestamp() {
+            return numFrames == 0 ? 0L : timestamps[firstSlot];
+        }
+
+        private long getSpanMs() {
+            return numFrames == 0 ? 0L
+                    : timestamps[slot(numFrames - 1)] - timestamps[firstSlot];
+        }
+
+        /**
+         * @return the number of frames evicted to make room
+         */
+        private int add(final ByteBuffer jpeg, final long timestamp,
+                        final long oldestTimestamp) {
+            final int length = jpeg.remaining();
+            if (length > bytes.capacity()) {
+                return 0;
+            }
+            evictBefore(oldestTimestamp);
+            final int numFramesBefore = numFrames;
+            if (numFrames == timestamps.length) {
+                evictOldest();
+            }
+
+            if (position + length > bytes.capacity()) {
+                // Wrap round. The frames between here and the end are
+                // the oldest, so they go first.
+                while (numFrames > 0 && offsets[firstSlot] >= position) {
+                    evictOldest();
+                }
+                position = 0;
+            }
+            // Then the oldest frames until the new one fits
+            while (numFrames > 0 && offsets[firstSlot] < position + length
+                    && offsets[firstSlot] + lengths[firstSlot] > position) {
+                evictOldest();
+            }
+
+            bytes.clear();
+            bytes.position(position);
+            bytes.put(jpeg);
+            final int slot = slot(numFrames);
+            timestamps[slot] = timestamp;
+            offsets[slot] = position;
+            lengths[slot] = length;
+            final int numFramesEvicted = numFramesBefore - numFrames;
+            numFrames++;
+            position += length;
+            return numFramesEvicted;
+        }
+
+        private void evictBefore(final long oldestTimestamp) {
+            while (numFrames > 0 && timestamps[firstSlot] < oldestTimestamp) {
+                evictOldest();
+            }
+        }
+
+        private void evictOldest() {
+            firstSlot = (firstSlot + 1) % timestamps.length;
+            numFrames--;
+        }
+
+        private void writeTo(final File dataFile, final File indexFile) throws IOException {
+            final FileChannel data = new FileOutputStream(dataFile).getChannel();
+            try {
+                final OutputStream index = new FileOutputStream(indexFile);
+                try {
+                    final ByteBuffer view = bytes.duplicate();
+                    final ByteBuffer entry = ByteBuffer.allocate(
+                            SegmentRecorder.INDEX_ENTRY_SIZE);
+                    int offset = 0;
+                    for (int frame = 0; frame < numFrames; frame++) {
+                        final int slot = slot(frame);
+                        view.limit(offsets[slot] + lengths[slot]);
+                        view.position(offsets[slot]);
+                        while (view.hasRemaining()) {
+                            data.write(view);
+                        }
+                        entry.clear();
+                        entry.putLong(timestamps[slot]).putInt(offset).putInt(lengths[slot]);
+                        index.write(entry.array());
+                        offset += lengths[slot];
+                    }
+                } finally {
+                    index.close();
+                }
+            } finally {
+                data.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+/**
+ * Chooses the JPEG quality of each frame. EncoderPool asks for a
+ * quality when a frame is submitted and reports what became of it.
+ * Implementations must be thread safe.
+ */
+interface QualityController {
+    int getQuality();
+
+    /**
+     * Called in capture order for every frame sent to the streamer.
+     *
+     * @param timestamp the frame's capture time in milliseconds
+     */
+    void onFramePublished(int numBytes, long timestamp);
+
+    /**
+     * Called for every frame that was not encoded in time or at all.
+     */
+    void onFrameDropped();
+
+    /**
+     * Always uses the same quality.
+     */
+    final class Fixed implements QualityController {
+        private final int quality;
+
+        Fixed(final int quality) {
+            super();
+            this.quality = quality;
+        }
+
+        @Override
+        public int getQuality() {
+            return quality;
+        }
+
+        @Override
+        public void onFramePublished(final int numBytes, final long timestamp) {
+        }
+
+        @Override
+        public void onFrameDropped() {
+        }
+    }
+}
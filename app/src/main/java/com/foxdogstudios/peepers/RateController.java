@@ -0,0 +1,148 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+/**
+ * Adjusts the JPEG quality to hold a target bitrate and frame rate.
+ *
+ * The bitrate is measured from the sizes and capture timestamps of the
+ * last few published frames. Quality drops when the bitrate is above
+ * the target, or when frames are being dropped while the frame rate is
+ * below its target, and rises when the bitrate is below the target.
+ * To stop the quality flapping there is a dead band around the target,
+ * the quality is held for a few frames after each change so that its
+ * effect can be measured, and it rises more slowly than it falls. A
+ * quality at which the encoder fell behind is not tried again until
+ * it has kept up for a while.
+ */
+class RateController implements QualityController {
+    static final int MIN_QUALITY = 5;
+    static final int MAX_QUALITY = 95;
+
+    static final int NUM_FRAMES_AVERAGED = 15;
+    // Frames to wait after a change before judging it
+    static final int NUM_HOLD_FRAMES = 5;
+    // How far from the target the bitrate may wander, as a fraction
+    static final double DEAD_BAND = 0.1;
+    static final int MAX_STEP_DOWN = 10;
+    static final int MAX_STEP_UP = 3;
+    // Frames without falling behind before the ceiling rises by one
+    static final int NUM_CEILING_FRAMES = 300;
+
+    private final double targetBitsPerSecond;
+    private final double targetFps;
+
+    private volatile int quality;
+
+    // Guarded by this
+    private final MovingAverage averageBytes = new MovingAverage(NUM_FRAMES_AVERAGED);
+    private final MovingAverage averageIntervalMs = new MovingAverage(NUM_FRAMES_AVERAGED);
+    private long lastTimestamp = Long.MIN_VALUE;
+    private int numFramesSinceChange = 0;
+    private int numDroppedSinceChange = 0;
+    // Below the quality at which the encoder last fell behind
+    private int ceiling = MAX_QUALITY;
+    private int numFramesBelowCeiling = 0;
+
+    /**
+     * @param initialQuality the quality to start with
+     * @param targetBitsPerSecond the bitrate to hold
+     * @param targetFps the frame rate below which dropped frames lower
+     *                  the quality
+     */
+    RateController(final int initialQuality, final long targetBitsPerSecond,
+                   final double targetFps) {
+        super();
+
+        if (targetBitsPerSecond <= 0L) {
+            throw new IllegalArgumentException("targetBitsPerSecond must be positive");
+        }
+        if (targetFps <= 0.0) {
+            throw new IllegalArgumentException("targetFps must be positive");
+        }
+
+        this.targetBitsPerSecond = targetBitsPerSecond;
+        this.targetFps = targetFps;
+        quality = clamp(initialQuality);
+    }
+
+    @Override
+    public int getQuality() {
+        return quality;
+    }
+
+    @Override
+    public synchronized void onFramePublished(final int numBytes, final long timestamp) {
+        averageBytes.update(numBytes);
+        if (lastTimestamp != Long.MIN_VALUE && timestamp > lastTimestamp) {
+            averageIntervalMs.update(timestamp - lastTimestamp);
+        }
+        lastTimestamp = timestamp;
+
+        numFramesSinceChange++;
+        if (numFramesSinceChange < NUM_HOLD_FRAMES || averageIntervalMs.getLength() == 0) {
+            return;
+        }
+
+        final double fps = 1000.0 / averageIntervalMs.getAverage();
+        final double ratio = averageBytes.getAverage() * 8.0 * fps / targetBitsPerSecond;
+        // Dropping frames while short of the target frame rate means the
+        // encoder cannot keep up, smaller frames are quicker to encode
+        final boolean isFallingBehind = numDroppedSinceChange > 0
+                && fps < targetFps * (1.0 - DEAD_BAND);
+
+        if (isFallingBehind) {
+            ceiling = quality - 1;
+            numFramesBelowCeiling = 0;
+        } else if (ceiling < MAX_QUALITY && ++numFramesBelowCeiling >= NUM_CEILING_FRAMES) {
+            ceiling++;
+            numFramesBelowCeiling = 0;
+        }
+
+        int newQuality = quality;
+        if (isFallingBehind || ratio > 1.0 + DEAD_BAND) {
+            final double shortfall = isFallingBehind ? 1.0 - fps / targetFps : 0.0;
+            final double excess = Math.max(ratio - 1.0, shortfall);
+            newQuality -= step(excess, MAX_STEP_DOWN);
+        } else if (ratio < 1.0 - DEAD_BAND) {
+            newQuality = Math.min(newQuality + step(1.0 - ratio, MAX_STEP_UP),
+                    Math.max(quality, ceiling));
+        }
+        newQuality = clamp(newQuality);
+
+        if (newQuality != quality) {
+            quality = newQuality;
+            numFramesSinceChange = 0;
+            numDroppedSinceChange = 0;
+        }
+    }
+
+    @Override
+    public synchronized void onFrameDropped() {
+        numDroppedSinceChange++;
+    }
+
+    /**
+     * A step proportional to the relative error, at least 1.
+     */
+    private int step(final double error, final int maxStep) {
+        return Math.max(1, Math.min(maxStep, (int) Math.round(quality * error / 2.0)));
+    }
+
+    private static int clamp(final int quality) {
+        return Math.max(MIN_QUALITY, Math.min(MAX_QUALITY, quality));
+    }
+}
@@ -0,0 +1,231 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A cursor over the frames a SegmentRecorder has written, up to the
+ * last one recorded at or before an end time. The first frame is found
+ * by binary search, first over the recorder's in-memory SegmentIndex and
+ * then over that segment's index file, so the streamer's thread never
+ * lists the recording's directory.
+ *
+ * A frame's bytes go straight from the data file to a channel with
+ * transferTo(), so they never pass through the Java heap and every
+ * reader of a frame shares the one copy in the page cache.
+ *
+ * The recording may be read while it is being written. The index only
+ * lists frames whose bytes are already in the data file, and playback
+ * ends at the newest frame rather than waiting for more.
+ */
+class RecordingPlayback implements PlaybackSource {
+    private static final int ENTRY_SIZE = SegmentRecorder.INDEX_ENTRY_SIZE;
+
+    private final SegmentIndex segments;
+    private final File directory;
+    private final long toMs;
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+
+    private long segmentNumber = -1L;
+    private FileChannel index = null;
+    private FileChannel data = null;
+    private long entryIndex = 0L;
+
+    // The current frame
+    private long timestamp = 0L;
+    private int length = 0;
+    private long position = 0L;
+    private long numBytesLeft = 0L;
+
+    /**
+     * @param toMs the latest recording time to play back, in
+     *             milliseconds since the epoch
+     */
+    RecordingPlayback(final SegmentIndex segments, final long toMs) {
+        super();
+        this.segments = segments;
+        directory = segments.getDirectory();
+        this.toMs = toMs;
+    }
+
+    /**
+     * Move to the first frame recorded at or after fromMs.
+     *
+     * @return false if no such frame was recorded by the end time
+     */
+    boolean seek(final long fromMs) throws IOException {
+        closeSegment();
+        segmentNumber = -1L;
+        for (long number = segments.findSegment(fromMs); number >= 0L;
+                number = segments.findSegmentAfter(number)) {
+            if (!openSegment(number)) {
+                // Deleted to make room since it was found
+                continue;
+            }
+            final long numEntries = index.size() / ENTRY_SIZE;
+            entryIndex = findEntry(fromMs, numEntries);
+            if (entryIndex < numEntries) {
+                readEntry();
+                return timestamp <= toMs;
+            }
+            closeSegment();
+        }
+        segmentNumber = -1L;
+        return false;
+    }
+
+    /**
+     * Move to the next frame, in the next segment if this one has run
+     * out.
+     *
+     * @return false if there are no more frames up to the end time
+     */
+    @Override
+    public boolean next() throws IOException {
+        if (segmentNumber < 0L) {
+            return false;
+        }
+        entryIndex++;
+        while (index == null || (entryIndex + 1L) * ENTRY_SIZE > index.size()) {
+            final long nextNumber = segments.findSegmentAfter(segmentNumber);
+            if (nextNumber < 0L) {
+                return false;
+            }
+            closeSegment();
+            // May have been deleted already, then try the one after
+            openSegment(nextNumber);
+            entryIndex = 0L;
+        }
+        readEntry();
+        return timestamp <= toMs;
+    }
+
+    /**
+     * When the current frame was recorded, in milliseconds since the
+     * epoch.
+     */
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean hasBytesLeft() {
+        return numBytesLeft > 0L;
+    }
+
+    /**
+     * Send as much of the current frame as the channel takes without
+     * blocking.
+     *
+     * @return the number of bytes sent
+     */
+    @Override
+    public long transferTo(final WritableByteChannel target) throws IOException {
+        final long numBytes = data.transferTo(position, numBytesLeft, target);
+        position += numBytes;
+        numBytesLeft -= numBytes;
+        return numBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    /**
+     * The first entry recorded at or after fromMs, or numEntries if
+     * there is none.
+     */
+    private long findEntry(final long fromMs, final long numEntries) throws IOException {
+        long low = 0L;
+        long high = numEntries;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (readTimestamp(index, middle) < fromMs) {
+                low = middle + 1L;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long readTimestamp(final FileChannel channel, final long entryIndex)
+            throws IOException {
+        read(channel, entryIndex);
+        return entry.getLong();
+    }
+
+    private void readEntry() throws IOException {
+        read(index, entryIndex);
+        timestamp = entry.getLong();
+        position = entry.getInt();
+        length = entry.getInt();
+        numBytesLeft = length;
+    }
+
+    private void read(final FileChannel channel, final long entryIndex) throws IOException {
+        entry.clear();
+        while (entry.hasRemaining()) {
+            if (channel.read(entry, entryIndex * ENTRY_SIZE + entry.position()) < 0) {
+                throw new EOFException("index entry " + entryIndex + " is cut short");
+            }
+        }
+        entry.flip();
+    }
+
+    private boolean openSegment(final long number) throws IOException {
+        segmentNumber = number;
+        try {
+            index = new RandomAccessFile(SegmentRecorder.getIndexFile(directory, number), "r")
+                    .getChannel();
+            data = new RandomAccessFile(SegmentRecorder.getDataFile(directory, number), "r")
+                    .getChannel();
+            return true;
+        } catch (FileNotFoundException e) {
+            closeSegment();
+            return false;
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        try {
+            if (index != null) {
+                index.close();
+            }
+        } finally {
+            index = null;
+            if (data != null) {
+                data.close();
+                data = null;
+            }
+        }
+    }
+}
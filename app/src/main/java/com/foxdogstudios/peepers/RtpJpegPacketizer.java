@@ -0,0 +1,321 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits JPEGs into RTP packets with the JPEG payload format of RFC
+ * 2435. The headers are stripped off each frame and only the entropy
+ * coded data is sent, after a short header from which the receiver
+ * rebuilds them: the size in multiples of 8 pixels, the chroma
+ * subsampling, the restart interval and the quantization tables.
+ *
+ * The tables go in-band, in the first packet of a frame, only when they
+ * have changed or have not been sent for a while, so that a receiver
+ * that joins late or lost them picks them up. Each set of tables is
+ * given its own Q between 128 and 254, under which the receiver keeps
+ * them; frames sent without them carry the same Q and a table length of
+ * 0.
+ *
+ * RFC 2435 assumes the Huffman tables of the JPEG standard's Annex K,
+ * which JpegEncoder always uses, as does Android's YuvImage. Only
+ * baseline frames of three components, with Y at 2x1 or 2x2 and Cb and
+ * Cr at 1x1, no larger than 2040 x 2040 pixels can be sent.
+ */
+class RtpJpegPacketizer {
+    static final int RTP_HEADER_SIZE = 12;
+    static final int JPEG_HEADER_SIZE = 8;
+    static final int RESTART_HEADER_SIZE = 4;
+    static final int QUANTIZATION_HEADER_SIZE = 4;
+    static final int RTP_VERSION = 2;
+    static final int PAYLOAD_TYPE_JPEG = 26;
+    // The RTP clock rate of video
+    static final int CLOCK_RATE = 90000;
+
+    // Types 0 and 1, plus 64 for restart markers
+    static final int TYPE_422 = 0;
+    static final int TYPE_420 = 1;
+    static final int TYPE_RESTART = 64;
+    static final int FIRST_DYNAMIC_Q = 128;
+    static final int LAST_DYNAMIC_Q = 254;
+    // Two tables of 64 one-byte entries, luma then chroma
+    static final int TABLES_SIZE = 2 * 64;
+    static final int MAX_DIMENSION = 255 * 8;
+
+    private static final int MIN_PACKET_SIZE = RTP_HEADER_SIZE + JPEG_HEADER_SIZE
+            + RESTART_HEADER_SIZE + QUANTIZATION_HEADER_SIZE + TABLES_SIZE + 1;
+
+    private final int maxPacketSize;
+    private final long tableIntervalMs;
+    private final int ssrc;
+    private final int timestampOffset;
+    private int sequenceNumber;
+
+    // The current set of tables and its Q
+    private final byte[] tables = new byte[TABLES_SIZE];
+    private final byte[] frameTables = new byte[TABLES_SIZE];
+    private int q = LAST_DYNAMIC_Q;
+    private boolean hasTables = false;
+    private long tablesSentMs = 0L;
+
+    // The frame being packetized
+    private byte[] jpeg = null;
+    private int scanStart = 0;
+    private int scanEnd = 0;
+    private int fragmentOffset = 0;
+    private int rtpTimestamp = 0;
+    private int type = 0;
+    private int widthBlocks = 0;
+    private int heightBlocks = 0;
+    private int restartInterval = 0;
+    private boolean sendTables = false;
+
+    /**
+     * @param maxPacketSize the largest UDP payload to send, which should
+     *                      fit in the path's MTU
+     * @param tableIntervalMs how often to send unchanged tables again
+     */
+    RtpJpegPacketizer(final int maxPacketSize, final long tableIntervalMs) {
+        super();
+
+        if (maxPacketSize < MIN_PACKET_SIZE) {
+            throw new IllegalArgumentException("maxPacketSize must be at least "
+                    + MIN_PACKET_SIZE);
+        }
+
+        this.maxPacketSize = maxPacketSize;
+        this.tableIntervalMs = tableIntervalMs;
+        // Random, as RFC 3550 asks, so that streams can be told apart
+        final Random random = new Random();
+        ssrc = random.nextInt();
+        timestampOffset = random.nextInt();
+        sequenceNumber = random.nextInt() & 0xFFFF;
+    }
+
+    int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    /**
+     * Start packetizing a frame. The JPEG must not change until the last
+     * packet has been taken.
+     *
+     * @param timestampMs when the frame was captured
+     * @param nowMs the time, to decide when to send the tables again
+     * @return false if the frame cannot be sent as RTP/JPEG
+     */
+    boolean setFrame(final byte[] jpeg, final int length, final long timestampMs,
+                     final long nowMs) {
+        this.jpeg = null;
+        if (!parse(jpeg, length)) {
+            return false;
+        }
+
+        if (!hasTables || !Arrays.equals(tables, frameTables)) {
+            // A new Q, so that the receiver does not use the old tables
+            // for frames sent before it has the new ones
+            q = q == LAST_DYNAMIC_Q ? FIRST_DYNAMIC_Q : q + 1;
+            System.arraycopy(frameTables, 0, tables, 0, TABLES_SIZE);
+            hasTables = true;
+            sendTables = true;
+        } else {
+            sendTables = nowMs - tablesSentMs >= tableIntervalMs;
+        }
+        if (sendTables) {
+            tablesSentMs = nowMs;
+        }
+
+        this.jpeg = jpeg;
+        fragmentOffset = 0;
+        rtpTimestamp = (int) (timestampMs * (CLOCK_RATE / 1000)) + timestampOffset;
+        return true;
+    }
+
+    boolean hasNextPacket() {
+        return jpeg != null && scanStart + fragmentOffset < scanEnd;
+    }
+
+    /**
+     * Write the frame's next packet.
+     *
+     * @param packet at least getMaxPacketSize() bytes
+     * @return the packet's length
+     */
+    int nextPacket(final byte[] packet) {
+        final boolean isFirst = fragmentOffset == 0;
+        int position = RTP_HEADER_SIZE;
+
+        // Main JPEG header. A type-specific field of 0 means the frame
+        // is not interlaced.
+        packet[position++] = 0;
+        packet[position++] = (byte) (fragmentOffset >> 16);
+        packet[position++] = (byte) (fragmentOffset >> 8);
+        packet[position++] = (byte) fragmentOffset;
+        packet[position++] = (byte) type;
+        packet[position++] = (byte) q;
+        packet[position++] = (byte) widthBlocks;
+        packet[position++] = (byte) heightBlocks;
+
+        if (restartInterval != 0) {
+            // F and L set with a count of 0x3FFF: the packets need not
+            // split the data at restart markers
+            packet[position++] = (byte) (restartInterval >> 8);
+            packet[position++] = (byte) restartInterval;
+            packet[position++] = (byte) 0xFF;
+            packet[position++] = (byte) 0xFF;
+        }
+
+        if (isFirst) {
+            final int tablesLength = sendTables ? TABLES_SIZE : 0;
+            packet[position++] = 0;
+            // Precision: 8-bit entries
+            packet[position++] = 0;
+            packet[position++] = (byte) (tablesLength >> 8);
+            packet[position++] = (byte) tablesLength;
+            System.arraycopy(tables, 0, packet, position, tablesLength);
+            position += tablesLength;
+        }
+
+        final int start = scanStart + fragmentOffset;
+        final int length = Math.min(scanEnd - start, maxPacketSize - position);
+        System.arraycopy(jpeg, start, packet, position, length);
+        position += length;
+        fragmentOffset += length;
+        final boolean isLast = scanStart + fragmentOffset == scanEnd;
+
+        packet[0] = (byte) (RTP_VERSION << 6);
+        packet[1] = (byte) ((isLast ? 0x80 : 0) | PAYLOAD_TYPE_JPEG);
+        packet[2] = (byte) (sequenceNumber >> 8);
+        packet[3] = (byte) sequenceNumber;
+        putInt(packet, 4, rtpTimestamp);
+        putInt(packet, 8, ssrc);
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        return position;
+    }
+
+    private static void putInt(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int getShort(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) << 8 | buffer[offset + 1] & 0xFF;
+    }
+
+    /**
+     * Walk the frame's markers up to SOS, taking what the RTP/JPEG
+     * header needs from them.
+     */
+    private boolean parse(final byte[] jpeg, final int length) {
+        if (length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return false;
+        }
+        boolean hasFrame = false;
+        // Bit i set once table i is defined
+        int definedTables = 0;
+        restartInterval = 0;
+
+        int position = 2;
+        while (position + 4 <= length) {
+            if ((jpeg[position] & 0xFF) != 0xFF) {
+                return false;
+            }
+            final int marker = jpeg[position + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            final int segmentStart = position + 4;
+            final int segmentEnd = position + 2 + getShort(jpeg, position + 2);
+            if (segmentEnd > length || segmentEnd < segmentStart) {
+                return false;
+            }
+
+            if (marker == 0xDB) {
+                // DQT: one or more tables of 8-bit entries
+                for (int table = segmentStart; table < segmentEnd; table += 65) {
+                    final int id = jpeg[table] & 0xFF;
+                    if (id > 1 || table + 65 > segmentEnd) {
+                        // 16-bit entries or a table RTP/JPEG cannot use
+                        return false;
+                    }
+                    System.arraycopy(jpeg, table + 1, frameTables, id * 64, 64);
+                    definedTables |= 1 << id;
+                }
+            } else if (marker == 0xC0) {
+                if (!parseFrame(jpeg, segmentStart, segmentEnd)) {
+                    return false;
+                }
+                hasFrame = true;
+            } else if (marker == 0xDD) {
+                restartInterval = getShort(jpeg, segmentStart);
+            } else if (marker == 0xDA) {
+                if (!hasFrame || definedTables != 3) {
+                    return false;
+                }
+                scanStart = segmentEnd;
+                scanEnd = length;
+                if ((jpeg[length - 2] & 0xFF) == 0xFF && (jpeg[length - 1] & 0xFF) == 0xD9) {
+                    // The receiver adds the EOI back
+                    scanEnd -= 2;
+                }
+                if (restartInterval != 0) {
+                    type |= TYPE_RESTART;
+                }
+                return scanEnd > scanStart;
+            } else if (marker >= 0xC1 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                    && marker != 0xCC) {
+                // Progressive, lossless or arithmetic coded
+                return false;
+            }
+            position = segmentEnd;
+        }
+        return false;
+    }
+
+    private boolean parseFrame(final byte[] jpeg, final int start, final int end) {
+        if (end - start != 6 + 3 * 3 || jpeg[start] != 8 || jpeg[start + 5] != 3) {
+            return false;
+        }
+        final int height = getShort(jpeg, start + 1);
+        final int width = getShort(jpeg, start + 3);
+        if (width == 0 || height == 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            return false;
+        }
+        // Frames whose size is not a multiple of 8 are shown with the
+        // edge the encoder padded them with
+        widthBlocks = (width + 7) / 8;
+        heightBlocks = (height + 7) / 8;
+
+        final int lumaSampling = jpeg[start + 7] & 0xFF;
+        if (lumaSampling == 0x21) {
+            type = TYPE_422;
+        } else if (lumaSampling == 0x22) {
+            type = TYPE_420;
+        } else {
+            return false;
+        }
+        // Y uses table 0, Cb and Cr table 1, both at 1x1
+        return jpeg[start + 8] == 0
+                && jpeg[start + 10] == 0x11 && jpeg[start + 11] == 1
+                && jpeg[start + 13] == 0x11 && jpeg[start + 14] == 1;
+    }
+}
@@ -0,0 +1,226 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Sends the frames of one stream as RTP/JPEG over UDP, to one receiver
+ * or to a multicast group, so that a viewer on a lossy link loses
+ * frames rather than waiting for them, and any number of viewers on a
+ * LAN can watch one multicast stream. See RtpJpegPacketizer.
+ *
+ * Published frames are copied into one of a few staging buffers and
+ * sent on the sender's own thread, so the encoders never wait for the
+ * network. A frame that finds every staging buffer full, or that the
+ * payload format cannot carry, is not sent and is counted.
+ */
+class RtpJpegSender implements MJpegHttpStreamer.FrameListener {
+    private static final String TAG = RtpJpegSender.class.getSimpleName();
+
+    // Frames that can wait for the network before frames are dropped
+    private static final int NUM_STAGED_FRAMES = 2;
+    // Staged by stop() to end the sender's thread
+    private static final StagedFrame END = new StagedFrame(0);
+
+    private final InetSocketAddress destination;
+    private final int timeToLive;
+    private final int stream;
+    private final RtpJpegPacketizer packetizer;
+    private final Metrics metrics;
+
+    private final BlockingQueue<StagedFrame> freeFrames;
+    private final BlockingQueue<StagedFrame> stagedFrames;
+
+    // Resolved by start()
+    private InetSocketAddress address = null;
+    private DatagramSocket socket = null;
+    private Thread sender = null;
+    private volatile boolean isRunning = false;
+
+    /**
+     * @param destination a unicast address or a multicast group, and a
+     *                    port, which should be even; resolved by start()
+     * @param timeToLive how many routers multicast packets may cross
+     * @param stream the frame cache stream to send, which must be kept
+     *               subscribed while sending
+     * @param maxFrameSize the largest JPEG the stream can produce
+     * @param maxPacketSize the largest UDP payload to send
+     * @param tableIntervalMs how often to send unchanged quantization
+     *                        tables again
+     * @param metrics where sent and unsent frames are counted
+     */
+    RtpJpegSender(final InetSocketAddress destination, final int timeToLive, final int stream,
+                  final int maxFrameSize, final int maxPacketSize, final long tableIntervalMs,
+                  final Metrics metrics) {
+        super();
+        this.destination = destination;
+        this.timeToLive = timeToLive;
+        this.stream = stream;
+        packetizer = new RtpJpegPacketizer(maxPacketSize, tableIntervalMs);
+        this.metrics = metrics;
+
+        freeFrames = new ArrayBlockingQueue<StagedFrame>(NUM_STAGED_FRAMES);
+        // Room for END as well
+        stagedFrames = new ArrayBlockingQueue<StagedFrame>(NUM_STAGED_FRAMES + 1);
+        for (int i = 0; i < NUM_STAGED_FRAMES; i++) {
+            freeFrames.add(new StagedFrame(maxFrameSize));
+        }
+    }
+
+    void start() throws IOException {
+        if (isRunning) {
+            throw new IllegalStateException("RtpJpegSender is already running");
+        }
+
+        address = new InetSocketAddress(destination.getHostName(), destination.getPort());
+        if (address.isUnresolved()) {
+            throw new IOException("cannot resolve " + destination.getHostName());
+        }
+        if (address.getAddress().isMulticastAddress()) {
+            final MulticastSocket multicastSocket = new MulticastSocket();
+            multicastSocket.setTimeToLive(timeToLive);
+            socket = multicastSocket;
+        } else {
+            socket = new DatagramSocket();
+        }
+        isRunning = true;
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                senderRun();
+            }
+        }, TAG);
+        sender.start();
+    }
+
+    /**
+     * Stop sending and wait for the frame being sent to finish.
+     */
+    void stop() throws InterruptedException {
+        if (!isRunning) {
+            throw new IllegalStateException("RtpJpegSender is already stopped");
+        }
+
+        isRunning = false;
+        // Frames still staged are not worth sending late
+        stagedFrames.drainTo(freeFrames);
+        stagedFrames.add(END);
+        sender.join();
+        socket.close();
+    }
+
+    InetSocketAddress getDestination() {
+        return destination;
+    }
+
+    /**
+     * Parse HOST:PORT without resolving the host, which start() does.
+     */
+    static InetSocketAddress parseDestination(final String value) {
+        final int colon = value.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("destination must be HOST:PORT");
+        }
+        final int port = Integer.parseInt(value.substring(colon + 1));
+        if (port <= 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("port must be between 1 and 65535");
+        }
+        return InetSocketAddress.createUnresolved(value.substring(0, colon), port);
+    }
+
+    @Override
+    public void onFramePublished(final int stream, final ByteBuffer jpeg, final long timestamp) {
+        if (stream != this.stream || !isRunning) {
+            return;
+        }
+
+        final int length = jpeg.remaining();
+        final StagedFrame frame = freeFrames.poll();
+        if (frame == null || length > frame.buffer.length) {
+            // The network is not keeping up
+            if (frame != null) {
+                freeFrames.add(frame);
+            }
+            metrics.countRtpFrameNotSent();
+            return;
+        }
+        jpeg.get(frame.buffer, 0, length);
+        frame.length = length;
+        frame.timestamp = timestamp;
+        stagedFrames.add(frame);
+    }
+
+    private void senderRun() {
+        final byte[] buffer = new byte[packetizer.getMaxPacketSize()];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
+                address.getAddress(), address.getPort());
+        // Only the first of a run of failures is printed
+        boolean hasFailed = false;
+        try {
+            while (true) {
+                final StagedFrame frame = stagedFrames.take();
+                if (frame == END) {
+                    break;
+                }
+                try {
+                    if (!packetizer.setFrame(frame.buffer, frame.length, frame.timestamp,
+                            System.currentTimeMillis())) {
+                        metrics.countRtpFrameNotSent();
+                        continue;
+                    }
+                    while (packetizer.hasNextPacket()) {
+                        packet.setLength(packetizer.nextPacket(buffer));
+                        socket.send(packet);
+                        metrics.countRtpPacketSent();
+                    }
+                    metrics.countRtpFrameSent();
+                    hasFailed = false;
+                } catch (IOException e) {
+                    // E.g. the network went away; carry on with the next
+                    // frame in case it comes back
+                    if (!hasFailed) {
+                        e.printStackTrace();
+                    }
+                    hasFailed = true;
+                    metrics.countRtpFrameNotSent();
+                } finally {
+                    freeFrames.add(frame);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Nothing else interrupts the sender, treat it as stop()
+        }
+    }
+
+    private static final class StagedFrame {
+        private final byte[] buffer;
+        private int length = 0;
+        private long timestamp = 0L;
+
+        private StagedFrame(final int capacity) {
+            super();
+            buffer = new byte[capacity];
+        }
+    }
+}
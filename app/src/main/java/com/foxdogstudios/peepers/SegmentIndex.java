@@ -0,0 +1,128 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * The segments of a recording that have frames, oldest first, with the
+ * time of each one's first frame. SegmentRecorder keeps it up to date
+ * as it starts and deletes segments, so that playback can find the
+ * segment holding a time without listing the directory or opening
+ * every index file on the streamer's thread. Thread safe.
+ */
+class SegmentIndex {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final File directory;
+
+    // Guarded by this; the segments are at [first, first + numSegments)
+    private long[] numbers = new long[INITIAL_CAPACITY];
+    private long[] firstTimestamps = new long[INITIAL_CAPACITY];
+    private int first = 0;
+    private int numSegments = 0;
+
+    SegmentIndex(final File directory) {
+        super();
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Add a segment newer than every other.
+     */
+    synchronized void add(final long number, final long firstTimestamp) {
+        if (first + numSegments == numbers.length) {
+            // Slide down over the deleted ones, or grow
+            final int capacity = numSegments * 2 > numbers.length
+                    ? numbers.length * 2
+                    : numbers.length;
+            numbers = copy(numbers, capacity);
+            firstTimestamps = copy(firstTimestamps, capacity);
+            first = 0;
+        }
+        numbers[first + numSegments] = number;
+        firstTimestamps[first + numSegments] = firstTimestamp;
+        numSegments++;
+    }
+
+    /**
+     * Forget a segment, which is the oldest unless it never had frames.
+     */
+    synchronized void remove(final long number) {
+        final int index = Arrays.binarySearch(numbers, first, first + numSegments, number);
+        if (index < 0) {
+            return;
+        }
+        final int end = first + numSegments;
+        System.arraycopy(numbers, index + 1, numbers, index, end - index - 1);
+        System.arraycopy(firstTimestamps, index + 1, firstTimestamps, index, end - index - 1);
+        numSegments--;
+    }
+
+    synchronized void clear() {
+        first = 0;
+        numSegments = 0;
+    }
+
+    /**
+     * The last segment whose first frame was recorded at or before
+     * fromMs, as every earlier segment ends before it, or the oldest if
+     * there is none.
+     *
+     * @return -1 if there are no segments
+     */
+    synchronized long findSegment(final long fromMs) {
+        if (numSegments == 0) {
+            return -1L;
+        }
+        int low = first;
+        int high = first + numSegments - 1;
+        int found = first;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (firstTimestamps[middle] <= fromMs) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return numbers[found];
+    }
+
+    /**
+     * The oldest segment newer than the given one.
+     *
+     * @return -1 if there is none yet
+     */
+    synchronized long findSegmentAfter(final long number) {
+        int index = Arrays.binarySearch(numbers, first, first + numSegments, number);
+        // The next one whether or not it was found
+        index = index < 0 ? -index - 1 : index + 1;
+        return index < first + numSegments ? numbers[index] : -1L;
+    }
+
+    private long[] copy(final long[] values, final int capacity) {
+        final long[] result = new long[capacity];
+        System.arraycopy(values, first, result, 0, numSegments);
+        return result;
+    }
+}
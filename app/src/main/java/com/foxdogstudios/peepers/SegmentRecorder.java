@@ -0,0 +1,415 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records the frames of one stream to disk in numbered segments. Each
+ * segment is a data file of the JPEGs back to back and an index file
+ * with one entry per frame: the time it was recorded in milliseconds
+ * since the epoch, its offset in the data file and its length, written
+ * only once the frame is in the data file. The index only ever holds
+ * whole frames, so a segment left by a crash can still be played back.
+ *
+ * The data file is set to the full segment size when the segment starts,
+ * rather than grown frame by frame, and a crash may leave it that long;
+ * the index bounds the frames in it. A segment ends when the next frame
+ * would take it past the segment size, its index is full, or it has run
+ * for the segment duration; it is then cut to the frames written and
+ * synced to the disk. Before each segment is started the oldest segments
+ * are deleted until a full segment fits in the quota.
+ *
+ * Published frames are copied into one of a few direct staging buffers
+ * and written from them on the recorder's own thread, so the encoders
+ * never wait for the disk. A frame that finds every staging buffer full
+ * is dropped and counted.
+ */
+class SegmentRecorder implements MJpegHttpStreamer.FrameListener {
+    private static final String TAG = SegmentRecorder.class.getSimpleName();
+
+    static final String DATA_SUFFIX = ".mjpg";
+    static final String INDEX_SUFFIX = ".idx";
+    // Timestamp, offset and length
+    static final int INDEX_ENTRY_SIZE = 8 + 4 + 4;
+
+    // Frames that can wait for the disk before frames are dropped
+    private static final int NUM_STAGED_FRAMES = 4;
+    // Staged by stop() after the last frame to be written
+    private static final StagedFrame END = new StagedFrame(0);
+
+    private final File directory;
+    private final SegmentIndex segmentIndex;
+    private final int stream;
+    private final long segmentBytes;
+    private final int maxFramesPerSegment;
+    private final long segmentDurationMs;
+    private final long quotaBytes;
+    private final Metrics metrics;
+
+    private final BlockingQueue<StagedFrame> freeFrames;
+    private final BlockingQueue<StagedFrame> stagedFrames;
+
+    // Only used by the writer thread
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+    private long numBytesOnDisk = 0L;
+    private long nextSegmentNumber = 0L;
+    private Segment segment = null;
+    private FileChannel data = null;
+    private long numDataBytes = 0L;
+    private int numSegmentFrames = 0;
+    private FileChannel index = null;
+
+    private Thread writer = null;
+    private volatile boolean isRunning = false;
+    private volatile boolean hasFailed = false;
+
+    /**
+     * @param stream the frame cache stream to record, which must be kept
+     *               subscribed while recording
+     * @param maxFrameSize the largest JPEG the stream can produce
+     * @param segmentBytes the most a data file holds
+     * @param segmentDurationMs the longest time a segment covers
+     * @param maxFramesPerSecond the highest frame rate the stream can
+     *                           have, which sizes each segment's index
+     * @param quotaBytes the most disk space every segment together may
+     *                   take, including the one being written
+     * @param metrics where recorded and dropped frames are counted
+     */
+    SegmentRecorder(final File directory, final int stream, final int maxFrameSize,
+                    final long segmentBytes, final long segmentDurationMs,
+                    final int maxFramesPerSecond,
+                    final long quotaBytes, final Metrics metrics) {
+        super();
+
+        if (segmentBytes < maxFrameSize || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "segmentBytes must fit the largest frame and be under 2 GiB");
+        }
+        if (quotaBytes < segmentBytes) {
+            throw new IllegalArgumentException("quotaBytes must fit at least one segment");
+        }
+
+        this.directory = directory;
+        segmentIndex = new SegmentIndex(directory);
+        this.stream = stream;
+        this.segmentBytes = segmentBytes;
+        maxFramesPerSegment = (int) Math.max(1L,
+                maxFramesPerSecond * segmentDurationMs / 1000L);
+        this.segmentDurationMs = segmentDurationMs;
+        this.quotaBytes = quotaBytes;
+        this.metrics = metrics;
+
+        freeFrames = new ArrayBlockingQueue<StagedFrame>(NUM_STAGED_FRAMES);
+        // Room for END as well
+        stagedFrames = new ArrayBlockingQueue<StagedFrame>(NUM_STAGED_FRAMES + 1);
+        for (int i = 0; i < NUM_STAGED_FRAMES; i++) {
+            freeFrames.add(new StagedFrame(maxFrameSize));
+        }
+    }
+
+    void start() throws IOException {
+        if (isRunning) {
+            throw new IllegalStateException("SegmentRecorder is already running");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+
+        findSegments();
+        hasFailed = false;
+        isRunning = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerRun();
+            }
+        }, TAG);
+        writer.start();
+    }
+
+    /**
+     * Stop recording and wait for the frames already staged to be
+     * written.
+     */
+    void stop() throws InterruptedException {
+        if (!isRunning) {
+            throw new IllegalStateException("SegmentRecorder is already stopped");
+        }
+
+        isRunning = false;
+        stagedFrames.add(END);
+        writer.join();
+    }
+
+    /**
+     * The segments with frames, kept up to date while recording.
+     */
+    SegmentIndex getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    @Override
+    public void onFramePublished(final int stream, final ByteBuffer jpeg, final long timestamp) {
+        if (stream != this.stream || !isRunning) {
+            return;
+        }
+
+        final int length = jpeg.remaining();
+        final StagedFrame frame = hasFailed ? null : freeFrames.poll();
+        if (frame == null || length > frame.buffer.capacity()) {
+            // The disk is not keeping up, or has failed
+            if (frame != null) {
+                freeFrames.add(frame);
+            }
+            metrics.countFrameNotRecorded();
+            return;
+        }
+        frame.buffer.clear();
+        frame.buffer.put(jpeg);
+        frame.length = length;
+        frame.timestamp = System.currentTimeMillis();
+        stagedFrames.add(frame);
+    }
+
+    /**
+     * The data file of a segment.
+     */
+    static File getDataFile(final File directory, final long number) {
+        return new File(directory, String.format(Locale.US, "%010d", number) + DATA_SUFFIX);
+    }
+
+    /**
+     * The index file of a segment.
+     */
+    static File getIndexFile(final File directory, final long number) {
+        return new File(directory, String.format(Locale.US, "%010d", number) + INDEX_SUFFIX);
+    }
+
+    /**
+     * The numbers of the segments in a directory, oldest first.
+     */
+    static long[] listSegments(final File directory) {
+        final String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        final long[] numbers = new long[names.length];
+        int numSegments = 0;
+        for (final String name : names) {
+            if (!name.endsWith(INDEX_SUFFIX)) {
+                continue;
+            }
+            try {
+                numbers[numSegments] = Long.parseLong(
+                        name.substring(0, name.length() - INDEX_SUFFIX.length()));
+                numSegments++;
+            } catch (NumberFormatException e) {
+                // Not ours
+            }
+        }
+        final long[] result = Arrays.copyOf(numbers, numSegments);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Pick up the segments left by earlier recordings so that they
+     * count towards the quota and new segments are numbered after them.
+     */
+    private void findSegments() throws IOException {
+        segments.clear();
+        segmentIndex.clear();
+        numBytesOnDisk = 0L;
+        for (final long number : listSegments(directory)) {
+            final Segment old = new Segment(number);
+            old.numBytes = getDataFile(directory, number).length()
+                    + getIndexFile(directory, number).length();
+            segments.addLast(old);
+            numBytesOnDisk += old.numBytes;
+            nextSegmentNumber = number + 1L;
+
+            final FileChannel oldIndex = new RandomAccessFile(getIndexFile(directory, number),
+                    "r").getChannel();
+            try {
+                indexEntry.clear();
+                while (indexEntry.hasRemaining() && oldIndex.read(indexEntry) >= 0) {
+                    // Until the first entry is read or the file ends
+                }
+                if (!indexEntry.hasRemaining()) {
+                    segmentIndex.add(number, indexEntry.getLong(0));
+                }
+            } finally {
+                oldIndex.close();
+            }
+        }
+    }
+
+    private void writerRun() {
+        try {
+            while (true) {
+                final StagedFrame frame = stagedFrames.take();
+                if (frame == END) {
+                    break;
+                }
+                try {
+                    write(frame);
+                    metrics.countFrameRecorded();
+                } finally {
+                    freeFrames.add(frame);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Nothing else interrupts the writer, treat it as stop()
+        } catch (IOException e) {
+            // Most likely out of space; stop recording rather than fail
+            // on every frame
+            e.printStackTrace();
+            hasFailed = true;
+        }
+
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write(final StagedFrame frame) throws IOException {
+        if (segment == null
+                || numDataBytes + frame.length > segmentBytes
+                || numSegmentFrames == maxFramesPerSegment
+                || frame.timestamp - segment.firstTimestamp >= segmentDurationMs) {
+            closeSegment();
+            openSegment(frame.timestamp);
+        }
+
+        final long offset = numDataBytes;
+        frame.buffer.clear().limit(frame.length);
+        while (frame.buffer.hasRemaining()) {
+            data.write(frame.buffer);
+        }
+        numDataBytes += frame.length;
+        numSegmentFrames++;
+
+        indexEntry.clear();
+        indexEntry.putLong(frame.timestamp).putInt((int) offset).putInt(frame.length).flip();
+        while (indexEntry.hasRemaining()) {
+            index.write(indexEntry);
+        }
+    }
+
+    private void openSegment(final long firstTimestamp) throws IOException {
+        // Make room for a full data file and a full index
+        final long newBytes = segmentBytes + (long) maxFramesPerSegment * INDEX_ENTRY_SIZE;
+        while (!segments.isEmpty() && numBytesOnDisk + newBytes > quotaBytes) {
+            final Segment oldest = segments.removeFirst();
+            segmentIndex.remove(oldest.number);
+            getIndexFile(directory, oldest.number).delete();
+            getDataFile(directory, oldest.number).delete();
+            numBytesOnDisk -= oldest.numBytes;
+        }
+
+        final Segment newSegment = new Segment(nextSegmentNumber++);
+        newSegment.firstTimestamp = firstTimestamp;
+        newSegment.numBytes = newBytes;
+        final RandomAccessFile dataFile = new RandomAccessFile(
+                getDataFile(directory, newSegment.number), "rw");
+        final FileChannel newData = dataFile.getChannel();
+        try {
+            dataFile.setLength(segmentBytes);
+            index = new RandomAccessFile(getIndexFile(directory, newSegment.number), "rw")
+                    .getChannel();
+        } catch (IOException e) {
+            newData.close();
+            throw e;
+        }
+        data = newData;
+        numDataBytes = 0L;
+        numSegmentFrames = 0;
+        segment = newSegment;
+        segments.addLast(segment);
+        segmentIndex.add(segment.number, firstTimestamp);
+        numBytesOnDisk += segment.numBytes;
+    }
+
+    /**
+     * Cut the data file to the frames written, sync the segment to the
+     * disk and count what it really takes.
+     */
+    private void closeSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+
+        try {
+            data.truncate(numDataBytes);
+            data.force(false);
+            index.force(false);
+        } finally {
+            try {
+                data.close();
+            } finally {
+                try {
+                    index.close();
+                } finally {
+                    numBytesOnDisk -= segment.numBytes;
+                    segment.numBytes = numDataBytes
+                            + (long) numSegmentFrames * INDEX_ENTRY_SIZE;
+                    numBytesOnDisk += segment.numBytes;
+                    segment = null;
+                    data = null;
+                    index = null;
+                }
+            }
+        }
+    }
+
+    private static final class StagedFrame {
+        // Direct, so that it is written to the file without a copy
+        private final ByteBuffer buffer;
+        private int length = 0;
+        private long timestamp = 0L;
+
+        private StagedFrame(final int capacity) {
+            super();
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    private static final class Segment {
+        private final long number;
+        private long firstTimestamp = 0L;
+        // On disk, or reserved for it while being written
+        private long numBytes = 0L;
+
+        private Segment(final long number) {
+            super();
+            this.number = number;
+        }
+    }
+}
@@ -33,7 +33,9 @@ import android.widget.TextView;
 
 import org.apache.http.conn.util.InetAddressUtils;
 
+import java.io.File;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.util.Enumeration;
 
@@ -51,6 +53,40 @@ public class StreamCameraActivity extends Activity implements SurfaceHolder.Call
     private static final String PREF_JPEG_SIZE = "size";
     private static final String PREF_JPEG_QUALITY = "jpeg_quality";
     private static final int PREF_JPEG_QUALITY_DEF = 40;
+    private static final String PREF_QUALITY_MODE = "quality_mode";
+    private static final String PREF_TARGET_BITRATE = "target_bitrate";
+    private static final int PREF_TARGET_BITRATE_DEF = 2000;
+    private static final String PREF_TARGET_FPS = "target_fps";
+    private static final int PREF_TARGET_FPS_DEF = 15;
+    private static final String PREF_CHANGE_DETECTION = "change_detection";
+    private static final boolean PREF_CHANGE_DETECTION_DEF = false;
+    private static final String PREF_CHANGE_THRESHOLD = "change_threshold";
+    private static final int PREF_CHANGE_THRESHOLD_DEF = 6;
+    private static final String PREF_KEEP_ALIVE_MS = "keep_alive_ms";
+    private static final int PREF_KEEP_ALIVE_MS_DEF = 1000;
+    private static final String PREF_JAVA_ENCODER = "java_jpeg_encoder";
+    private static final boolean PREF_JAVA_ENCODER_DEF = false;
+    private static final String PREF_STRIP_ENCODER = "strip_jpeg_encoder";
+    private static final boolean PREF_STRIP_ENCODER_DEF = false;
+    private static final String PREF_OUTPUT_WIDTHS = "output_widths";
+    private static final String PREF_OUTPUT_WIDTHS_DEF = "640,320";
+    private static final String PREF_RECORD = "record";
+    private static final boolean PREF_RECORD_DEF = false;
+    private static final String PREF_RECORD_QUOTA_MB = "record_quota_mb";
+    private static final int PREF_RECORD_QUOTA_MB_DEF = 512;
+    private static final String PREF_PRE_EVENT = "pre_event";
+    private static final boolean PREF_PRE_EVENT_DEF = false;
+    private static final String PREF_PRE_EVENT_SECONDS = "pre_event_seconds";
+    private static final int PREF_PRE_EVENT_SECONDS_DEF = 10;
+    private static final String PREF_FRAME_WAIT = "frame_wait";
+    private static final String PREF_RTP = "rtp";
+    private static final boolean PREF_RTP_DEF = false;
+    private static final String PREF_RTP_DESTINATION = "rtp_destination";
+    private static final String PREF_RTP_DESTINATION_DEF = "239.255.42.42:5004";
+    private static final String PREF_RTP_WIDTH = "rtp_width";
+    private static final int PREF_RTP_WIDTH_DEF = 640;
+    private static final String RECORDINGS_DIRECTORY = "recordings";
+    private static final String EVENTS_DIRECTORY = "events";
     // preview sizes will always have at least one element, so this is safe
     private static final int PREF_PREVIEW_SIZE_INDEX_DEF = 0;
 
@@ -64,7 +100,25 @@ public class StreamCameraActivity extends Activity implements SurfaceHolder.Call
     private boolean useFlashLight = PREF_FLASH_LIGHT_DEF;
     private int port = PREF_PORT_DEF;
     private int jpegQuality = PREF_JPEG_QUALITY_DEF;
+    private boolean useRateControl = false;
+    private int targetBitrateKbps = PREF_TARGET_BITRATE_DEF;
+    private int targetFps = PREF_TARGET_FPS_DEF;
+    private boolean useChangeDetection = PREF_CHANGE_DETECTION_DEF;
+    private int changeThreshold = PREF_CHANGE_THRESHOLD_DEF;
+    private int keepAliveMs = PREF_KEEP_ALIVE_MS_DEF;
+    private boolean useJavaEncoder = PREF_JAVA_ENCODER_DEF;
+    private boolean useStripEncoder = PREF_STRIP_ENCODER_DEF;
     private int previeSizeIndex = PREF_PREVIEW_SIZE_INDEX_DEF;
+    private int[] outputWidths = parseWidths(PREF_OUTPUT_WIDTHS_DEF);
+    private boolean record = PREF_RECORD_DEF;
+    private int recordQuotaMb = PREF_RECORD_QUOTA_MB_DEF;
+    private boolean usePreEvent = PREF_PRE_EVENT_DEF;
+    private int preEventSeconds = PREF_PRE_EVENT_SECONDS_DEF;
+    private FrameQueue.WaitStrategy frameWaitStrategy = FrameQueue.WaitStrategy.BLOCK;
+    private boolean useRtp = PREF_RTP_DEF;
+    private InetSocketAddress rtpDestination =
+            RtpJpegSender.parseDestination(PREF_RTP_DESTINATION_DEF);
+    private int rtpWidth = PREF_RTP_WIDTH_DEF;
     private TextView ipAddressView = null;
     private SharedPreferences prefs = null;
     private MenuItem settingsMenuItem = null;
@@ -138,11 +192,26 @@ public class StreamCameraActivity extends Activity implements SurfaceHolder.Call
     private void tryStartCameraStreamer() {
         if (running && previewDisplayCreated && prefs != null) {
             cameraStreamer = new CameraStreamer(cameraIndex, useFlashLight, port,
-                    previeSizeIndex, jpegQuality, previewDisplay);
+                    previeSizeIndex, jpegQuality, useRateControl, targetBitrateKbps, targetFps,
+                    useJavaEncoder, useStripEncoder, useChangeDetection, changeThreshold,
+                    keepAliveMs, outputWidths,
+                    record ? getStorageDirectory(RECORDINGS_DIRECTORY) : null,
+                    recordQuotaMb * 1024L * 1024L, usePreEvent ? preEventSeconds : 0,
+                    getStorageDirectory(EVENTS_DIRECTORY), useRtp ? rtpDestination : null,
+                    rtpWidth, frameWaitStrategy, previewDisplay);
             cameraStreamer.start();
         }
     }
 
+    /**
+     * A directory in shared storage if there is any, so that recordings
+     * can be copied off the device, otherwise in internal storage.
+     */
+    private File getStorageDirectory(final String name) {
+        final File external = getExternalFilesDir(name);
+        return external != null ? external : new File(getFilesDir(), name);
+    }
+
     private void ensureCameraStreamerStopped() {
         if (cameraStreamer != null) {
             cameraStreamer.stop();
@@ -237,9 +306,89 @@ public class StreamCameraActivity extends Activity implements SurfaceHolder.Call
         } else if (jpegQuality > 100) {
             jpegQuality = 100;
         }
+        targetBitrateKbps = getPrefInt(PREF_TARGET_BITRATE, PREF_TARGET_BITRATE_DEF);
+        if (targetBitrateKbps < 1) {
+            targetBitrateKbps = 1;
+        }
+        targetFps = getPrefInt(PREF_TARGET_FPS, PREF_TARGET_FPS_DEF);
+        if (targetFps < 1) {
+            targetFps = 1;
+        }
+        changeThreshold = getPrefInt(PREF_CHANGE_THRESHOLD, PREF_CHANGE_THRESHOLD_DEF);
+        if (changeThreshold < 0) {
+            changeThreshold = 0;
+        }
+        keepAliveMs = getPrefInt(PREF_KEEP_ALIVE_MS, PREF_KEEP_ALIVE_MS_DEF);
+        if (keepAliveMs < 0) {
+            keepAliveMs = 0;
+        }
+        recordQuotaMb = getPrefInt(PREF_RECORD_QUOTA_MB, PREF_RECORD_QUOTA_MB_DEF);
+        if (recordQuotaMb < 1) {
+            recordQuotaMb = 1;
+        }
+        preEventSeconds = getPrefInt(PREF_PRE_EVENT_SECONDS, PREF_PRE_EVENT_SECONDS_DEF);
+        if (preEventSeconds < 1) {
+            preEventSeconds = 1;
+        }
+        rtpWidth = getPrefInt(PREF_RTP_WIDTH, PREF_RTP_WIDTH_DEF);
+        if (prefs != null) {
+            outputWidths = parseWidths(prefs.getString(PREF_OUTPUT_WIDTHS,
+                    PREF_OUTPUT_WIDTHS_DEF));
+            useChangeDetection = prefs.getBoolean(PREF_CHANGE_DETECTION,
+                    PREF_CHANGE_DETECTION_DEF);
+            useRateControl = PeepersPreferenceActivity.QUALITY_MODE_TARGET.equals(
+                    prefs.getString(PREF_QUALITY_MODE, null));
+            useJavaEncoder = prefs.getBoolean(PREF_JAVA_ENCODER, PREF_JAVA_ENCODER_DEF);
+            useStripEncoder = prefs.getBoolean(PREF_STRIP_ENCODER, PREF_STRIP_ENCODER_DEF);
+            record = prefs.getBoolean(PREF_RECORD, PREF_RECORD_DEF);
+            usePreEvent = prefs.getBoolean(PREF_PRE_EVENT, PREF_PRE_EVENT_DEF);
+            frameWaitStrategy = parseWaitStrategy(prefs.getString(PREF_FRAME_WAIT, null));
+            useRtp = prefs.getBoolean(PREF_RTP, PREF_RTP_DEF);
+            try {
+                rtpDestination = RtpJpegSender.parseDestination(prefs.getString(
+                        PREF_RTP_DESTINATION, PREF_RTP_DESTINATION_DEF));
+            } catch (IllegalArgumentException e) {
+                // Includes NumberFormatException
+                rtpDestination = RtpJpegSender.parseDestination(PREF_RTP_DESTINATION_DEF);
+            }
+        }
         ipAddressView.setText("http://" + mIpAddress + ":" + port + "/");
     }
 
+    private static FrameQueue.WaitStrategy parseWaitStrategy(final String value) {
+        if (PeepersPreferenceActivity.FRAME_WAIT_SLEEP.equals(value)) {
+            return FrameQueue.WaitStrategy.SLEEP;
+        } else if (PeepersPreferenceActivity.FRAME_WAIT_YIELD.equals(value)) {
+            return FrameQueue.WaitStrategy.YIELD;
+        } else if (PeepersPreferenceActivity.FRAME_WAIT_SPIN.equals(value)) {
+            return FrameQueue.WaitStrategy.SPIN;
+        }
+        return FrameQueue.WaitStrategy.BLOCK;
+    }
+
+    /**
+     * Parse a comma separated list of widths, skipping anything that is
+     * not a positive number.
+     */
+    private static int[] parseWidths(final String value) {
+        final String[] parts = value.split(",");
+        final int[] widths = new int[parts.length];
+        int numWidths = 0;
+        for (final String part : parts) {
+            try {
+                final int width = Integer.parseInt(part.trim());
+                if (width > 0) {
+                    widths[numWidths++] = width;
+                }
+            } catch (NumberFormatException e) {
+                // Ignore it
+            }
+        }
+        final int[] result = new int[numWidths];
+        System.arraycopy(widths, 0, result, 0, numWidths);
+        return result;
+    }
+
     private boolean hasFlashLight() {
         return getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA_FLASH);
     }
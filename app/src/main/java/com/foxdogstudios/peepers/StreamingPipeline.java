@@ -0,0 +1,334 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The part of streaming that does not care where frames come from,
+ * shared by CameraStreamer and the headless server. NV21 frames
+ * submitted to it are encoded by an EncoderPool into every size and
+ * quality that is wanted and served by an MJpegHttpStreamer, which
+ * also hands them to the recorder, the pre-event buffer and the RTP
+ * sender if they are on.
+ *
+ * The caller owns the frame buffers, getNumBuffers() of them, and gets
+ * each back through its BufferRecycler once it is encoded.
+ */
+class StreamingPipeline {
+    // Skip a frame that is still being encoded this long after capture
+    // if a later frame is already done.
+    static final long ENCODE_DEADLINE_MS = 250L;
+    // Frame buffers beyond one per encoder, so the source always has
+    // one to fill while every encoder is busy.
+    static final int NUM_SPARE_BUFFERS = 2;
+    // Ring frames beyond one per encoder, for the clients to send from
+    static final int NUM_SPARE_JPEG_FRAMES = 3;
+    // The direct memory each output size's JPEG frames may take, though
+    // always enough for one stream's ring. Streams subscribed past it
+    // drop frames.
+    static final long FRAME_POOL_BYTES = 32L * 1024L * 1024L;
+    // The qualities clients can ask for with the q query parameter,
+    // besides the one the quality controller picks
+    static final int[] FIXED_QUALITIES = {20, 40, 60, 80, 95};
+    // Recordings are split into segments of at most this many bytes or
+    // milliseconds, so that the quota frees space a minute at a time
+    static final long SEGMENT_BYTES = 64L * 1024L * 1024L;
+    static final long SEGMENT_DURATION_MS = 60000L;
+    // The fastest any camera previews, which sizes a segment's index
+    static final int SEGMENT_MAX_FPS = 60;
+    // The most each of the pre-event buffer's two windows may take,
+    // however long it is asked to keep, and the most frames per second
+    // it makes room for
+    static final long PRE_EVENT_MAX_BYTES = 48L * 1024L * 1024L;
+    static final int PRE_EVENT_MAX_FPS = 60;
+    // RTP packets small enough for any LAN's MTU, and tables sent again
+    // every second for receivers that join late
+    static final int RTP_PACKET_SIZE = 1400;
+    static final long RTP_TABLE_INTERVAL_MS = 1000L;
+
+    // The direct buffers of the JPEG frames by size, kept from one
+    // pipeline to the next so that restarting does not allocate them
+    // again. Guarded by the class.
+    private static final Map<Integer, BufferPool> framePools =
+            new HashMap<Integer, BufferPool>();
+
+    private final int numBuffers;
+    private final StripJpegEncoder stripEncoder;
+    private final MJpegHttpStreamer streamer;
+    private final EncoderPool pool;
+    private final SegmentRecorder recorder;
+    private final RtpJpegSender rtpSender;
+
+    private boolean isRunning = false;
+
+    /**
+     * @param frameSize the size of a full-size frame buffer
+     * @param encoders one per encoder thread, or a single
+     *                 StripJpegEncoder, which is started and stopped
+     *                 with the pipeline
+     * @param jpegQuality the initial quality, kept fixed unless
+     *                    targetBitrateKbps is positive
+     * @param targetFps the frame rate below which dropped frames lower
+     *                  the quality
+     * @param recordingDirectory where to record the full size at
+     *                           jpegQuality, or null not to record
+     * @param preEventSeconds how long to keep the same stream in memory
+     *                        for /event.mjpeg, or 0 not to
+     * @param eventDirectory where /event/save saves it
+     * @param rtpDestination where to send RTP/JPEG, or null not to
+     * @param rtpWidth the width to send, or -1 for the full size
+     * @param rtpTimeToLive the TTL of multicast RTP packets
+     */
+    StreamingPipeline(final int port, final int width, final int height, final int frameSize,
+                      final int[] outputWidths, final FrameEncoder[] encoders,
+                      final int jpegQuality, final int targetBitrateKbps,
+                      final double targetFps, final File recordingDirectory,
+                      final long recordingQuotaBytes, final int preEventSeconds,
+                      final File eventDirectory, final InetSocketAddress rtpDestination,
+                      final int rtpWidth, final int rtpTimeToLive, final Metrics metrics,
+                      final EncoderPool.BufferRecycler recycler,
+                      final MJpegHttpStreamer.SubscriberListener subscriberListener) {
+        super();
+
+        if (encoders.length == 0) {
+            throw new IllegalArgumentException("encoders must not be empty");
+        }
+
+        numBuffers = encoders.length + NUM_SPARE_BUFFERS;
+        stripEncoder = encoders.length == 1 && encoders[0] instanceof StripJpegEncoder
+                ? (StripJpegEncoder) encoders[0]
+                : null;
+
+        // The full size first, then each smaller size. We assume that
+        // the compressed image is no bigger than the uncompressed image.
+        final Nv21Scaler[] scalers = Nv21Scaler.forWidths(width, height, outputWidths);
+        final int[] streamWidths = new int[scalers.length];
+        final int[] bufferSizes = new int[scalers.length];
+        for (int i = 0; i < scalers.length; i++) {
+            streamWidths[i] = scalers[i] == null ? width : scalers[i].getWidth();
+            bufferSizes[i] = scalers[i] == null ? frameSize : scalers[i].getBufferSize();
+        }
+        final int numRingFrames = encoders.length + NUM_SPARE_JPEG_FRAMES;
+        final FrameCache frameCache = new FrameCache(numRingFrames, streamWidths,
+                getFramePools(bufferSizes, numRingFrames), FIXED_QUALITIES);
+        streamer = new MJpegHttpStreamer(port, frameCache, metrics, subscriberListener);
+
+        // Each listener's stream is subscribed to for as long as the
+        // streamer runs, so it is encoded even while nobody is watching
+        if (recordingDirectory != null) {
+            final int stream = frameCache.findStream(-1L /* width */, jpegQuality);
+            frameCache.subscribe(stream);
+            recorder = new SegmentRecorder(recordingDirectory, stream, bufferSizes[0],
+                    SEGMENT_BYTES, SEGMENT_DURATION_MS, SEGMENT_MAX_FPS,
+                    Math.max(SEGMENT_BYTES, recordingQuotaBytes), metrics);
+            streamer.addFrameListener(recorder);
+            streamer.setRecording(recorder.getSegmentIndex());
+        } else {
+            recorder = null;
+        }
+        if (preEventSeconds > 0) {
+            final int stream = frameCache.findStream(-1L /* width */, jpegQuality);
+            frameCache.subscribe(stream);
+            // Room for the seconds asked for at the target frame rate,
+            // and at least for the largest frame
+            final long wantedBytes = (long) Math.ceil(preEventSeconds * targetFps)
+                    * estimateFrameBytes(width, height, frameCache.getQuality(stream));
+            final int capacityBytes = (int) Math.max(bufferSizes[0],
+                    Math.min(PRE_EVENT_MAX_BYTES, wantedBytes));
+            final PreEventBuffer preEventBuffer = new PreEventBuffer(stream, capacityBytes,
+                    preEventSeconds * PRE_EVENT_MAX_FPS, preEventSeconds * 1000L);
+            streamer.addFrameListener(preEventBuffer);
+            streamer.setPreEventBuffer(preEventBuffer, eventDirectory);
+        }
+        if (rtpDestination != null) {
+            // At the quality the controller picks, to hold the bitrate
+            final int stream = frameCache.findStream(rtpWidth, -1L /* quality */);
+            frameCache.subscribe(stream);
+            rtpSender = new RtpJpegSender(rtpDestination, rtpTimeToLive, stream,
+                    bufferSizes[frameCache.getSizeIndex(stream)], RTP_PACKET_SIZE,
+                    RTP_TABLE_INTERVAL_MS, metrics);
+            streamer.addFrameListener(rtpSender);
+        } else {
+            rtpSender = null;
+        }
+
+        // Each size's automatic quality holds the target on its own
+        final QualityController[] qualityControllers = new QualityController[scalers.length];
+        for (int i = 0; i < scalers.length; i++) {
+            qualityControllers[i] = targetBitrateKbps > 0
+                    ? new RateController(jpegQuality, targetBitrateKbps * 1000L, targetFps)
+                    : new QualityController.Fixed(jpegQuality);
+        }
+        pool = new EncoderPool(encoders, numBuffers, streamer, recycler, width, height, scalers,
+                qualityControllers, metrics, ENCODE_DEADLINE_MS);
+    }
+
+    /**
+     * Start encoding and serving. If the recorder or the RTP sender
+     * cannot start, nothing is left running and the frames' buffers are
+     * given back, so the pipeline is not to be stopped.
+     */
+    void start() throws IOException {
+        if (isRunning) {
+            throw new IllegalStateException("StreamingPipeline is already running");
+        }
+
+        try {
+            if (recorder != null) {
+                recorder.start();
+            }
+            if (rtpSender != null) {
+                try {
+                    rtpSender.start();
+                } catch (IOException e) {
+                    stopRecorder(recorder);
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            streamer.getFrameCache().releaseBuffers();
+            throw e;
+        }
+        isRunning = true;
+        if (stripEncoder != null) {
+            stripEncoder.start();
+        }
+        streamer.start();
+        pool.start();
+    }
+
+    /**
+     * Stop every thread of the pipeline without waiting for the
+     * encoders or the streamer, see join().
+     */
+    void stop() {
+        if (!isRunning) {
+            throw new IllegalStateException("StreamingPipeline is already stopped");
+        }
+
+        isRunning = false;
+        pool.stop();
+        if (stripEncoder != null) {
+            stripEncoder.stop();
+        }
+        stopRecorder(recorder);
+        stopRtpSender(rtpSender);
+        streamer.stop();
+    }
+
+    /**
+     * Wait for the encoders and the streamer to finish with the frames
+     * after stop(), then give the frames' buffers back to their pools
+     * for the next pipeline.
+     */
+    void join() throws InterruptedException {
+        pool.join();
+        streamer.join();
+        streamer.getFrameCache().releaseBuffers();
+    }
+
+    /**
+     * Queue a frame for encoding, see EncoderPool.submit().
+     *
+     * @return false if every encoder is busy, in which case the caller
+     * still owns the buffer
+     */
+    boolean submit(final byte[] data, final long timestamp) {
+        return pool.submit(data, timestamp);
+    }
+
+    boolean hasSubscribers() {
+        return streamer.hasSubscribers();
+    }
+
+    /**
+     * The number of frame buffers the encoders can hold at once.
+     */
+    int getNumBuffers() {
+        return numBuffers;
+    }
+
+    MJpegHttpStreamer getStreamer() {
+        return streamer;
+    }
+
+    /**
+     * A generous guess at the size of a camera frame's JPEG: from about
+     * half a bit per pixel at the lowest quality to four and a half at
+     * the highest.
+     */
+    static long estimateFrameBytes(final int width, final int height, final int quality) {
+        final double scale = quality / 100.0;
+        final double bitsPerPixel = 0.5 + 4.0 * scale * scale;
+        return (long) (width * (long) height * bitsPerPixel / 8.0);
+    }
+
+    /**
+     * A pool for each buffer size, reusing those of the last pipeline
+     * that have the same cap. Pools of sizes no longer used are dropped.
+     * Each is capped at FRAME_POOL_BYTES, but at no fewer buffers than
+     * one ring and no more than every stream of the size can use.
+     */
+    private static BufferPool[] getFramePools(final int[] bufferSizes,
+                                              final int numRingFrames) {
+        final int numQualities = FIXED_QUALITIES.length + 1;
+        synchronized (StreamingPipeline.class) {
+            final Map<Integer, BufferPool> pools = new HashMap<Integer, BufferPool>();
+            final BufferPool[] result = new BufferPool[bufferSizes.length];
+            for (int i = 0; i < bufferSizes.length; i++) {
+                final int maxBuffers = (int) Math.max(numRingFrames,
+                        Math.min(numRingFrames * numQualities,
+                                FRAME_POOL_BYTES / bufferSizes[i]));
+                BufferPool pool = framePools.get(bufferSizes[i]);
+                if (pool == null || pool.getMaxBuffers() != maxBuffers) {
+                    pool = new BufferPool(bufferSizes[i], maxBuffers);
+                }
+                pools.put(bufferSizes[i], pool);
+                result[i] = pool;
+            }
+            framePools.clear();
+            framePools.putAll(pools);
+            return result;
+        }
+    }
+
+    private static void stopRecorder(final SegmentRecorder recorder) {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void stopRtpSender(final RtpJpegSender sender) {
+        if (sender == null) {
+            return;
+        }
+        try {
+            sender.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
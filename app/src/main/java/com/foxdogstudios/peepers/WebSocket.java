@@ -0,0 +1,100 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The parts of the WebSocket protocol (RFC 6455) the streamer needs to
+ * answer the opening handshake and frame the messages it sends.
+ */
+final class WebSocket {
+    static final int OPCODE_CONTINUATION = 0x0;
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xA;
+
+    /**
+     * The most bytes of a frame header the server sends, which is never
+     * masked.
+     */
+    static final int MAX_HEADER_SIZE = 10;
+    /**
+     * The most bytes of payload a control frame may carry.
+     */
+    static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final int FIN = 0x80;
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private WebSocket() {
+        super();
+    }
+
+    /**
+     * The Sec-WebSocket-Accept value that answers a Sec-WebSocket-Key.
+     */
+    static String acceptKey(final String key) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(Ascii.toBytes(key + GUID));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1
+            throw new AssertionError(e);
+        }
+        return toBase64(digest);
+    }
+
+    /**
+     * Put the header of an unfragmented, unmasked frame.
+     */
+    static void putHeader(final ByteBuffer buffer, final int opcode, final long length) {
+        buffer.put((byte) (FIN | opcode));
+        if (length < 126L) {
+            buffer.put((byte) length);
+        } else if (length < 0x10000L) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(length);
+        }
+    }
+
+    private static String toBase64(final byte[] bytes) {
+        final StringBuilder text = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int index = 0; index < bytes.length; index += 3) {
+            final int numBytes = Math.min(3, bytes.length - index);
+            int bits = (bytes[index] & 0xFF) << 16;
+            if (numBytes > 1) {
+                bits |= (bytes[index + 1] & 0xFF) << 8;
+            }
+            if (numBytes > 2) {
+                bits |= bytes[index + 2] & 0xFF;
+            }
+            text.append(BASE64[(bits >> 18) & 0x3F]).append(BASE64[(bits >> 12) & 0x3F]);
+            text.append(numBytes > 1 ? BASE64[(bits >> 6) & 0x3F] : '=');
+            text.append(numBytes > 2 ? BASE64[bits & 0x3F] : '=');
+        }
+        return text.toString();
+    }
+}
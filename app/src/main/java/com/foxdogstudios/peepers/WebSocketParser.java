@@ -0,0 +1,152 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental parser for the frames a WebSocket client sends. The
+ * streamer only needs to know that a message has arrived, so the
+ * payloads of data frames are skipped rather than stored; only control
+ * frames are unmasked, into a fixed buffer. Nothing is allocated.
+ */
+class WebSocketParser {
+    static final int INCOMPLETE = 0;
+    /**
+     * The last frame of a text or binary message.
+     */
+    static final int MESSAGE = 1;
+    static final int PING = 2;
+    static final int CLOSE = 3;
+    static final int PROTOCOL_ERROR = 4;
+
+    private static final int FIN = 0x80;
+    private static final int RSV = 0x70;
+    private static final int OPCODE = 0x0F;
+    private static final int MASK = 0x80;
+    private static final int LENGTH = 0x7F;
+    private static final int MASK_SIZE = 4;
+
+    private final byte[] controlPayload = new byte[WebSocket.MAX_CONTROL_PAYLOAD];
+    private int controlLength = 0;
+    // Payload of the current data frame still to be skipped
+    private long payloadLeft = 0L;
+    private boolean isFinalFrame = false;
+
+    WebSocketParser() {
+        super();
+    }
+
+    /**
+     * Consume bytes from the buffer until a frame worth reporting has
+     * been read. A frame header is only consumed once it, and for a
+     * control frame its payload, is in the buffer whole.
+     *
+     * @return INCOMPLETE, MESSAGE, PING, CLOSE or PROTOCOL_ERROR
+     */
+    int parse(final ByteBuffer buffer) {
+        while (true) {
+            if (payloadLeft > 0L) {
+                final int numSkipped = (int) Math.min(payloadLeft, buffer.remaining());
+                buffer.position(buffer.position() + numSkipped);
+                payloadLeft -= numSkipped;
+                if (payloadLeft > 0L) {
+                    return INCOMPLETE;
+                }
+                if (isFinalFrame) {
+                    return MESSAGE;
+                }
+            }
+
+            if (buffer.remaining() < 2) {
+                return INCOMPLETE;
+            }
+            final int start = buffer.position();
+            final int first = buffer.get(start) & 0xFF;
+            final int second = buffer.get(start + 1) & 0xFF;
+            final int opcode = first & OPCODE;
+            final int length7 = second & LENGTH;
+            if ((first & RSV) != 0 || (second & MASK) == 0) {
+                // No extensions were agreed, and clients must mask
+                return PROTOCOL_ERROR;
+            }
+
+            final int lengthSize = length7 == 127 ? 8 : length7 == 126 ? 2 : 0;
+            final int headerSize = 2 + lengthSize + MASK_SIZE;
+            if (buffer.remaining() < headerSize) {
+                return INCOMPLETE;
+            }
+            final long length;
+            if (lengthSize == 8) {
+                length = buffer.getLong(start + 2);
+            } else if (lengthSize == 2) {
+                length = buffer.getShort(start + 2) & 0xFFFF;
+            } else {
+                length = length7;
+            }
+            if (length < 0L) {
+                return PROTOCOL_ERROR;
+            }
+
+            if (opcode >= WebSocket.OPCODE_CLOSE) {
+                if ((first & FIN) == 0 || length > WebSocket.MAX_CONTROL_PAYLOAD) {
+                    return PROTOCOL_ERROR;
+                }
+                if (buffer.remaining() < headerSize + length) {
+                    return INCOMPLETE;
+                }
+                final int maskStart = start + headerSize - MASK_SIZE;
+                controlLength = (int) length;
+                for (int index = 0; index < controlLength; index++) {
+                    controlPayload[index] = (byte) (buffer.get(start + headerSize + index)
+                            ^ buffer.get(maskStart + index % MASK_SIZE));
+                }
+                buffer.position(start + headerSize + controlLength);
+                if (opcode == WebSocket.OPCODE_CLOSE) {
+                    return CLOSE;
+                } else if (opcode == WebSocket.OPCODE_PING) {
+                    return PING;
+                } else if (opcode != WebSocket.OPCODE_PONG) {
+                    return PROTOCOL_ERROR;
+                }
+                // An unsolicited pong, ignore it
+                continue;
+            }
+
+            if (opcode != WebSocket.OPCODE_CONTINUATION && opcode != WebSocket.OPCODE_TEXT
+                    && opcode != WebSocket.OPCODE_BINARY) {
+                return PROTOCOL_ERROR;
+            }
+            buffer.position(start + headerSize);
+            isFinalFrame = (first & FIN) != 0;
+            payloadLeft = length;
+            if (length == 0L && isFinalFrame) {
+                return MESSAGE;
+            }
+        }
+    }
+
+    /**
+     * The unmasked payload of the last ping or close frame.
+     */
+    byte[] getControlPayload() {
+        return controlPayload;
+    }
+
+    int getControlLength() {
+        return controlLength;
+    }
+}
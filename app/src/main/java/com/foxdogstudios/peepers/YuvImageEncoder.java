@@ -0,0 +1,44 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.OutputStream;
+
+/**
+ * Encodes with the platform's YuvImage.compressToJpeg().
+ */
+class YuvImageEncoder implements FrameEncoder {
+    private final int format;
+    private Rect rect = null;
+
+    YuvImageEncoder(final int format) {
+        super();
+        this.format = format;
+    }
+
+    @Override
+    public boolean encode(final byte[] nv21, final int width, final int height,
+                          final int quality, final OutputStream out) {
+        if (rect == null || rect.width() != width || rect.height() != height) {
+            rect = new Rect(0, 0, width, height);
+        }
+        final YuvImage image = new YuvImage(nv21, format, width, height, null);
+        return image.compressToJpeg(rect, quality, out);
+    }
+}
@@ -0,0 +1,123 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Handing a preview frame to another thread and back, so each sample is
+ * two hand-offs. "queue" stands in for the Handler message queue the
+ * frames used to go through: a blocking linked queue and an Object[] of
+ * the frame with its boxed timestamps per message. The rest are
+ * FrameQueue with each wait strategy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameHandoffBenchmark {
+    private static final int CAPACITY = 8;
+
+    @Param({"queue", "BLOCK", "SLEEP", "YIELD", "SPIN"})
+    public String handoff;
+
+    private final byte[] data = new byte[16];
+    private long timestamp = 0L;
+
+    private FrameQueue frames;
+    private FrameQueue echoes;
+    private BlockingQueue<Object[]> messages;
+    private BlockingQueue<Object[]> replies;
+    private Thread echo;
+
+    @Setup
+    public void setUp() {
+        if (handoff.equals("queue")) {
+            messages = new LinkedBlockingQueue<Object[]>();
+            replies = new LinkedBlockingQueue<Object[]>();
+            echo = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    echoMessages();
+                }
+            });
+        } else {
+            final FrameQueue.WaitStrategy waitStrategy = FrameQueue.WaitStrategy.valueOf(handoff);
+            frames = new FrameQueue(CAPACITY, waitStrategy);
+            echoes = new FrameQueue(CAPACITY, waitStrategy);
+            echo = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    echoFrames();
+                }
+            });
+        }
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        echo.interrupt();
+        echo.join();
+    }
+
+    @Benchmark
+    public long roundTrip() throws InterruptedException {
+        timestamp++;
+        if (messages != null) {
+            messages.put(new Object[]{data, timestamp, System.nanoTime()});
+            return (Long) replies.take()[1];
+        }
+
+        frames.offer(data, timestamp, System.nanoTime());
+        final long echoed = echoes.take().getTimestamp();
+        echoes.free();
+        return echoed;
+    }
+
+    private void echoMessages() {
+        try {
+            while (true) {
+                replies.put(messages.take());
+            }
+        } catch (InterruptedException e) {
+            // Torn down
+        }
+    }
+
+    private void echoFrames() {
+        try {
+            while (true) {
+                final FrameQueue.Slot slot = frames.take();
+                echoes.offer(slot.getData(), slot.getTimestamp(), slot.getCallbackNanos());
+                frames.free();
+            }
+        } catch (InterruptedException e) {
+            // Torn down
+        }
+    }
+}
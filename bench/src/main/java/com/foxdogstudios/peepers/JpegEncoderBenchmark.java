@@ -0,0 +1,86 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The latency of encoding one frame, on one thread and split into
+ * strips over several.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JpegEncoderBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    @Param({"50", "80"})
+    public int quality;
+
+    private byte[] frame;
+    private MemoryOutputStream out;
+    private JpegEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        frame = TestFrames.create(WIDTH, HEIGHT, 1L);
+        out = new MemoryOutputStream(WIDTH * HEIGHT * 3 / 2);
+        encoder = new JpegEncoder();
+    }
+
+    @Benchmark
+    public int encode() {
+        out.seek(0);
+        encoder.encode(frame, WIDTH, HEIGHT, quality, out);
+        return out.getLength();
+    }
+
+    @Benchmark
+    public int encodeStrips(final Strips strips) {
+        out.seek(0);
+        strips.encoder.encode(frame, WIDTH, HEIGHT, quality, out);
+        return out.getLength();
+    }
+
+    @State(Scope.Thread)
+    public static class Strips {
+        @Param({"2", "4"})
+        public int numThreads;
+
+        private StripJpegEncoder encoder;
+
+        @Setup
+        public void setUp() {
+            encoder = new StripJpegEncoder(numThreads);
+            encoder.start();
+        }
+
+        @TearDown
+        public void tearDown() {
+            encoder.stop();
+        }
+    }
+}
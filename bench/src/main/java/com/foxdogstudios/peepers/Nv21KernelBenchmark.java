@@ -0,0 +1,87 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The per-frame work done on raw preview frames before encoding:
+ * downscaling for the smaller streams and change detection. Compare
+ * with JpegEncoderBenchmark to see what skipping an encode saves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Nv21KernelBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    private byte[] frame;
+    private byte[] otherFrame;
+    private Nv21Scaler halfScaler;
+    private Nv21Scaler quarterScaler;
+    private byte[] scaled;
+    private ChangeDetector changeDetector;
+
+    @Setup
+    public void setUp() {
+        frame = TestFrames.create(WIDTH, HEIGHT, 1L);
+        otherFrame = TestFrames.create(WIDTH, HEIGHT, 2L);
+        halfScaler = new Nv21Scaler(WIDTH, HEIGHT, WIDTH / 2, HEIGHT / 2);
+        quarterScaler = new Nv21Scaler(WIDTH, HEIGHT, WIDTH / 4, HEIGHT / 4);
+        scaled = new byte[halfScaler.getBufferSize()];
+        changeDetector = new ChangeDetector(4 /* sampleStride */, 8 /* blockSize */,
+                6 /* threshold */, Long.MAX_VALUE /* keepAliveMs */);
+        changeDetector.hasChanged(frame, WIDTH, HEIGHT, 0L);
+        changeDetector.accept();
+    }
+
+    @Benchmark
+    public byte[] scaleToHalf() {
+        halfScaler.scale(frame, scaled);
+        return scaled;
+    }
+
+    @Benchmark
+    public byte[] scaleToQuarter() {
+        quarterScaler.scale(frame, scaled);
+        return scaled;
+    }
+
+    /**
+     * The common case of a static scene: every sample is compared.
+     */
+    @Benchmark
+    public boolean detectUnchanged() {
+        return changeDetector.hasChanged(frame, WIDTH, HEIGHT, 0L);
+    }
+
+    /**
+     * A changed frame, which stops comparing at the first changed block
+     * but still copies every sample.
+     */
+    @Benchmark
+    public boolean detectChanged() {
+        return changeDetector.hasChanged(otherFrame, WIDTH, HEIGHT, 0L);
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Serialising the headers sent with every frame: the multipart part
+ * header and a snapshot response head.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PartHeaderBenchmark {
+    private static final byte[] STATUS = Ascii.toBytes("HTTP/1.1 200 OK\r\n");
+    private static final byte[] CONTENT_LENGTH = Ascii.toBytes("Content-Length: ");
+    private static final byte[] END_OF_HEADER = Ascii.toBytes("\r\n\r\n");
+
+    private final PartHeader partHeader = new PartHeader();
+    private final HeaderBuilder headerBuilder = new HeaderBuilder(512);
+    private int length = 40000;
+    private long timestamp = 1500000000000L;
+
+    @Benchmark
+    public ByteBuffer partHeader() {
+        return partHeader.update(length++ & 0xFFFFF, timestamp++);
+    }
+
+    @Benchmark
+    public ByteBuffer responseHead() {
+        return headerBuilder.clear()
+                .append(STATUS)
+                .append(CONTENT_LENGTH).append(length++ & 0xFFFFF)
+                .append(END_OF_HEADER)
+                .toByteBuffer();
+    }
+
+    /**
+     * The string building the part header used to do, for comparison.
+     */
+    @Benchmark
+    public byte[] stringPartHeader() {
+        return ("Content-type: image/jpeg\r\nContent-Length: " + (length++ & 0xFFFFF)
+                + "\r\nX-Timestamp:" + timestamp++ + "\r\n\r\n").getBytes();
+    }
+}
@@ -0,0 +1,174 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Requests for /snapshot.jpg from a client on a loopback socket, either
+ * one after another over a single HTTP/1.1 connection or each over a new
+ * HTTP/1.0 connection that the streamer closes, as every request was
+ * sent before keep-alive. One idle /stream.mjpeg client keeps the stream
+ * subscribed, so each snapshot is the latest frame, sent at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SnapshotBenchmark {
+    private static final int JPEG_BYTES = 16 * 1024;
+    private static final int NUM_FRAMES = 8;
+    private static final long CONNECT_TIMEOUT_MS = 5000L;
+    private static final byte[] KEEP_ALIVE_REQUEST =
+            Ascii.toBytes("GET /snapshot.jpg HTTP/1.1\r\n\r\n");
+    private static final byte[] CLOSE_REQUEST =
+            Ascii.toBytes("GET /snapshot.jpg HTTP/1.0\r\n\r\n");
+
+    private final byte[] body = new byte[JPEG_BYTES];
+    private int port;
+    private FrameCache frameCache;
+    private MJpegHttpStreamer streamer;
+    private Socket subscriber;
+    private Socket keepAliveClient;
+    private OutputStream keepAliveOut;
+    private InputStream keepAliveIn;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        port = StreamerBenchmark.findFreePort();
+        frameCache = new FrameCache(NUM_FRAMES, new int[] {640},
+                new BufferPool[] {new BufferPool(JPEG_BYTES * 2, NUM_FRAMES)}, new int[0]);
+        streamer = new MJpegHttpStreamer(port, frameCache, new Metrics(),
+                new MJpegHttpStreamer.SubscriberListener() {
+                    @Override
+                    public void onSubscribersChanged(final int numSubscribers) {
+                    }
+                });
+        streamer.start();
+
+        subscriber = StreamerBenchmark.connect(port);
+        subscriber.getOutputStream().write(Ascii.toBytes("GET /stream.mjpeg HTTP/1.1\r\n\r\n"));
+        StreamerBenchmark.startDraining(subscriber);
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (frameCache.getNumSubscribers() < 1) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("stream client did not subscribe");
+            }
+            Thread.sleep(10L);
+        }
+
+        // The one frame every snapshot sends. The contents do not
+        // matter, only the length.
+        final FrameRing.Frame frame = streamer.claimFrame(0);
+        frame.getOutputStream().seek(JPEG_BYTES);
+        streamer.publishFrame(0, frame, System.currentTimeMillis());
+
+        keepAliveClient = StreamerBenchmark.connect(port);
+        keepAliveOut = keepAliveClient.getOutputStream();
+        keepAliveIn = new BufferedInputStream(keepAliveClient.getInputStream());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        keepAliveClient.close();
+        subscriber.close();
+        streamer.stop();
+    }
+
+    @Benchmark
+    public int keepAlive() throws IOException {
+        keepAliveOut.write(KEEP_ALIVE_REQUEST);
+        return readResponse(keepAliveIn);
+    }
+
+    @Benchmark
+    public int newConnection() throws IOException, InterruptedException {
+        final Socket client = StreamerBenchmark.connect(port);
+        try {
+            client.getOutputStream().write(CLOSE_REQUEST);
+            final InputStream in = new BufferedInputStream(client.getInputStream());
+            final int length = readResponse(in);
+            if (in.read() != -1) {
+                throw new IOException("connection left open after an HTTP/1.0 response");
+            }
+            return length;
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Read one response, head and body, and return the body's length.
+     */
+    private int readResponse(final InputStream in) throws IOException {
+        final String status = readLine(in);
+        if (!status.contains(" 200 ")) {
+            throw new IOException("bad status: " + status);
+        }
+        int contentLength = -1;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+                contentLength = Integer.parseInt(
+                        line.substring("Content-Length:".length()).trim());
+            }
+        }
+        if (contentLength != JPEG_BYTES) {
+            throw new IOException("unexpected Content-Length: " + contentLength);
+        }
+        int numRead = 0;
+        while (numRead < contentLength) {
+            final int n = in.read(body, numRead, contentLength - numRead);
+            if (n < 0) {
+                throw new IOException("connection closed mid-body");
+            }
+            numRead += n;
+        }
+        return contentLength;
+    }
+
+    /**
+     * A line without its CRLF.
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            final int b = in.read();
+            if (b == -1) {
+                throw new IOException("connection closed mid-line");
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+}
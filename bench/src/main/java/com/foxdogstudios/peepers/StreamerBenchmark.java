@@ -0,0 +1,185 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Publishing frames to a streamer with clients attached over loopback
+ * sockets. Each client drains its socket on its own thread, so the
+ * streamer's worker really writes every frame it can. Frames a client
+ * cannot keep up with replace each other in its mailbox, as they would
+ * on a device.
+ *
+ * The score counts every call, including those that found no free slot,
+ * so read the published, dropped and delivered counters alongside it:
+ * delivered is frames written to client sockets, summed over clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamerBenchmark {
+    private static final int JPEG_BYTES = 40 * 1024;
+    private static final int NUM_FRAMES = 8;
+    private static final long CONNECT_TIMEOUT_MS = 5000L;
+
+    @Param({"1", "16"})
+    public int numClients;
+
+    private FrameCache frameCache;
+    private Metrics metrics;
+    private MJpegHttpStreamer streamer;
+    private Socket[] clients;
+    private long timestamp = 0L;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        final int port = findFreePort();
+        frameCache = new FrameCache(NUM_FRAMES, new int[] {640},
+                new BufferPool[] {new BufferPool(JPEG_BYTES * 2, NUM_FRAMES)}, new int[0]);
+        metrics = new Metrics();
+        streamer = new MJpegHttpStreamer(port, frameCache, metrics,
+                new MJpegHttpStreamer.SubscriberListener() {
+                    @Override
+                    public void onSubscribersChanged(final int numSubscribers) {
+                    }
+                });
+        streamer.start();
+
+        clients = new Socket[numClients];
+        for (int index = 0; index < numClients; index++) {
+            clients[index] = connect(port);
+            clients[index].getOutputStream().write(
+                    Ascii.toBytes("GET /stream.mjpeg HTTP/1.1\r\n\r\n"));
+            startDraining(clients[index]);
+        }
+
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (frameCache.getNumSubscribers() < numClients) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("clients did not subscribe");
+            }
+            Thread.sleep(10L);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (final Socket client : clients) {
+            client.close();
+        }
+        streamer.stop();
+    }
+
+    @Benchmark
+    public void publish(final Frames frames) {
+        final FrameRing.Frame frame = streamer.claimFrame(0);
+        if (frame == null) {
+            frames.dropped++;
+        } else {
+            // The contents do not matter, only the length
+            frame.getOutputStream().seek(JPEG_BYTES);
+            streamer.publishFrame(0, frame, timestamp++);
+            frames.published++;
+        }
+        frames.delivered = metrics.getNumFramesSent() - frames.numFramesSentBefore;
+    }
+
+    /**
+     * What became of the frames published in each iteration, reported
+     * per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Frames {
+        public long published;
+        public long dropped;
+        public long delivered;
+        private long numFramesSentBefore;
+
+        @Setup(Level.Iteration)
+        public void clear(final StreamerBenchmark benchmark) {
+            published = 0L;
+            dropped = 0L;
+            delivered = 0L;
+            numFramesSentBefore = benchmark.metrics.getNumFramesSent();
+        }
+    }
+
+    static int findFreePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Connect, retrying while the streamer's worker binds its socket.
+     */
+    static Socket connect(final int port) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (true) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10L);
+            }
+        }
+    }
+
+    static void startDraining(final Socket socket) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[64 * 1024];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // Throw it away
+                    }
+                } catch (IOException e) {
+                    // Closed by tearDown()
+                }
+            }
+        });
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+}
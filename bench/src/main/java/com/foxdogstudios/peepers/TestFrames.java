@@ -0,0 +1,42 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.util.Random;
+
+/**
+ * NV21 frames for the benchmarks: a gradient with noise, so that the
+ * encoders see something closer to a camera image than a flat colour.
+ */
+final class TestFrames {
+    private TestFrames() {
+        super();
+    }
+
+    static byte[] create(final int width, final int height, final long seed) {
+        final byte[] nv21 = new byte[width * height * 3 / 2];
+        final Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) ((x + y) / 4 + random.nextInt(16));
+            }
+        }
+        for (int i = width * height; i < nv21.length; i++) {
+            nv21[i] = (byte) (128 + random.nextInt(8) - 4);
+        }
+        return nv21;
+    }
+}
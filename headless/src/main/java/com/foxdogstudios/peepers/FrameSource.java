@@ -0,0 +1,37 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Supplies NV21 frames to HeadlessStreamer in place of the camera.
+ * Only used by the capture thread.
+ */
+interface FrameSource extends Closeable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Fill nv21, which holds at least width * height * 3 / 2 bytes,
+     * with the next frame as soon as it is available.
+     *
+     * @return false if there are no more frames
+     */
+    boolean read(byte[] nv21) throws IOException;
+}
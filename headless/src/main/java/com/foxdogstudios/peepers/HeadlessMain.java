@@ -0,0 +1,174 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Runs HeadlessStreamer from the command line. See USAGE.
+ */
+public final class HeadlessMain {
+    private static final String USAGE =
+            "usage: headless [options]\n"
+                    + "  --port N         port to serve on (8080)\n"
+                    + "  --size WxH       frame size (1280x720)\n"
+                    + "  --file PATH      replay raw NV21 frames from PATH instead of\n"
+                    + "                   the synthetic pattern\n"
+                    + "  --loop           replay the file forever\n"
+                    + "  --fps F          frames per second, 0 for as fast as they\n"
+                    + "                   are encoded (30)\n"
+                    + "  --quality Q      JPEG quality (80)\n"
+                    + "  --bitrate KBPS   hold this bitrate instead of a fixed quality\n"
+                    + "  --encoders N     encoder threads (one per core)\n"
+                    + "  --strips         split each frame over every encoder thread\n"
+                    + "  --widths W,...   extra output widths (640,320)\n"
+                    + "  --duration S     stop after S seconds and print the metrics\n"
+                    + "  --record DIR     record the full size to segments in DIR\n"
+                    + "  --quota MB       disk space the recording may use (512)\n"
+                    + "  --pre-event S    keep the last S seconds in memory for\n"
+                    + "                   /event.mjpeg and /event/save\n"
+                    + "  --events DIR     where /event/save saves to (events)\n"
+                    + "  --rtp HOST:PORT  also send RTP/JPEG to HOST, which may be a\n"
+                    + "                   multicast group\n"
+                    + "  --rtp-width W    width to send over RTP (the full size)\n"
+                    + "  --rtp-ttl N      hops multicast RTP may take (1)\n";
+
+    private HeadlessMain() {
+        super();
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        int port = 8080;
+        int width = 1280;
+        int height = 720;
+        String path = null;
+        boolean loop = false;
+        double fps = 30.0;
+        int quality = 80;
+        int bitrateKbps = 0;
+        int numEncoders = Runtime.getRuntime().availableProcessors();
+        boolean useStrips = false;
+        int[] widths = {640, 320};
+        long durationS = 0L;
+        File recordingDirectory = null;
+        long quotaMb = 512L;
+        int preEventSeconds = 0;
+        File eventDirectory = new File("events");
+        InetSocketAddress rtpDestination = null;
+        int rtpWidth = -1;
+        int rtpTimeToLive = 1;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String option = args[i];
+                if (option.equals("--loop")) {
+                    loop = true;
+                    continue;
+                } else if (option.equals("--strips")) {
+                    useStrips = true;
+                    continue;
+                }
+
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(option + " needs a value");
+                }
+                final String value = args[++i];
+                if (option.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (option.equals("--size")) {
+                    final String[] size = value.split("x");
+                    if (size.length != 2) {
+                        throw new IllegalArgumentException("--size must be WxH");
+                    }
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                } else if (option.equals("--file")) {
+                    path = value;
+                } else if (option.equals("--fps")) {
+                    fps = Double.parseDouble(value);
+                } else if (option.equals("--quality")) {
+                    quality = Integer.parseInt(value);
+                } else if (option.equals("--bitrate")) {
+                    bitrateKbps = Integer.parseInt(value);
+                } else if (option.equals("--encoders")) {
+                    numEncoders = Integer.parseInt(value);
+                } else if (option.equals("--widths")) {
+                    widths = parseWidths(value);
+                } else if (option.equals("--duration")) {
+                    durationS = Long.parseLong(value);
+                } else if (option.equals("--record")) {
+                    recordingDirectory = new File(value);
+                } else if (option.equals("--quota")) {
+                    quotaMb = Long.parseLong(value);
+                } else if (option.equals("--pre-event")) {
+                    preEventSeconds = Integer.parseInt(value);
+                } else if (option.equals("--events")) {
+                    eventDirectory = new File(value);
+                } else if (option.equals("--rtp")) {
+                    rtpDestination = RtpJpegSender.parseDestination(value);
+                } else if (option.equals("--rtp-width")) {
+                    rtpWidth = Integer.parseInt(value);
+                } else if (option.equals("--rtp-ttl")) {
+                    rtpTimeToLive = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("unknown option " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        final FrameSource source = path == null
+                ? new SyntheticFrameSource(width, height)
+                : new RawNv21FileSource(path, width, height, loop);
+        final HeadlessStreamer streamer = new HeadlessStreamer(source, port, fps, quality,
+                bitrateKbps, numEncoders, useStrips, widths, recordingDirectory,
+                quotaMb * 1024L * 1024L, preEventSeconds, eventDirectory, rtpDestination,
+                rtpWidth, rtpTimeToLive);
+        streamer.start();
+        System.out.println("Serving " + width + "x" + height + " on port " + port);
+
+        if (durationS > 0L) {
+            Thread.sleep(durationS * 1000L);
+        } else {
+            streamer.awaitEndOfSource();
+        }
+        streamer.stop();
+        source.close();
+
+        final StringBuilder metrics = new StringBuilder();
+        streamer.getMetrics().writeTo(metrics);
+        System.out.print(metrics);
+    }
+
+    private static int[] parseWidths(final String value) {
+        if (value.isEmpty()) {
+            return new int[0];
+        }
+        final String[] parts = value.split(",");
+        final int[] widths = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            widths[i] = Integer.parseInt(parts[i].trim());
+        }
+        return widths;
+    }
+}
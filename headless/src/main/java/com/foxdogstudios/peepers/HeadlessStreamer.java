@@ -0,0 +1,217 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CameraStreamer without the camera: frames from a FrameSource are fed
+ * to the same StreamingPipeline, so it can be run and measured on any
+ * JVM.
+ *
+ * Frames are read on a capture thread, at a fixed rate or as fast as
+ * the encoders take them. At a fixed rate a frame that finds no free
+ * buffer is dropped, as the camera would drop it; unlimited, the capture
+ * thread waits for a buffer instead, so the source never outruns the
+ * encoders. Nothing is read while no client is watching.
+ *
+ * Frames are stamped with the wall clock, so a client on another
+ * machine with a synchronised clock can work out each frame's age from
+ * its X-Timestamp header.
+ */
+class HeadlessStreamer implements EncoderPool.BufferRecycler,
+        MJpegHttpStreamer.SubscriberListener {
+    private static final String TAG = HeadlessStreamer.class.getSimpleName();
+
+    private final FrameSource source;
+    private final double fps;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final Metrics metrics = new Metrics();
+    private final StreamingPipeline pipeline;
+    private final Object subscriberLock = new Object();
+
+    private Thread captureThread = null;
+    private volatile boolean isRunning = false;
+
+    /**
+     * @param fps the rate to read frames at, or 0 to read them as fast
+     *            as they are encoded
+     * @param jpegQuality the initial quality, kept fixed unless
+     *                    targetBitrateKbps is positive
+     * @param numEncoders the number of encoder threads
+     * @param useStripEncoder whether to spread each frame over every
+     *                        encoder thread instead of encoding
+     *                        numEncoders frames at once
+     * @param recordingDirectory where to record the full size at
+     *                           jpegQuality, or null not to record
+     * @param preEventSeconds how long to keep the same stream in memory
+     *                        for /event.mjpeg, or 0 not to
+     * @param eventDirectory where /event/save saves it
+     * @param rtpDestination where to send RTP/JPEG, or null not to
+     * @param rtpWidth the width to send, or -1 for the full size
+     * @param rtpTimeToLive the TTL of multicast RTP packets
+     */
+    HeadlessStreamer(final FrameSource source, final int port, final double fps,
+                     final int jpegQuality, final int targetBitrateKbps,
+                     final int numEncoders, final boolean useStripEncoder,
+                     final int[] outputWidths, final File recordingDirectory,
+                     final long recordingQuotaBytes, final int preEventSeconds,
+                     final File eventDirectory, final InetSocketAddress rtpDestination,
+                     final int rtpWidth, final int rtpTimeToLive) {
+        super();
+
+        if (fps < 0.0) {
+            throw new IllegalArgumentException("fps must not be negative");
+        }
+        if (numEncoders < 1) {
+            throw new IllegalArgumentException("numEncoders must be at least 1");
+        }
+
+        this.source = source;
+        this.fps = fps;
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+
+        final FrameEncoder[] encoders;
+        if (useStripEncoder) {
+            encoders = new FrameEncoder[] {new StripJpegEncoder(numEncoders)};
+        } else {
+            encoders = new FrameEncoder[numEncoders];
+            for (int i = 0; i < numEncoders; i++) {
+                encoders[i] = new JpegEncoder();
+            }
+        }
+        pipeline = new StreamingPipeline(port, width, height, width * height * 3 / 2,
+                outputWidths, encoders, jpegQuality, targetBitrateKbps, fps > 0.0 ? fps : 30.0,
+                recordingDirectory, recordingQuotaBytes, preEventSeconds, eventDirectory,
+                rtpDestination, rtpWidth, rtpTimeToLive, metrics, this, this);
+
+        final int numBuffers = pipeline.getNumBuffers();
+        freeBuffers = new ArrayBlockingQueue<byte[]>(numBuffers);
+        for (int i = 0; i < numBuffers; i++) {
+            freeBuffers.add(new byte[width * height * 3 / 2]);
+        }
+    }
+
+    void start() throws IOException {
+        if (isRunning) {
+            throw new IllegalStateException("HeadlessStreamer is already running");
+        }
+
+        pipeline.start();
+        isRunning = true;
+        captureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captureRun();
+            }
+        }, TAG + "-capture");
+        captureThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        if (!isRunning) {
+            throw new IllegalStateException("HeadlessStreamer is already stopped");
+        }
+
+        isRunning = false;
+        captureThread.interrupt();
+        captureThread.join();
+        pipeline.stop();
+        pipeline.join();
+    }
+
+    /**
+     * Wait until the source runs out of frames or stop() is called.
+     */
+    void awaitEndOfSource() throws InterruptedException {
+        captureThread.join();
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void recycle(final byte[] data) {
+        freeBuffers.add(data);
+    }
+
+    @Override
+    public void onSubscribersChanged(final int numSubscribers) {
+        synchronized (subscriberLock) {
+            subscriberLock.notifyAll();
+        }
+    }
+
+    private void captureRun() {
+        final long intervalNanos = fps > 0.0 ? (long) (1e9 / fps) : 0L;
+        long nextFrameNanos = System.nanoTime();
+
+        try {
+            while (isRunning) {
+                waitForSubscribers();
+
+                if (intervalNanos > 0L) {
+                    final long waitNanos = nextFrameNanos - System.nanoTime();
+                    if (waitNanos > 0L) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                    nextFrameNanos += intervalNanos;
+                    final long nowNanos = System.nanoTime();
+                    if (nowNanos - nextFrameNanos > intervalNanos) {
+                        // Far behind, e.g. after nobody was watching,
+                        // so carry on from now rather than catching up
+                        nextFrameNanos = nowNanos;
+                    }
+                }
+
+                final byte[] data = intervalNanos > 0L ? freeBuffers.poll() : freeBuffers.take();
+                if (data == null) {
+                    // Every buffer is still being encoded
+                    metrics.countFrameDropped();
+                    continue;
+                }
+                if (!source.read(data)) {
+                    freeBuffers.add(data);
+                    break;
+                }
+                metrics.countFrameCaptured();
+
+                if (!pipeline.submit(data, System.currentTimeMillis())) {
+                    freeBuffers.add(data);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // stop() has been called
+        }
+    }
+
+    private void waitForSubscribers() throws InterruptedException {
+        synchronized (subscriberLock) {
+            while (isRunning && !pipeline.hasSubscribers()) {
+                subscriberLock.wait();
+            }
+        }
+    }
+}
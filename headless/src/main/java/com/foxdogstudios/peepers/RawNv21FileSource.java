@@ -0,0 +1,114 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays a file of raw NV21 frames laid end to end, e.g. one recorded
+ * with ffmpeg -pix_fmt nv21 -f rawvideo. The file is memory-mapped, so
+ * once it is in the page cache replaying costs one copy per frame and
+ * no system calls. A file larger than a single mapping can cover is
+ * mapped a window of whole frames at a time.
+ */
+class RawNv21FileSource implements FrameSource {
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final boolean loop;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long numFrames;
+    private final long framesPerWindow;
+
+    private MappedByteBuffer window = null;
+    private long windowFirstFrame = 0L;
+    private long nextFrame = 0L;
+
+    /**
+     * @param loop whether to start again from the first frame after the
+     *             last, rather than ending
+     */
+    RawNv21FileSource(final String path, final int width, final int height,
+                      final boolean loop) throws IOException {
+        super();
+
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("size must be positive and even");
+        }
+
+        this.width = width;
+        this.height = height;
+        frameSize = width * height * 3 / 2;
+        this.loop = loop;
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        numFrames = channel.size() / frameSize;
+        framesPerWindow = Math.max(1, Integer.MAX_VALUE / frameSize);
+
+        if (numFrames == 0L) {
+            close();
+            throw new IOException(path + " is smaller than one " + width + "x" + height
+                    + " frame");
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    long getNumFrames() {
+        return numFrames;
+    }
+
+    @Override
+    public boolean read(final byte[] nv21) throws IOException {
+        if (nextFrame == numFrames) {
+            if (!loop) {
+                return false;
+            }
+            nextFrame = 0L;
+        }
+
+        if (window == null || nextFrame < windowFirstFrame
+                || nextFrame >= windowFirstFrame + framesPerWindow) {
+            windowFirstFrame = nextFrame;
+            final long windowFrames = Math.min(framesPerWindow, numFrames - windowFirstFrame);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowFirstFrame * frameSize,
+                    windowFrames * frameSize);
+        }
+
+        window.position((int) ((nextFrame - windowFirstFrame) * frameSize));
+        window.get(nv21, 0, frameSize);
+        nextFrame++;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+}
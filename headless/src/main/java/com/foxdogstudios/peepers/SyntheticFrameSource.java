@@ -0,0 +1,101 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+/**
+ * An endless moving test pattern: diagonal stripes drifting across a
+ * gradient, with a box bouncing around on top and the colours slowly
+ * cycling. Every frame differs from the last, so nothing is skipped as
+ * unchanged, and there is enough detail for the encoder to do real work.
+ */
+class SyntheticFrameSource implements FrameSource {
+    private static final int BOX_SIZE = 64;
+
+    private final int width;
+    private final int height;
+    private long frameIndex = 0L;
+
+    SyntheticFrameSource(final int width, final int height) {
+        super();
+
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("size must be positive and even");
+        }
+
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean read(final byte[] nv21) {
+        final int shift = (int) (frameIndex * 4L);
+
+        // Y: stripes over a gradient
+        for (int y = 0; y < height; y++) {
+            final int rowOffset = y * width;
+            for (int x = 0; x < width; x++) {
+                final int stripe = ((x + y + shift) & 32) != 0 ? 48 : 0;
+                nv21[rowOffset + x] = (byte) (32 + (x + y) * 128 / (width + height) + stripe);
+            }
+        }
+
+        // The box bounces between the edges
+        final int boxX = bounce(frameIndex * 7L, width - BOX_SIZE);
+        final int boxY = bounce(frameIndex * 5L, height - BOX_SIZE);
+        for (int y = boxY; y < boxY + BOX_SIZE; y++) {
+            for (int x = boxX; x < boxX + BOX_SIZE; x++) {
+                nv21[y * width + x] = (byte) 235;
+            }
+        }
+
+        // VU: a hue that turns over a few seconds
+        final int v = 128 + (int) (64.0 * Math.sin(frameIndex / 30.0));
+        final int u = 128 + (int) (64.0 * Math.cos(frameIndex / 30.0));
+        final int chromaEnd = width * height * 3 / 2;
+        for (int i = width * height; i < chromaEnd; i += 2) {
+            nv21[i] = (byte) v;
+            nv21[i + 1] = (byte) u;
+        }
+
+        frameIndex++;
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Move back and forth between 0 and max.
+     */
+    private static int bounce(final long position, final int max) {
+        if (max <= 0) {
+            return 0;
+        }
+        final int phase = (int) (position % (2L * max));
+        return phase < max ? phase : 2 * max - phase;
+    }
+}
@@ -0,0 +1,88 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Rings sharing a capped BufferPool: slots take buffers as they are
+ * first claimed, a claim that finds the pool at its cap is dropped, and
+ * trimming gives back every buffer not being read.
+ */
+public class FrameRingTest {
+    private static final int BUFFER_SIZE = 1024;
+
+    @Test
+    public void claimDropsOncePoolIsAtCap() {
+        final BufferPool pool = new BufferPool(BUFFER_SIZE, 3 /* maxBuffers */);
+        final FrameRing first = new FrameRing(4, pool);
+        final FrameRing second = new FrameRing(4, pool);
+        assertEquals("buffers taken by empty rings", 0, pool.getNumInUse());
+
+        // The first ring fills every slot it can, one per claim
+        for (int i = 0; i < 3; i++) {
+            final FrameRing.Frame frame = first.claim();
+            assertNotNull("claim " + i, frame);
+            first.publish(frame, i);
+        }
+        assertEquals("buffers in use", 3, pool.getNumInUse());
+        // Three slots with buffers, one of them the latest, so the next
+        // claim reuses one rather than needing a fourth buffer
+        final FrameRing.Frame reused = first.claim();
+        assertNotNull("claim of a slot with a buffer", reused);
+        first.publish(reused, 3L);
+        assertEquals("buffers in use", 3, pool.getNumInUse());
+
+        final long numMisses = pool.getNumMisses();
+        assertNull("claim past the cap", second.claim());
+        assertEquals("frames dropped", 1L, second.getNumDroppedFrames());
+        assertEquals("misses", numMisses + 1L, pool.getNumMisses());
+
+        first.releaseBuffers();
+        assertEquals("idle buffers after release", 3, pool.getNumIdle());
+        final FrameRing.Frame frame = second.claim();
+        assertNotNull("claim after buffers were released", frame);
+        second.abandon(frame);
+        assertEquals("buffers in use", 1, pool.getNumInUse());
+    }
+
+    @Test
+    public void trimKeepsOnlyPinnedFrames() {
+        final BufferPool pool = new BufferPool(BUFFER_SIZE, 4 /* maxBuffers */);
+        final FrameRing ring = new FrameRing(4, pool);
+        for (int i = 0; i < 4; i++) {
+            final FrameRing.Frame frame = ring.claim();
+            assertNotNull("claim " + i, frame);
+            ring.publish(frame, i);
+        }
+        final FrameRing.Frame pinned = ring.acquireLatest();
+        assertNotNull("latest frame", pinned);
+
+        ring.trimBuffers();
+        assertEquals("buffers kept", 1, pool.getNumInUse());
+        assertEquals("buffers given back", 3, pool.getNumIdle());
+
+        pinned.release();
+        ring.trimBuffers();
+        assertEquals("buffers kept once unpinned", 0, pool.getNumInUse());
+        assertNull("latest frame after trimming", ring.acquireLatest());
+        assertNotNull("claim after trimming", ring.claim());
+    }
+}
@@ -0,0 +1,132 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A headless streamer left with nobody watching must stop reading and
+ * encoding frames, and a client arriving after that must typically get
+ * its first frame within one frame interval.
+ *
+ * The time is the server's own, from the client subscribing to its
+ * first frame having been written, so that connecting and the client
+ * reading the part are not counted. The median over several rounds is
+ * checked, so that one round held up by the scheduler or a collection
+ * does not fail the test.
+ */
+public class HeadlessStreamerTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final double FPS = 30.0;
+    private static final long FRAME_INTERVAL_MS = (long) (1000.0 / FPS);
+    private static final int NUM_ROUNDS = 7;
+    private static final long IDLE_TIMEOUT_MS = 10000L;
+    private static final long RECORD_TIMEOUT_MS = 1000L;
+
+    private int port;
+    private HeadlessStreamer streamer;
+
+    @Before
+    public void setUp() throws IOException {
+        port = MJpegHttpStreamerTest.findFreePort();
+        streamer = new HeadlessStreamer(new SyntheticFrameSource(WIDTH, HEIGHT), port, FPS,
+                80 /* jpegQuality */, 0 /* targetBitrateKbps */, 1 /* numEncoders */,
+                false /* useStripEncoder */, new int[0] /* outputWidths */,
+                null /* recordingDirectory */, 0L /* recordingQuotaBytes */,
+                0 /* preEventSeconds */, null /* eventDirectory */, null /* rtpDestination */,
+                -1 /* rtpWidth */, 1 /* rtpTimeToLive */);
+        streamer.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        streamer.stop();
+    }
+
+    @Test
+    public void readsNothingWhileNobodyIsWatching() throws IOException, InterruptedException {
+        // Not even the first frame before the first client
+        Thread.sleep(3 * FRAME_INTERVAL_MS);
+        assertEquals("frames captured", 0L, streamer.getMetrics().getNumFramesCaptured());
+
+        MJpegHttpStreamerTest.readParts(port, 3);
+        final long numFramesCaptured = awaitIdle();
+        Thread.sleep(3 * FRAME_INTERVAL_MS);
+        assertEquals("frames captured while idle", numFramesCaptured,
+                streamer.getMetrics().getNumFramesCaptured());
+    }
+
+    @Test
+    public void firstFrameArrivesWithinOneIntervalOfIdle()
+            throws IOException, InterruptedException {
+        // Warms up the encoder and the streamer before anything is timed
+        MJpegHttpStreamerTest.readParts(port, 10);
+        final LatencyHistogram firstFrameLatency = streamer.getMetrics().getFirstFrameLatency();
+        final long[] latenciesMs = new long[NUM_ROUNDS];
+        for (int round = 0; round < NUM_ROUNDS; round++) {
+            awaitIdle();
+            final long count = firstFrameLatency.getCount();
+            final long sum = firstFrameLatency.getSum();
+            MJpegHttpStreamerTest.readParts(port, 1);
+            // The client can read the part before the server records it
+            final long deadline = System.currentTimeMillis() + RECORD_TIMEOUT_MS;
+            while (firstFrameLatency.getCount() == count) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("no first frame recorded in round " + round);
+                }
+                Thread.sleep(1L);
+            }
+            assertEquals("first frames recorded in round " + round, count + 1L,
+                    firstFrameLatency.getCount());
+            latenciesMs[round] = (firstFrameLatency.getSum() - sum) / 1000000L;
+        }
+
+        Arrays.sort(latenciesMs);
+        final long medianMs = latenciesMs[NUM_ROUNDS / 2];
+        assertTrue("median first frame " + medianMs + " ms of " + Arrays.toString(latenciesMs),
+                medianMs <= FRAME_INTERVAL_MS);
+    }
+
+    /**
+     * Wait until the capture count has not moved for three frame
+     * intervals, which it would at FPS if anyone were watching.
+     *
+     * @return the capture count once idle
+     */
+    private long awaitIdle() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + IDLE_TIMEOUT_MS;
+        long numFramesCaptured = streamer.getMetrics().getNumFramesCaptured();
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(3 * FRAME_INTERVAL_MS);
+            final long latest = streamer.getMetrics().getNumFramesCaptured();
+            if (latest == numFramesCaptured) {
+                return latest;
+            }
+            numFramesCaptured = latest;
+        }
+        fail("still capturing " + IDLE_TIMEOUT_MS + " ms after the last client left");
+        return numFramesCaptured;
+    }
+}
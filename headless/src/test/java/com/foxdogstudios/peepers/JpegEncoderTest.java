@@ -0,0 +1,236 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+/**
+ * The encoders' JPEGs decoded by the JDK's decoder and compared with
+ * the NV21 frames they came from. Each quality the clients can ask for
+ * must decode to the right size and stay above a PSNR floor, in luma
+ * and in chroma, and a higher quality must never come out worse.
+ */
+public class JpegEncoderTest {
+    private static final int[] QUALITIES = {20, 40, 60, 80, 95};
+    // The lowest luma and chroma PSNR in dB allowed at each quality
+    private static final double[] MIN_LUMA_PSNR = {40.0, 42.0, 43.5, 44.5, 46.0};
+    private static final double[] MIN_CHROMA_PSNR = {41.0, 43.5, 44.0, 44.5, 45.5};
+
+    @Test
+    public void mcuAlignedFrameDecodesAboveFloor() throws IOException {
+        checkQualities(new JpegEncoder(), 320, 240);
+    }
+
+    @Test
+    public void partialMcuFrameDecodesAboveFloor() throws IOException {
+        // Neither dimension is a multiple of the 16 pixel MCU
+        checkQualities(new JpegEncoder(), 330, 250);
+    }
+
+    @Test
+    public void stripEncodedFrameDecodesAboveFloor() throws IOException {
+        final StripJpegEncoder encoder = new StripJpegEncoder(3 /* numThreads */);
+        encoder.start();
+        try {
+            checkQualities(encoder, 330, 250);
+        } finally {
+            encoder.stop();
+        }
+    }
+
+    @Test
+    public void frameTooBigForSlotFails() {
+        final byte[] nv21 = createFrame(330, 250, 42L /* seed */);
+        // Room for the header and a little of the scan
+        final DirectMemoryOutputStream out =
+                new DirectMemoryOutputStream(ByteBuffer.allocateDirect(2048));
+        assertFalse("encoded into too small a slot",
+                new JpegEncoder().encode(nv21, 330, 250, 80, out));
+        final StripJpegEncoder encoder = new StripJpegEncoder(3 /* numThreads */);
+        encoder.start();
+        try {
+            out.seek(0);
+            assertFalse("strip encoded into too small a slot",
+                    encoder.encode(nv21, 330, 250, 80, out));
+        } finally {
+            encoder.stop();
+        }
+    }
+
+    private static void checkQualities(final FrameEncoder encoder, final int width,
+                                       final int height) throws IOException {
+        final byte[] nv21 = createFrame(width, height, 42L /* seed */);
+        // A direct buffer like the frame ring's slots, which the
+        // encoders write into in chunks
+        final DirectMemoryOutputStream out = new DirectMemoryOutputStream(
+                ByteBuffer.allocateDirect(width * height * 3 / 2));
+        double lastLumaPsnr = 0.0;
+        for (int i = 0; i < QUALITIES.length; i++) {
+            out.seek(0);
+            assertTrue("quality " + QUALITIES[i] + " did not encode",
+                    encoder.encode(nv21, width, height, QUALITIES[i], out));
+            final byte[] jpeg = new byte[out.getLength()];
+            final ByteBuffer contents = out.getBuffer().duplicate();
+            contents.clear();
+            contents.get(jpeg);
+            assertIs420(jpeg);
+
+            final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+            assertNotNull("quality " + QUALITIES[i] + " did not decode", image);
+            assertEquals("width", width, image.getWidth());
+            assertEquals("height", height, image.getHeight());
+
+            final double lumaPsnr = getLumaPsnr(nv21, image);
+            final double chromaPsnr = getChromaPsnr(nv21, image);
+            assertTrue("luma PSNR at quality " + QUALITIES[i] + " is " + lumaPsnr,
+                    lumaPsnr >= MIN_LUMA_PSNR[i]);
+            assertTrue("chroma PSNR at quality " + QUALITIES[i] + " is " + chromaPsnr,
+                    chromaPsnr >= MIN_CHROMA_PSNR[i]);
+            assertTrue("quality " + QUALITIES[i] + " is worse than the quality below it",
+                    lumaPsnr >= lastLumaPsnr);
+            lastLumaPsnr = lumaPsnr;
+        }
+    }
+
+    /**
+     * Check the baseline frame header declares three components with Y
+     * sampled 2x2 and Cb and Cr 1x1, as NV21 is stored.
+     */
+    private static void assertIs420(final byte[] jpeg) {
+        for (int i = 2; i + 3 < jpeg.length; ) {
+            assertEquals("marker at " + i, 0xFF, jpeg[i] & 0xFF);
+            final int marker = jpeg[i + 1] & 0xFF;
+            final int length = (jpeg[i + 2] & 0xFF) << 8 | jpeg[i + 3] & 0xFF;
+            if (marker == 0xC0) {
+                assertEquals("components", 3, jpeg[i + 9] & 0xFF);
+                assertEquals("Y sampling", 0x22, jpeg[i + 11] & 0xFF);
+                assertEquals("Cb sampling", 0x11, jpeg[i + 14] & 0xFF);
+                assertEquals("Cr sampling", 0x11, jpeg[i + 17] & 0xFF);
+                return;
+            }
+            i += 2 + length;
+        }
+        throw new AssertionError("no baseline frame header");
+    }
+
+    private static double getLumaPsnr(final byte[] nv21, final BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        double sumOfSquares = 0.0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int rgb = image.getRGB(x, y);
+                final double error = getY(rgb) - (nv21[y * width + x] & 0xFF);
+                sumOfSquares += error * error;
+            }
+        }
+        return getPsnr(sumOfSquares / (width * height));
+    }
+
+    /**
+     * Compared at NV21's resolution, each 2x2 block of decoded pixels
+     * averaged into one chroma sample.
+     */
+    private static double getChromaPsnr(final byte[] nv21, final BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        double sumOfSquares = 0.0;
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                double cb = 0.0;
+                double cr = 0.0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        final int rgb = image.getRGB(x + dx, y + dy);
+                        cb += getCb(rgb) / 4.0;
+                        cr += getCr(rgb) / 4.0;
+                    }
+                }
+                final int offset = width * height + y / 2 * width + x;
+                final double crError = cr - (nv21[offset] & 0xFF);
+                final double cbError = cb - (nv21[offset + 1] & 0xFF);
+                sumOfSquares += crError * crError + cbError * cbError;
+            }
+        }
+        return getPsnr(sumOfSquares / (width * height / 2));
+    }
+
+    private static double getPsnr(final double meanSquaredError) {
+        return 10.0 * Math.log10(255.0 * 255.0 / Math.max(meanSquaredError, 1e-10));
+    }
+
+    // The JFIF conversions from RGB
+
+    private static double getY(final int rgb) {
+        return 0.299 * red(rgb) + 0.587 * green(rgb) + 0.114 * blue(rgb);
+    }
+
+    private static double getCb(final int rgb) {
+        return 128.0 - 0.168736 * red(rgb) - 0.331264 * green(rgb) + 0.5 * blue(rgb);
+    }
+
+    private static double getCr(final int rgb) {
+        return 128.0 + 0.5 * red(rgb) - 0.418688 * green(rgb) - 0.081312 * blue(rgb);
+    }
+
+    private static int red(final int rgb) {
+        return rgb >> 16 & 0xFF;
+    }
+
+    private static int green(final int rgb) {
+        return rgb >> 8 & 0xFF;
+    }
+
+    private static int blue(final int rgb) {
+        return rgb & 0xFF;
+    }
+
+    /**
+     * Gradients with noise and a hard edge, closer to a camera image
+     * than a flat colour. The colours stay well inside the RGB cube, so
+     * that the decoder's clamping does not count as error.
+     */
+    static byte[] createFrame(final int width, final int height, final long seed) {
+        final byte[] nv21 = new byte[width * height * 3 / 2];
+        final Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int edge = x > width / 2 && y > height / 2 ? 40 : 0;
+                nv21[y * width + x] = (byte) (64 + (x + y) * 64 / (width + height) + edge
+                        + random.nextInt(4));
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                final int offset = width * height + y * width + 2 * x;
+                nv21[offset] = (byte) (112 + x * 32 / width + random.nextInt(4));
+                nv21[offset + 1] = (byte) (144 - y * 32 / height + random.nextInt(4));
+            }
+        }
+        return nv21;
+    }
+}
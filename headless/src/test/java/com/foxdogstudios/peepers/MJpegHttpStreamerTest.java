@@ -0,0 +1,261 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Many clients of /stream.mjpeg at once, served by a headless streamer
+ * over loopback sockets. The loopback client helpers here are shared by
+ * the other streamer tests.
+ */
+public class MJpegHttpStreamerTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final double FPS = 30.0;
+    private static final int NUM_CLIENTS = 50;
+    private static final int NUM_PARTS = 10;
+    private static final int TIMEOUT_MS = 30000;
+
+    private int port;
+    private HeadlessStreamer streamer;
+
+    @Before
+    public void setUp() throws IOException {
+        port = findFreePort();
+        streamer = new HeadlessStreamer(new SyntheticFrameSource(WIDTH, HEIGHT), port, FPS,
+                80 /* jpegQuality */, 0 /* targetBitrateKbps */, 1 /* numEncoders */,
+                false /* useStripEncoder */, new int[0] /* outputWidths */,
+                null /* recordingDirectory */, 0L /* recordingQuotaBytes */,
+                0 /* preEventSeconds */, null /* eventDirectory */, null /* rtpDestination */,
+                -1 /* rtpWidth */, 1 /* rtpTimeToLive */);
+        streamer.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        streamer.stop();
+    }
+
+    @Test
+    public void everyClientGetsWellFormedParts() throws InterruptedException {
+        final AtomicReferenceArray<Throwable> failures =
+                new AtomicReferenceArray<Throwable>(NUM_CLIENTS);
+        final int[] numParts = new int[NUM_CLIENTS];
+        final Thread[] clients = new Thread[NUM_CLIENTS];
+        for (int index = 0; index < NUM_CLIENTS; index++) {
+            final int client = index;
+            clients[index] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        numParts[client] = readParts(port, NUM_PARTS);
+                    } catch (Throwable e) {
+                        failures.set(client, e);
+                    }
+                }
+            }, "client-" + index);
+            clients[index].start();
+        }
+        for (final Thread client : clients) {
+            client.join();
+        }
+
+        for (int index = 0; index < NUM_CLIENTS; index++) {
+            if (failures.get(index) != null) {
+                throw new AssertionError("client " + index + " failed", failures.get(index));
+            }
+            assertEquals("parts read by client " + index, NUM_PARTS, numParts[index]);
+        }
+    }
+
+    /**
+     * Read the response head and numParts parts, checking that each
+     * follows a boundary, has a Content-Length and is a whole JPEG.
+     *
+     * @return the number of parts read
+     */
+    static int readParts(final int port, final int numParts)
+            throws IOException, InterruptedException {
+        final Socket socket = connect(port);
+        try {
+            socket.setSoTimeout(TIMEOUT_MS);
+            socket.getOutputStream().write(Ascii.toBytes("GET /stream.mjpeg HTTP/1.1\r\n\r\n"));
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            final String status = readLine(in);
+            assertTrue("bad status: " + status, status.startsWith("HTTP/1.")
+                    && status.contains(" 200 "));
+            String boundary = null;
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                final int start = line.indexOf("boundary=");
+                if (line.toLowerCase().startsWith("content-type:") && start >= 0) {
+                    boundary = line.substring(start + "boundary=".length());
+                }
+            }
+            if (boundary == null) {
+                fail("no boundary in the response head");
+            }
+
+            for (int part = 0; part < numParts; part++) {
+                String line = readLine(in);
+                while (line.isEmpty()) {
+                    line = readLine(in);
+                }
+                // The streamer's boundary has always carried its own
+                // dashes, so it is sent with or without two more
+                assertTrue("no boundary before part " + part + ": " + line,
+                        line.equals("--" + boundary) || line.equals(boundary));
+
+                int contentLength = -1;
+                for (line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring(
+                                "content-length:".length()).trim());
+                    }
+                }
+                assertTrue("no Content-Length in part " + part, contentLength > 4);
+
+                final byte[] jpeg = new byte[contentLength];
+                in.readFully(jpeg);
+                assertTrue("part " + part + " does not start with SOI",
+                        (jpeg[0] & 0xFF) == 0xFF && (jpeg[1] & 0xFF) == 0xD8);
+                assertTrue("part " + part + " does not end with EOI",
+                        (jpeg[contentLength - 2] & 0xFF) == 0xFF
+                                && (jpeg[contentLength - 1] & 0xFF) == 0xD9);
+            }
+            return numParts;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A line without its CRLF.
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            final int b = in.read();
+            if (b == -1) {
+                throw new IOException("connection closed mid-line");
+            }
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        final String text = line.toString("US-ASCII");
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    static int findFreePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Connect, retrying while the streamer's worker binds its socket.
+     */
+    static Socket connect(final int port) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10L);
+            }
+        }
+    }
+
+    /**
+     * Connect numClients clients to /stream.mjpeg, each draining its
+     * socket on its own thread, and wait until the streamer has
+     * subscribed them all.
+     *
+     * @param numBytesRead counts the bytes the clients read
+     */
+    static Socket[] startStreamingClients(final int port, final FrameCache frameCache,
+                                          final int numClients, final AtomicLong numBytesRead)
+            throws IOException, InterruptedException {
+        final Socket[] clients = new Socket[numClients];
+        for (int index = 0; index < numClients; index++) {
+            clients[index] = connect(port);
+            clients[index].getOutputStream().write(
+                    Ascii.toBytes("GET /stream.mjpeg HTTP/1.1\r\n\r\n"));
+            startDraining(clients[index], numBytesRead);
+        }
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (frameCache.getNumSubscribers() < numClients) {
+            assertTrue("clients did not subscribe", System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+        }
+        return clients;
+    }
+
+    /**
+     * Read and throw away whatever the socket is sent until it is closed.
+     */
+    static void startDraining(final Socket socket, final AtomicLong numBytesRead)
+            throws IOException {
+        final InputStream in = socket.getInputStream();
+        final Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[64 * 1024];
+                try {
+                    while (true) {
+                        final int numBytes = in.read(buffer);
+                        if (numBytes == -1) {
+                            return;
+                        }
+                        numBytesRead.addAndGet(numBytes);
+                    }
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            }
+        }, "drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+}
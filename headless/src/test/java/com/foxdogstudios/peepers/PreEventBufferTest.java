@@ -0,0 +1,75 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Frames pushed out of a pre-event window before they are as old as its
+ * duration are counted, and windows are sized to hold the duration.
+ */
+public class PreEventBufferTest {
+    private static final int STREAM = 0;
+    private static final int FRAME_BYTES = 1000;
+
+    @Test
+    public void countsFramesEvictedToMakeRoom() {
+        // Room for three frames, kept for far longer than the test runs
+        final PreEventBuffer buffer = new PreEventBuffer(STREAM, 3 * FRAME_BYTES,
+                100 /* maxFrames */, 60000L);
+        for (int i = 0; i < 3; i++) {
+            buffer.onFramePublished(STREAM, ByteBuffer.allocate(FRAME_BYTES), i);
+        }
+        assertEquals("evicted while there was room", 0L, buffer.getNumFramesEvicted());
+
+        for (int i = 0; i < 2; i++) {
+            buffer.onFramePublished(STREAM, ByteBuffer.allocate(FRAME_BYTES), i);
+        }
+        assertEquals("evicted to make room", 2L, buffer.getNumFramesEvicted());
+
+        buffer.onFramePublished(STREAM + 1, ByteBuffer.allocate(FRAME_BYTES), 0L);
+        assertEquals("evicted by another stream", 2L, buffer.getNumFramesEvicted());
+        assertTrue("span", buffer.getSpanMs() >= 0L);
+    }
+
+    @Test
+    public void countsFramesEvictedForFrameLimit() {
+        final PreEventBuffer buffer = new PreEventBuffer(STREAM, 10 * FRAME_BYTES,
+                2 /* maxFrames */, 60000L);
+        for (int i = 0; i < 5; i++) {
+            buffer.onFramePublished(STREAM, ByteBuffer.allocate(FRAME_BYTES), i);
+        }
+        assertEquals("evicted past the frame limit", 3L, buffer.getNumFramesEvicted());
+    }
+
+    @Test
+    public void frameEstimateGrowsWithQuality() {
+        final long low = StreamingPipeline.estimateFrameBytes(1280, 720, 10);
+        final long high = StreamingPipeline.estimateFrameBytes(1280, 720, 95);
+        assertTrue("low quality " + low, low > 0L);
+        assertTrue("high quality " + high, high > low);
+        // Ten seconds at 30 fps fits under the cap for 480p at middling
+        // quality but not for 720p at the highest
+        assertTrue(300L * StreamingPipeline.estimateFrameBytes(640, 480, 50)
+                < StreamingPipeline.PRE_EVENT_MAX_BYTES);
+        assertTrue(300L * high > StreamingPipeline.PRE_EVENT_MAX_BYTES);
+    }
+}
@@ -0,0 +1,183 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * RateController driven by a simulated encoder whose frame size is
+ * proportional to the quality times the scene's complexity, published
+ * at a steady frame rate.
+ */
+public class RateControllerTest {
+    private static final double FPS = 30.0;
+    private static final long TARGET_BITS_PER_SECOND = 2000000L;
+    // The bytes per frame that hold the target at FPS
+    private static final double TARGET_BYTES = TARGET_BITS_PER_SECOND / 8.0 / FPS;
+
+    private long numFrames = 0L;
+
+    @Test
+    public void holdsQualityInsideDeadBand() {
+        final RateController controller = new RateController(50, TARGET_BITS_PER_SECOND, FPS);
+        for (int i = 0; i < 1000; i++) {
+            // Just inside the band, above then below the target
+            final double ratio = i < 500
+                    ? 1.0 + RateController.DEAD_BAND * 0.8
+                    : 1.0 - RateController.DEAD_BAND * 0.8;
+            publish(controller, (int) (TARGET_BYTES * ratio), FPS);
+            assertEquals("quality after frame " + i, 50, controller.getQuality());
+        }
+    }
+
+    @Test
+    public void ignoresFastOscillation() {
+        final RateController controller = new RateController(50, TARGET_BITS_PER_SECOND, FPS);
+        for (int i = 0; i < 1000; i++) {
+            // 30% either side of the target every other frame, which
+            // averages out over the frames the controller measures
+            final double ratio = i % 2 == 0 ? 1.3 : 0.7;
+            publish(controller, (int) (TARGET_BYTES * ratio), FPS);
+            assertEquals("quality after frame " + i, 50, controller.getQuality());
+        }
+    }
+
+    @Test
+    public void stepsDownByAtMostMaxStepOncePerHold() {
+        final RateController controller = new RateController(95, TARGET_BITS_PER_SECOND, FPS);
+        int lastQuality = controller.getQuality();
+        int numFramesSinceChange = 0;
+        while (controller.getQuality() > RateController.MIN_QUALITY) {
+            // Far over the target, so every judgement wants a big step
+            publish(controller, (int) (TARGET_BYTES * 10.0), FPS);
+            numFramesSinceChange++;
+            final int quality = controller.getQuality();
+            if (quality == lastQuality) {
+                assertTrue("held for " + numFramesSinceChange + " frames",
+                        numFramesSinceChange < RateController.NUM_HOLD_FRAMES);
+                continue;
+            }
+            assertEquals("frames before a change", RateController.NUM_HOLD_FRAMES,
+                    numFramesSinceChange);
+            assertEquals("step from " + lastQuality,
+                    Math.max(RateController.MIN_QUALITY,
+                            lastQuality - RateController.MAX_STEP_DOWN), quality);
+            lastQuality = quality;
+            numFramesSinceChange = 0;
+        }
+    }
+
+    @Test
+    public void stepsUpByAtMostMaxStepOncePerHold() {
+        final RateController controller = new RateController(RateController.MIN_QUALITY,
+                TARGET_BITS_PER_SECOND, FPS);
+        int lastQuality = controller.getQuality();
+        int numFramesSinceChange = 0;
+        while (controller.getQuality() < RateController.MAX_QUALITY) {
+            // Far under the target, so every judgement wants a big step
+            publish(controller, 1, FPS);
+            numFramesSinceChange++;
+            final int quality = controller.getQuality();
+            if (quality == lastQuality) {
+                assertTrue("held for " + numFramesSinceChange + " frames",
+                        numFramesSinceChange < RateController.NUM_HOLD_FRAMES);
+                continue;
+            }
+            assertEquals("frames before a change", RateController.NUM_HOLD_FRAMES,
+                    numFramesSinceChange);
+            // Low qualities take steps of half their own size, which may
+            // be smaller than the limit
+            assertTrue("step from " + lastQuality + " to " + quality,
+                    quality > lastQuality
+                            && quality - lastQuality <= RateController.MAX_STEP_UP);
+            if (lastQuality >= 2 * RateController.MAX_STEP_UP + 1) {
+                assertEquals("step from " + lastQuality,
+                        Math.min(RateController.MAX_QUALITY,
+                                lastQuality + RateController.MAX_STEP_UP), quality);
+            }
+            lastQuality = quality;
+            numFramesSinceChange = 0;
+        }
+    }
+
+    @Test
+    public void settlesAfterStepInComplexity() {
+        final RateController controller = new RateController(90, TARGET_BITS_PER_SECOND, FPS);
+        // The target is met at quality 50, then at 25 once the scene
+        // becomes twice as complex
+        settle(controller, TARGET_BYTES / 50.0);
+        settle(controller, TARGET_BYTES / 25.0);
+        settle(controller, TARGET_BYTES / 50.0);
+    }
+
+    @Test
+    public void relaxesCeilingAfterKeepingUp() {
+        final RateController controller = new RateController(80, TARGET_BITS_PER_SECOND, FPS);
+
+        // Half the target frame rate with frames dropped: the encoder is
+        // falling behind, so the quality drops and 80 becomes too high
+        while (controller.getQuality() == 80) {
+            controller.onFrameDropped();
+            publish(controller, (int) (TARGET_BYTES * 0.5), FPS / 2.0);
+        }
+        final int ceiling = 80 - 1;
+
+        // Keeping up again with room to spare in the bitrate, the
+        // quality climbs back to the ceiling and waits there
+        int numFrames = 0;
+        while (controller.getQuality() <= ceiling) {
+            publish(controller, 1, FPS);
+            numFrames++;
+            assertTrue("ceiling not relaxed after " + numFrames + " frames",
+                    numFrames <= 2 * RateController.NUM_CEILING_FRAMES);
+        }
+        assertTrue("ceiling relaxed after only " + numFrames + " frames",
+                numFrames >= RateController.NUM_CEILING_FRAMES);
+        assertEquals("quality above the ceiling", ceiling + 1, controller.getQuality());
+    }
+
+    /**
+     * Run the simulated encoder until the quality has not changed for
+     * the ceiling's period, then check the bitrate is in the dead band.
+     */
+    private void settle(final RateController controller, final double bytesPerQuality) {
+        int numStableFrames = 0;
+        int lastQuality = controller.getQuality();
+        for (int i = 0; i < 3000 && numStableFrames < RateController.NUM_CEILING_FRAMES; i++) {
+            publish(controller, (int) (bytesPerQuality * controller.getQuality()), FPS);
+            if (controller.getQuality() == lastQuality) {
+                numStableFrames++;
+            } else {
+                lastQuality = controller.getQuality();
+                numStableFrames = 0;
+            }
+        }
+        assertEquals("frames at a stable quality", RateController.NUM_CEILING_FRAMES,
+                numStableFrames);
+        final double ratio = bytesPerQuality * controller.getQuality() / TARGET_BYTES;
+        assertTrue("settled at quality " + controller.getQuality() + ", " + ratio
+                + " of the target", Math.abs(ratio - 1.0) <= RateController.DEAD_BAND);
+    }
+
+    private void publish(final RateController controller, final int numBytes,
+                         final double fps) {
+        numFrames++;
+        controller.onFramePublished(numBytes, (long) (numFrames * 1000.0 / fps));
+    }
+}
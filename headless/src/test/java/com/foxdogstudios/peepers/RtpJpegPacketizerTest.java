@@ -0,0 +1,191 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Encoder output packetized as RTP/JPEG, sent over UDP on loopback and
+ * rebuilt by the receiver's depacketizer. A rebuilt frame must carry the
+ * encoder's scan data unchanged, and a frame that loses a packet must
+ * be counted and thrown away without breaking the frames after it.
+ */
+public class RtpJpegPacketizerTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int QUALITY = 80;
+    private static final int RECEIVE_TIMEOUT_MS = 5000;
+
+    private DatagramSocket sender = null;
+    private DatagramSocket receiver = null;
+    private final RtpJpegPacketizer packetizer = new RtpJpegPacketizer(
+            StreamingPipeline.RTP_PACKET_SIZE, StreamingPipeline.RTP_TABLE_INTERVAL_MS);
+    private final RtpJpegDepacketizer depacketizer = new RtpJpegDepacketizer(
+            WIDTH * HEIGHT * 3 / 2);
+    private final byte[] receiveBuffer = new byte[StreamingPipeline.RTP_PACKET_SIZE];
+    private long timestampMs = 0L;
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver.setSoTimeout(RECEIVE_TIMEOUT_MS);
+        sender = new DatagramSocket();
+        sender.connect(receiver.getLocalSocketAddress());
+    }
+
+    @After
+    public void tearDown() {
+        if (sender != null) {
+            sender.close();
+        }
+        if (receiver != null) {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void rebuildsScanData() throws IOException {
+        for (int seed = 0; seed < 3; seed++) {
+            final byte[] jpeg = encode(seed);
+            final List<byte[]> packets = packetize(jpeg);
+            assertTrue("frame fits in one packet", packets.size() > 1);
+            assertTrue("frame " + seed + " not rebuilt", sendAll(packets, -1 /* drop none */));
+            assertRebuilt(jpeg);
+        }
+        assertEquals("frames", 3L, depacketizer.getNumFrames());
+        assertEquals("packets lost", 0L, depacketizer.getNumPacketsLost());
+        assertEquals("frames broken", 0L, depacketizer.getNumFramesBroken());
+    }
+
+    @Test
+    public void discardsFrameMissingPacket() throws IOException {
+        final byte[] first = encode(0);
+        assertTrue("first frame not rebuilt", sendAll(packetize(first), -1 /* drop none */));
+
+        // Lose a packet from the middle of the second frame
+        final List<byte[]> packets = packetize(encode(1));
+        assertTrue("frame too small to lose a middle packet", packets.size() > 2);
+        assertFalse("frame missing a packet was rebuilt", sendAll(packets, 1));
+        assertEquals("packets lost", 1L, depacketizer.getNumPacketsLost());
+        assertEquals("frames broken", 1L, depacketizer.getNumFramesBroken());
+        assertEquals("frames", 1L, depacketizer.getNumFrames());
+
+        // The next frame is whole again
+        final byte[] third = encode(2);
+        assertTrue("frame after the loss not rebuilt",
+                sendAll(packetize(third), -1 /* drop none */));
+        assertRebuilt(third);
+        assertEquals("packets lost", 1L, depacketizer.getNumPacketsLost());
+        assertEquals("frames broken", 1L, depacketizer.getNumFramesBroken());
+        assertEquals("frames", 2L, depacketizer.getNumFrames());
+    }
+
+    private static byte[] encode(final long seed) {
+        final byte[] nv21 = JpegEncoderTest.createFrame(WIDTH, HEIGHT, seed);
+        final MemoryOutputStream out = new MemoryOutputStream(WIDTH * HEIGHT * 3 / 2);
+        assertTrue("frame did not encode",
+                new JpegEncoder().encode(nv21, WIDTH, HEIGHT, QUALITY, out));
+        return Arrays.copyOf(out.getBuffer(), out.getLength());
+    }
+
+    private List<byte[]> packetize(final byte[] jpeg) {
+        timestampMs += 33L;
+        assertTrue("frame cannot be sent as RTP/JPEG",
+                packetizer.setFrame(jpeg, jpeg.length, timestampMs, timestampMs));
+        final List<byte[]> packets = new ArrayList<byte[]>();
+        final byte[] buffer = new byte[packetizer.getMaxPacketSize()];
+        while (packetizer.hasNextPacket()) {
+            packets.add(Arrays.copyOf(buffer, packetizer.nextPacket(buffer)));
+        }
+        return packets;
+    }
+
+    /**
+     * Send each packet but the one at dropIndex and hand what arrives to
+     * the depacketizer. Each packet is received before the next is sent,
+     * so that the socket's buffer cannot overflow and lose one for real.
+     *
+     * @return whether the last packet completed a frame
+     */
+    private boolean sendAll(final List<byte[]> packets, final int dropIndex)
+            throws IOException {
+        boolean isComplete = false;
+        for (int i = 0; i < packets.size(); i++) {
+            if (i == dropIndex) {
+                continue;
+            }
+            final byte[] packet = packets.get(i);
+            sender.send(new DatagramPacket(packet, packet.length));
+            final DatagramPacket received = new DatagramPacket(receiveBuffer,
+                    receiveBuffer.length);
+            receiver.receive(received);
+            assertEquals("packet length", packet.length, received.getLength());
+            isComplete = depacketizer.add(receiveBuffer, received.getLength());
+        }
+        return isComplete;
+    }
+
+    private void assertRebuilt(final byte[] jpeg) throws IOException {
+        final byte[] rebuilt = Arrays.copyOf(depacketizer.getFrame(),
+                depacketizer.getFrameLength());
+        final int scanStart = getScanStart(jpeg);
+        final int rebuiltScanStart = getScanStart(rebuilt);
+        assertEquals("scan length", jpeg.length - scanStart, rebuilt.length - rebuiltScanStart);
+        assertTrue("scan data differs", Arrays.equals(
+                Arrays.copyOfRange(jpeg, scanStart, jpeg.length),
+                Arrays.copyOfRange(rebuilt, rebuiltScanStart, rebuilt.length)));
+
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(rebuilt));
+        assertNotNull("rebuilt frame did not decode", image);
+        assertEquals("width", WIDTH, image.getWidth());
+        assertEquals("height", HEIGHT, image.getHeight());
+    }
+
+    /**
+     * The offset of the first byte after the start of scan header.
+     */
+    private static int getScanStart(final byte[] jpeg) {
+        int offset = 2;
+        while (offset + 4 <= jpeg.length) {
+            assertEquals("marker at " + offset, 0xFF, jpeg[offset] & 0xFF);
+            final int marker = jpeg[offset + 1] & 0xFF;
+            final int length = (jpeg[offset + 2] & 0xFF) << 8 | jpeg[offset + 3] & 0xFF;
+            offset += 2 + length;
+            if (marker == 0xDA) {
+                return offset;
+            }
+        }
+        throw new AssertionError("no start of scan");
+    }
+}
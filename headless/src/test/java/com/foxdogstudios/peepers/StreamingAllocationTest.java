@@ -0,0 +1,139 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streaming to clients allocates nothing once warmed up, neither on the
+ * thread publishing frames nor on the streamer's worker, which frames
+ * the parts and writes them. Measured with the allocation counters of
+ * HotSpot's ThreadMXBean.
+ */
+public class StreamingAllocationTest {
+    private static final int JPEG_BYTES = 40 * 1024;
+    private static final int NUM_FRAMES = 8;
+    private static final int NUM_CLIENTS = 4;
+    private static final int NUM_WARM_UP_FRAMES = 1000;
+    private static final int MAX_ROUNDS = 20;
+    private static final int NUM_MEASURED_FRAMES = 500;
+    private static final long FRAME_INTERVAL_MS = 2L;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final AtomicLong numBytesRead = new AtomicLong(0L);
+
+    private FrameCache frameCache;
+    private MJpegHttpStreamer streamer;
+    private Socket[] clients;
+    private long timestamp = 0L;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        final int port = MJpegHttpStreamerTest.findFreePort();
+        frameCache = new FrameCache(NUM_FRAMES, new int[] {640},
+                new BufferPool[] {new BufferPool(JPEG_BYTES * 2, NUM_FRAMES)}, new int[0]);
+        streamer = new MJpegHttpStreamer(port, frameCache, new Metrics(),
+                new MJpegHttpStreamer.SubscriberListener() {
+                    @Override
+                    public void onSubscribersChanged(final int numSubscribers) {
+                    }
+                });
+        streamer.start();
+        clients = MJpegHttpStreamerTest.startStreamingClients(port, frameCache, NUM_CLIENTS,
+                numBytesRead);
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        for (final Socket client : clients) {
+            client.close();
+        }
+        streamer.stop();
+        streamer.join();
+        frameCache.releaseBuffers();
+    }
+
+    @Test
+    public void steadyStateStreamingAllocatesNothing() throws InterruptedException {
+        assertTrue("allocation counting is not supported",
+                threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final Thread worker = findThread(MJpegHttpStreamer.class.getSimpleName());
+        assertNotNull("the streamer's worker is not running", worker);
+        final long workerId = worker.getId();
+        final long publisherId = Thread.currentThread().getId();
+
+        publish(NUM_WARM_UP_FRAMES);
+
+        // HotSpot allocates now and then on its own while it settles,
+        // resolving constants and relinking recompiled code, so a round
+        // may catch that. An allocation per frame would show in every
+        // round, so one round that allocates nothing is enough.
+        long publisherBytes = 0L;
+        long workerBytes = 0L;
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            final long numBytesReadBefore = numBytesRead.get();
+            final long workerBytesBefore = threads.getThreadAllocatedBytes(workerId);
+            final long publisherBytesBefore = threads.getThreadAllocatedBytes(publisherId);
+            publish(NUM_MEASURED_FRAMES);
+            publisherBytes = threads.getThreadAllocatedBytes(publisherId) - publisherBytesBefore;
+            workerBytes = threads.getThreadAllocatedBytes(workerId) - workerBytesBefore;
+
+            if (publisherBytes == 0L && workerBytes == 0L) {
+                // Otherwise nothing was streamed while measuring
+                assertTrue("the clients read too little",
+                        numBytesRead.get() - numBytesReadBefore
+                                >= (long) NUM_MEASURED_FRAMES * JPEG_BYTES);
+                return;
+            }
+        }
+        fail("every round allocated, the last " + publisherBytes + " bytes publishing and "
+                + workerBytes + " bytes on the streamer's worker");
+    }
+
+    private void publish(final int numFrames) throws InterruptedException {
+        for (int i = 0; i < numFrames; i++) {
+            final FrameRing.Frame frame = streamer.claimFrame(0);
+            if (frame != null) {
+                // The contents do not matter, only the length
+                frame.getOutputStream().seek(JPEG_BYTES);
+                streamer.publishFrame(0, frame, timestamp++);
+            }
+            // Give the worker time to write each frame
+            Thread.sleep(FRAME_INTERVAL_MS);
+        }
+    }
+
+    private static Thread findThread(final String name) {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,111 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One simulated viewer of an MJPEG stream. Counts the frames and bytes
+ * it receives in the current measurement window and records the age of
+ * each frame, its arrival time less its X-Timestamp, in the generator's
+ * histogram. Only used by the generator's thread.
+ */
+class LoadClient implements MultipartParser.Listener {
+    private final SocketChannel channel;
+    private final ByteBuffer request;
+    private final MultipartParser parser = new MultipartParser(this);
+    private LatencyHistogram ageHistogram;
+
+    private long numFrames = 0L;
+    private long numBytes = 0L;
+
+    LoadClient(final SocketChannel channel, final byte[] request,
+               final LatencyHistogram ageHistogram) {
+        super();
+        this.channel = channel;
+        this.request = ByteBuffer.wrap(request);
+        this.ageHistogram = ageHistogram;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Start counting afresh, recording ages into the given histogram.
+     */
+    void startWindow(final LatencyHistogram ageHistogram) {
+        this.ageHistogram = ageHistogram;
+        numFrames = 0L;
+        numBytes = 0L;
+    }
+
+    long getNumFrames() {
+        return numFrames;
+    }
+
+    long getNumBytes() {
+        return numBytes;
+    }
+
+    /**
+     * Finish connecting and send the request.
+     */
+    void onConnectable(final SelectionKey key) throws IOException {
+        channel.finishConnect();
+        channel.socket().setTcpNoDelay(true);
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read and parse whatever has arrived into the shared buffer.
+     *
+     * @return false if the stream has ended or is not an MJPEG stream
+     */
+    boolean onReadable(final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        final int numBytesRead = channel.read(buffer);
+        if (numBytesRead < 0) {
+            return false;
+        }
+        numBytes += numBytesRead;
+        buffer.flip();
+        return parser.parse(buffer);
+    }
+
+    @Override
+    public void onPart(final long contentLength, final long timestamp) {
+        numFrames++;
+        if (timestamp >= 0L) {
+            // Ages are recorded in nanoseconds like every other latency
+            ageHistogram.record((System.currentTimeMillis() - timestamp) * 1000000L);
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs LoadGenerator from the command line and prints a row per step.
+ * See USAGE.
+ *
+ * Frame age is the time a part arrived less its X-Timestamp, so it is
+ * only meaningful when the server stamps frames with the wall clock and
+ * shares a clock with this machine, as the headless streamer on the same
+ * host does. The Android app stamps frames with the time since boot.
+ */
+public final class LoadGenMain {
+    private static final String USAGE =
+            "usage: loadgen [options]\n"
+                    + "  --host HOST      server to connect to (localhost)\n"
+                    + "  --port N         server port (8080)\n"
+                    + "  --path PATH      stream path and query (/stream.mjpeg)\n"
+                    + "  --clients N,...  client count of each step (10,50,100,200,400)\n"
+                    + "  --warmup S       seconds to settle before each step is\n"
+                    + "                   measured (2)\n"
+                    + "  --duration S     seconds each step is measured for (10)\n"
+                    + "  --csv            print comma separated values\n";
+
+    private static final String[] COLUMNS = {
+            "clients", "connected", "failed", "total_fps", "mbytes_per_s",
+            "client_fps_p50", "client_fps_p10", "client_fps_min",
+            "age_ms_p50", "age_ms_p90", "age_ms_p99", "age_ms_max"};
+
+    private LoadGenMain() {
+        super();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        String host = "localhost";
+        int port = 8080;
+        String path = "/stream.mjpeg";
+        int[] clientCounts = {10, 50, 100, 200, 400};
+        long warmUpS = 2L;
+        long durationS = 10L;
+        boolean csv = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String option = args[i];
+                if (option.equals("--csv")) {
+                    csv = true;
+                    continue;
+                }
+
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(option + " needs a value");
+                }
+                final String value = args[++i];
+                if (option.equals("--host")) {
+                    host = value;
+                } else if (option.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (option.equals("--path")) {
+                    path = value;
+                } else if (option.equals("--clients")) {
+                    clientCounts = parseCounts(value);
+                } else if (option.equals("--warmup")) {
+                    warmUpS = Long.parseLong(value);
+                } else if (option.equals("--duration")) {
+                    durationS = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("unknown option " + option);
+                }
+            }
+            if (durationS <= 0L) {
+                throw new IllegalArgumentException("--duration must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        final LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port),
+                path);
+        final List<LoadGenerator.Step> steps = generator.run(clientCounts, warmUpS * 1000L,
+                durationS * 1000L);
+        print(steps, csv);
+    }
+
+    private static void print(final List<LoadGenerator.Step> steps, final boolean csv) {
+        final String separator = csv ? "," : " ";
+        final String textFormat = csv ? "%s" : "%14s";
+        final StringBuilder row = new StringBuilder();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            row.append(i == 0 ? "" : separator).append(String.format(textFormat, COLUMNS[i]));
+        }
+        System.out.println(row);
+
+        for (final LoadGenerator.Step step : steps) {
+            final LatencyHistogram ages = step.getAges();
+            final Object[] values = {
+                    step.getNumClients(), step.getNumConnected(), step.getNumFailures(),
+                    step.getTotalFps(), step.getBytesPerSecond() / 1e6,
+                    step.getClientFps(0.5), step.getClientFps(0.1), step.getClientFps(0.0),
+                    toMillis(ages.getQuantile(0.5)), toMillis(ages.getQuantile(0.9)),
+                    toMillis(ages.getQuantile(0.99)), toMillis(ages.getMax())};
+            row.setLength(0);
+            for (int i = 0; i < values.length; i++) {
+                final Object value = values[i];
+                final String text = value instanceof Double
+                        ? String.format(Locale.US, "%.1f", (Double) value)
+                        : String.valueOf(value);
+                row.append(i == 0 ? "" : separator).append(String.format(textFormat, text));
+            }
+            System.out.println(row);
+        }
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static int[] parseCounts(final String value) {
+        final String[] parts = value.split(",");
+        final int[] counts = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            counts[i] = Integer.parseInt(parts[i].trim());
+            if (counts[i] <= 0) {
+                throw new IllegalArgumentException("client counts must be positive");
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Holds many MJPEG stream connections open on one thread and measures
+ * what each receives. The client count is raised in steps; each step
+ * warms up and is then measured on its own, so the results show where
+ * per-client frame rate starts to fall and frame age starts to grow.
+ */
+class LoadGenerator {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final byte[] request;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final List<LoadClient> clients = new ArrayList<LoadClient>();
+    private Selector selector = null;
+    private LatencyHistogram ageHistogram = new LatencyHistogram();
+    private int numFailures = 0;
+
+    /**
+     * @param path the stream's path and query, e.g. /stream.mjpeg?w=320
+     */
+    LoadGenerator(final InetSocketAddress address, final String path) {
+        super();
+        this.address = address;
+        request = Ascii.toBytes("GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + address.getHostString() + ":" + address.getPort() + "\r\n"
+                + "\r\n");
+    }
+
+    /**
+     * Run one step per client count, in order.
+     */
+    List<Step> run(final int[] clientCounts, final long warmUpMs, final long measureMs)
+            throws IOException {
+        final List<Step> steps = new ArrayList<Step>(clientCounts.length);
+        selector = Selector.open();
+        try {
+            for (final int numClients : clientCounts) {
+                numFailures = 0;
+                while (clients.size() < numClients) {
+                    connect();
+                }
+                runFor(warmUpMs);
+
+                ageHistogram = new LatencyHistogram();
+                for (final LoadClient client : clients) {
+                    client.startWindow(ageHistogram);
+                }
+                final long startNanos = System.nanoTime();
+                runFor(measureMs);
+                steps.add(measure(numClients, (System.nanoTime() - startNanos) / 1e9));
+            }
+        } finally {
+            for (final LoadClient client : clients) {
+                client.close();
+            }
+            clients.clear();
+            selector.close();
+        }
+        return steps;
+    }
+
+    private void connect() throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        final LoadClient client = new LoadClient(channel, request, ageHistogram);
+        channel.register(selector, SelectionKey.OP_CONNECT, client);
+        channel.connect(address);
+        clients.add(client);
+    }
+
+    private void runFor(final long durationMs) throws IOException {
+        final long endNanos = System.nanoTime() + durationMs * 1000000L;
+        while (true) {
+            final long remainingMs = (endNanos - System.nanoTime()) / 1000000L;
+            if (remainingMs <= 0L) {
+                return;
+            }
+            if (selector.select(remainingMs) == 0) {
+                continue;
+            }
+
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                final LoadClient client = (LoadClient) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        client.onConnectable(key);
+                    } else if (key.isReadable() && !client.onReadable(readBuffer)) {
+                        fail(client);
+                    }
+                } catch (IOException e) {
+                    fail(client);
+                }
+            }
+        }
+    }
+
+    private void fail(final LoadClient client) {
+        numFailures++;
+        clients.remove(client);
+        client.close();
+    }
+
+    private Step measure(final int numClients, final double seconds) {
+        final double[] fps = new double[clients.size()];
+        long numFrames = 0L;
+        long numBytes = 0L;
+        for (int i = 0; i < fps.length; i++) {
+            final LoadClient client = clients.get(i);
+            fps[i] = client.getNumFrames() / seconds;
+            numFrames += client.getNumFrames();
+            numBytes += client.getNumBytes();
+        }
+        Arrays.sort(fps);
+        return new Step(numClients, clients.size(), numFailures, numFrames / seconds,
+                numBytes / seconds, fps, ageHistogram);
+    }
+
+    /**
+     * What was received during one step.
+     */
+    static final class Step {
+        private final int numClients;
+        private final int numConnected;
+        private final int numFailures;
+        private final double totalFps;
+        private final double bytesPerSecond;
+        // Ascending
+        private final double[] clientFps;
+        private final LatencyHistogram ages;
+
+        Step(final int numClients, final int numConnected, final int numFailures,
+             final double totalFps, final double bytesPerSecond, final double[] clientFps,
+             final LatencyHistogram ages) {
+            super();
+            this.numClients = numClients;
+            this.numConnected = numConnected;
+            this.numFailures = numFailures;
+            this.totalFps = totalFps;
+            this.bytesPerSecond = bytesPerSecond;
+            this.clientFps = clientFps;
+            this.ages = ages;
+        }
+
+        int getNumClients() {
+            return numClients;
+        }
+
+        int getNumConnected() {
+            return numConnected;
+        }
+
+        int getNumFailures() {
+            return numFailures;
+        }
+
+        double getTotalFps() {
+            return totalFps;
+        }
+
+        double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * The frame rate that the given fraction of clients got less
+         * than, e.g. 0.1 for the slowest tenth.
+         */
+        double getClientFps(final double quantile) {
+            if (clientFps.length == 0) {
+                return 0.0;
+            }
+            final int index = (int) Math.min(clientFps.length - 1,
+                    Math.floor(quantile * clientFps.length));
+            return clientFps[index];
+        }
+
+        LatencyHistogram getAges() {
+            return ages;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses an MJPEG stream response as it arrives, in whatever pieces the
+ * socket delivers it. Only header lines are kept, in a fixed buffer;
+ * the JPEG bodies are skipped over without being copied, so the cost
+ * does not grow with the frame size and nothing is allocated per frame.
+ */
+class MultipartParser {
+    /**
+     * Told about each part once its body has been read in full.
+     */
+    interface Listener {
+        /**
+         * @param timestamp the part's X-Timestamp, or -1 if it had none
+         */
+        void onPart(long contentLength, long timestamp);
+    }
+
+    private static final int STATE_RESPONSE_HEAD = 0;
+    private static final int STATE_PART_HEAD = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_FAILED = 3;
+
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private static final byte[] HTTP_200 = Ascii.toBytes("HTTP/1.1 200");
+    private static final byte[] HTTP_1_0_200 = Ascii.toBytes("HTTP/1.0 200");
+    private static final byte[] CONTENT_LENGTH = Ascii.toBytes("content-length:");
+    private static final byte[] TIMESTAMP = Ascii.toBytes("x-timestamp:");
+
+    private final Listener listener;
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength = 0;
+    private boolean isFirstLine = true;
+    private int state = STATE_RESPONSE_HEAD;
+    private long contentLength = -1L;
+    private long timestamp = -1L;
+    private long numBodyBytesLeft = 0L;
+
+    MultipartParser(final Listener listener) {
+        super();
+        this.listener = listener;
+    }
+
+    /**
+     * Consume every byte remaining in the buffer.
+     *
+     * @return false if the response was not a 200 or a part header was
+     * malformed, after which the parser ignores its input
+     */
+    boolean parse(final ByteBuffer buffer) {
+        while (buffer.hasRemaining() && state != STATE_FAILED) {
+            if (state == STATE_BODY) {
+                final int numBytes = (int) Math.min(numBodyBytesLeft, buffer.remaining());
+                buffer.position(buffer.position() + numBytes);
+                numBodyBytesLeft -= numBytes;
+                if (numBodyBytesLeft == 0L) {
+                    listener.onPart(contentLength, timestamp);
+                    contentLength = -1L;
+                    timestamp = -1L;
+                    state = STATE_PART_HEAD;
+                }
+                continue;
+            }
+
+            final byte b = buffer.get();
+            if (b != '\n') {
+                // Overlong lines are cut short, none we care about are
+                if (lineLength < MAX_LINE_LENGTH) {
+                    line[lineLength++] = b;
+                }
+                continue;
+            }
+            if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                lineLength--;
+            }
+            onLine();
+            lineLength = 0;
+        }
+        buffer.position(buffer.limit());
+        return state != STATE_FAILED;
+    }
+
+    private void onLine() {
+        if (state == STATE_RESPONSE_HEAD) {
+            if (isFirstLine) {
+                isFirstLine = false;
+                if (!startsWith(HTTP_200) && !startsWith(HTTP_1_0_200)) {
+                    state = STATE_FAILED;
+                }
+            } else if (lineLength == 0) {
+                state = STATE_PART_HEAD;
+            }
+            return;
+        }
+
+        // Part heads are preceded by blank and boundary lines, which
+        // are skipped. A blank line after a Content-Length ends the head.
+        if (lineLength == 0) {
+            if (contentLength >= 0L) {
+                numBodyBytesLeft = contentLength;
+                state = STATE_BODY;
+                if (contentLength == 0L) {
+                    listener.onPart(0L, timestamp);
+                    contentLength = -1L;
+                    timestamp = -1L;
+                    state = STATE_PART_HEAD;
+                }
+            }
+        } else if (startsWithIgnoreCase(CONTENT_LENGTH)) {
+            contentLength = parseDecimal(CONTENT_LENGTH.length);
+            if (contentLength < 0L) {
+                state = STATE_FAILED;
+            }
+        } else if (startsWithIgnoreCase(TIMESTAMP)) {
+            timestamp = parseDecimal(TIMESTAMP.length);
+        }
+    }
+
+    private boolean startsWith(final byte[] prefix) {
+        if (lineLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param prefix in lower case
+     */
+    private boolean startsWithIgnoreCase(final byte[] prefix) {
+        if (lineLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            final int c = line[i];
+            final int lower = c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+            if (lower != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The non-negative decimal after offset, skipping spaces, or -1.
+     */
+    private long parseDecimal(final int offset) {
+        int i = offset;
+        while (i < lineLength && line[i] == ' ') {
+            i++;
+        }
+        if (i == lineLength) {
+            return -1L;
+        }
+        long value = 0L;
+        for (; i < lineLength; i++) {
+            final int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1L;
+            }
+            value = value * 10L + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,246 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+/**
+ * Reassembles JPEGs from the RTP/JPEG packets RtpJpegPacketizer sends,
+ * rebuilding each frame's headers from its RTP/JPEG header and the
+ * quantization tables last sent for its Q, and counts what was lost on
+ * the way. Frames are rebuilt in a fixed buffer; nothing is allocated
+ * per packet.
+ *
+ * Lost packets are counted from gaps in the sequence numbers. A frame
+ * missing any packet, or whose tables have not arrived, is counted as
+ * broken and skipped; a frame every packet of which was lost cannot be
+ * told apart from one never sent and only shows in the packet count.
+ * Only the 4:2:0 types, which every encoder here produces, are rebuilt.
+ */
+class RtpJpegDepacketizer {
+    private static final int NUM_Q_VALUES = 256;
+
+    private final byte[] frame;
+    // The tables last received for each Q, or null
+    private final byte[][] tables = new byte[NUM_Q_VALUES][];
+
+    private boolean hasSequenceNumber = false;
+    private int lastSequenceNumber = 0;
+    private boolean isInFrame = false;
+    private boolean isBroken = false;
+    private int timestamp = 0;
+    private int frameLength = 0;
+    private int headerLength = 0;
+    private int fragmentOffset = 0;
+
+    private long numPackets = 0L;
+    private long numPacketsLost = 0L;
+    private long numPacketsLate = 0L;
+    private long numPacketsInvalid = 0L;
+    private long numFrames = 0L;
+    private long numFramesBroken = 0L;
+    private long numFrameBytes = 0L;
+
+    /**
+     * @param maxFrameSize the largest frame that can be rebuilt
+     */
+    RtpJpegDepacketizer(final int maxFrameSize) {
+        super();
+        frame = new byte[maxFrameSize];
+    }
+
+    /**
+     * Take the next packet received.
+     *
+     * @return true if the packet completed a frame, which can be read
+     * from getFrame() until the next packet is taken
+     */
+    boolean add(final byte[] packet, final int length) {
+        numPackets++;
+        if (length < RtpJpegPacketizer.RTP_HEADER_SIZE
+                || (packet[0] & 0xFF) >> 6 != RtpJpegPacketizer.RTP_VERSION
+                || (packet[1] & 0x7F) != RtpJpegPacketizer.PAYLOAD_TYPE_JPEG) {
+            numPacketsInvalid++;
+            return false;
+        }
+
+        final int sequenceNumber = getShort(packet, 2);
+        if (hasSequenceNumber) {
+            final int gap = (sequenceNumber - lastSequenceNumber - 1) & 0xFFFF;
+            if (gap >= 0x8000) {
+                // Reordered or duplicated: the frame it belonged to has
+                // already been counted as broken
+                numPacketsLate++;
+                return false;
+            }
+            numPacketsLost += gap;
+            if (gap != 0) {
+                isBroken = true;
+            }
+        }
+        hasSequenceNumber = true;
+        lastSequenceNumber = sequenceNumber;
+
+        final int packetTimestamp = getInt(packet, 4);
+        if (!isInFrame || packetTimestamp != timestamp) {
+            if (isInFrame) {
+                // The last packet of the one before never arrived
+                numFramesBroken++;
+            }
+            isInFrame = true;
+            isBroken = false;
+            timestamp = packetTimestamp;
+            frameLength = 0;
+            fragmentOffset = 0;
+        }
+
+        if (!isBroken) {
+            isBroken = !addPayload(packet, length);
+        }
+        if ((packet[1] & 0x80) == 0) {
+            return false;
+        }
+
+        // The marker bit ends the frame
+        isInFrame = false;
+        if (isBroken || frameLength + 2 > frame.length) {
+            numFramesBroken++;
+            return false;
+        }
+        frame[frameLength++] = (byte) 0xFF;
+        frame[frameLength++] = (byte) 0xD9;
+        numFrames++;
+        numFrameBytes += frameLength;
+        return true;
+    }
+
+    byte[] getFrame() {
+        return frame;
+    }
+
+    int getFrameLength() {
+        return frameLength;
+    }
+
+    long getNumPackets() {
+        return numPackets;
+    }
+
+    long getNumPacketsLost() {
+        return numPacketsLost;
+    }
+
+    /**
+     * Packets that arrived after a later one, and were dropped.
+     */
+    long getNumPacketsLate() {
+        return numPacketsLate;
+    }
+
+    long getNumPacketsInvalid() {
+        return numPacketsInvalid;
+    }
+
+    long getNumFrames() {
+        return numFrames;
+    }
+
+    long getNumFramesBroken() {
+        return numFramesBroken;
+    }
+
+    long getNumFrameBytes() {
+        return numFrameBytes;
+    }
+
+    /**
+     * @return false if the frame cannot be rebuilt
+     */
+    private boolean addPayload(final byte[] packet, final int length) {
+        int position = RtpJpegPacketizer.RTP_HEADER_SIZE + 4 * (packet[0] & 0x0F);
+        if ((packet[0] & 0x10) != 0) {
+            // Skip the header extension
+            if (position + 4 > length) {
+                return false;
+            }
+            position += 4 + 4 * getShort(packet, position + 2);
+        }
+        if (position + RtpJpegPacketizer.JPEG_HEADER_SIZE > length) {
+            return false;
+        }
+
+        final int offset = (packet[position + 1] & 0xFF) << 16
+                | getShort(packet, position + 2);
+        final int type = packet[position + 4] & 0xFF;
+        final int q = packet[position + 5] & 0xFF;
+        final int width = (packet[position + 6] & 0xFF) * 8;
+        final int height = (packet[position + 7] & 0xFF) * 8;
+        position += RtpJpegPacketizer.JPEG_HEADER_SIZE;
+        if (offset != fragmentOffset
+                || (type & ~RtpJpegPacketizer.TYPE_RESTART) != RtpJpegPacketizer.TYPE_420
+                || q < RtpJpegPacketizer.FIRST_DYNAMIC_Q) {
+            return false;
+        }
+
+        int restartInterval = 0;
+        if ((type & RtpJpegPacketizer.TYPE_RESTART) != 0) {
+            if (position + RtpJpegPacketizer.RESTART_HEADER_SIZE > length) {
+                return false;
+            }
+            restartInterval = getShort(packet, position);
+            position += RtpJpegPacketizer.RESTART_HEADER_SIZE;
+        }
+
+        if (offset == 0) {
+            if (position + RtpJpegPacketizer.QUANTIZATION_HEADER_SIZE > length) {
+                return false;
+            }
+            final int tablesLength = getShort(packet, position + 2);
+            position += RtpJpegPacketizer.QUANTIZATION_HEADER_SIZE;
+            if (tablesLength != 0) {
+                if (tablesLength != RtpJpegPacketizer.TABLES_SIZE
+                        || position + tablesLength > length) {
+                    return false;
+                }
+                if (tables[q] == null) {
+                    tables[q] = new byte[RtpJpegPacketizer.TABLES_SIZE];
+                }
+                System.arraycopy(packet, position, tables[q], 0, tablesLength);
+                position += tablesLength;
+            }
+            if (tables[q] == null || frame.length < JpegEncoder.MAX_HEADER_BYTES) {
+                return false;
+            }
+            frameLength = JpegEncoder.writeHeader(frame, 0, width, height, tables[q], 0,
+                    restartInterval);
+        }
+
+        final int payloadLength = length - position;
+        if (frameLength + payloadLength > frame.length) {
+            return false;
+        }
+        System.arraycopy(packet, position, frame, frameLength, payloadLength);
+        frameLength += payloadLength;
+        fragmentOffset += payloadLength;
+        return true;
+    }
+
+    private static int getShort(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) << 8 | buffer[offset + 1] & 0xFF;
+    }
+
+    private static int getInt(final byte[] buffer, final int offset) {
+        return getShort(buffer, offset) << 16 | getShort(buffer, offset + 2);
+    }
+}
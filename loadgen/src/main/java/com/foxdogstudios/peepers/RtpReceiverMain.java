@@ -0,0 +1,205 @@
+/* Copyright 2013 Foxdog Studios Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.foxdogstudios.peepers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+
+/**
+ * Receives an RTP/JPEG stream, as the headless server's --rtp or the
+ * app's RTP setting sends it, reassembles the frames and prints a row
+ * per interval of what arrived and what was lost. See USAGE.
+ */
+public final class RtpReceiverMain {
+    private static final String USAGE =
+            "usage: rtp-receiver [options]\n"
+                    + "  --port N         port to receive on (5004)\n"
+                    + "  --group ADDR     multicast group to join\n"
+                    + "  --interval S     seconds between rows (1)\n"
+                    + "  --duration S     stop after S seconds, 0 for never (10)\n"
+                    + "  --save DIR       write every frame rebuilt to DIR\n"
+                    + "  --csv            print comma separated values\n";
+
+    private static final String[] COLUMNS = {
+            "seconds", "packets", "packets_lost", "packets_late", "frames",
+            "frames_broken", "fps", "mbytes_per_s"};
+
+    // The largest UDP payload
+    private static final int MAX_PACKET_SIZE = 65507;
+    private static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int POLL_INTERVAL_MS = 100;
+
+    private RtpReceiverMain() {
+        super();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        int port = 5004;
+        InetAddress group = null;
+        long intervalS = 1L;
+        long durationS = 10L;
+        File saveDirectory = null;
+        boolean csv = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String option = args[i];
+                if (option.equals("--csv")) {
+                    csv = true;
+                    continue;
+                }
+
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(option + " needs a value");
+                }
+                final String value = args[++i];
+                if (option.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (option.equals("--group")) {
+                    group = InetAddress.getByName(value);
+                    if (!group.isMulticastAddress()) {
+                        throw new IllegalArgumentException(value + " is not a multicast group");
+                    }
+                } else if (option.equals("--interval")) {
+                    intervalS = Long.parseLong(value);
+                } else if (option.equals("--duration")) {
+                    durationS = Long.parseLong(value);
+                } else if (option.equals("--save")) {
+                    saveDirectory = new File(value);
+                } else {
+                    throw new IllegalArgumentException("unknown option " + option);
+                }
+            }
+            if (intervalS <= 0L) {
+                throw new IllegalArgumentException("--interval must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (saveDirectory != null && !saveDirectory.isDirectory() && !saveDirectory.mkdirs()) {
+            throw new IOException("cannot create " + saveDirectory);
+        }
+
+        final MulticastSocket socket = new MulticastSocket(port);
+        try {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            socket.setSoTimeout(POLL_INTERVAL_MS);
+            if (group != null) {
+                socket.joinGroup(group);
+            }
+            receive(socket, intervalS * 1000L, durationS * 1000L, saveDirectory, csv);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void receive(final MulticastSocket socket, final long intervalMs,
+                                final long durationMs, final File saveDirectory,
+                                final boolean csv) throws IOException {
+        final RtpJpegDepacketizer depacketizer = new RtpJpegDepacketizer(MAX_FRAME_SIZE);
+        final byte[] buffer = new byte[MAX_PACKET_SIZE];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        final String separator = csv ? "," : " ";
+        final String textFormat = csv ? "%s" : "%14s";
+        printRow(COLUMNS, separator, textFormat);
+
+        final long startMs = System.currentTimeMillis();
+        long rowStartMs = startMs;
+        final long[] rowStart = new long[COLUMNS.length];
+        while (durationMs <= 0L || System.currentTimeMillis() - startMs < durationMs) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (depacketizer.add(buffer, packet.getLength()) && saveDirectory != null) {
+                    save(depacketizer, saveDirectory);
+                }
+            } catch (SocketTimeoutException e) {
+                // Time to check for the end of a row
+            }
+
+            final long nowMs = System.currentTimeMillis();
+            if (nowMs - rowStartMs >= intervalMs) {
+                final double seconds = (nowMs - rowStartMs) / 1000.0;
+                final long[] counts = getCounts(depacketizer);
+                final Object[] values = {
+                        (nowMs - startMs) / 1000L,
+                        counts[0] - rowStart[0], counts[1] - rowStart[1],
+                        counts[2] - rowStart[2], counts[3] - rowStart[3],
+                        counts[4] - rowStart[4], (counts[3] - rowStart[3]) / seconds,
+                        (counts[5] - rowStart[5]) / seconds / 1e6};
+                final String[] texts = new String[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    texts[i] = values[i] instanceof Double
+                            ? String.format(Locale.US, "%.1f", (Double) values[i])
+                            : String.valueOf(values[i]);
+                }
+                printRow(texts, separator, textFormat);
+                System.arraycopy(counts, 0, rowStart, 0, counts.length);
+                rowStartMs = nowMs;
+            }
+        }
+
+        final long[] counts = getCounts(depacketizer);
+        final long numExpected = counts[0] + counts[1] - depacketizer.getNumPacketsInvalid();
+        System.out.println(String.format(Locale.US,
+                "total: %d packets, %d lost (%.2f%%), %d frames, %d broken",
+                counts[0], counts[1], numExpected == 0L ? 0.0 : 100.0 * counts[1] / numExpected,
+                counts[3], counts[4]));
+    }
+
+    /**
+     * Packets, lost, late, frames, broken frames and frame bytes.
+     */
+    private static long[] getCounts(final RtpJpegDepacketizer depacketizer) {
+        return new long[] {
+                depacketizer.getNumPackets(), depacketizer.getNumPacketsLost(),
+                depacketizer.getNumPacketsLate(), depacketizer.getNumFrames(),
+                depacketizer.getNumFramesBroken(), depacketizer.getNumFrameBytes()};
+    }
+
+    private static void printRow(final String[] texts, final String separator,
+                                 final String textFormat) {
+        final StringBuilder row = new StringBuilder();
+        for (int i = 0; i < texts.length; i++) {
+            row.append(i == 0 ? "" : separator).append(String.format(textFormat, texts[i]));
+        }
+        System.out.println(row);
+    }
+
+    private static void save(final RtpJpegDepacketizer depacketizer, final File directory)
+            throws IOException {
+        final File file = new File(directory,
+                String.format(Locale.US, "%08d.jpg", depacketizer.getNumFrames()));
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(depacketizer.getFrame(), 0, depacketizer.getFrameLength());
+        } finally {
+            out.close();
+        }
+    }
+}